@@ -0,0 +1,53 @@
+package de.fwinkel.android_stunnel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import androidx.annotation.NonNull;
+
+/**
+ * {@link StunnelEnvironment} for benchmarks on a plain JVM: the Stunnel binary is given by the system property
+ * {@value #PROPERTY_BINARY} and files are stored in a new temporary directory.
+ */
+public class BenchmarkEnvironment implements StunnelEnvironment {
+
+    public static final String PROPERTY_BINARY = "stunnel.binary";
+
+    @NonNull
+    private final File filesDirectory;
+
+    public BenchmarkEnvironment() throws IOException {
+        this.filesDirectory = Files.createTempDirectory("stunnel-benchmark").toFile();
+        this.filesDirectory.deleteOnExit();
+    }
+
+    /**
+     * Returns the binary given by {@value #PROPERTY_BINARY}. The binary is only checked when it is executed,
+     * so that benchmarks of {@link StunnelBackend#SSL_ENGINE} run without it.
+     * @return
+     */
+    @NonNull
+    @Override
+    public File getBinaryPath() {
+        String path = System.getProperty(PROPERTY_BINARY);
+        if(path == null || path.isEmpty())
+            //fails with "Cannot run program" when executed
+            return new File("stunnel-binary-not-configured");
+
+        return new File(path);
+    }
+
+    @NonNull
+    @Override
+    public File getFilesDirectory() {
+        return filesDirectory;
+    }
+
+    /**
+     * Deletes {@link #getFilesDirectory()}.
+     */
+    public void delete() {
+        StunnelBuilder.deleteDirectory(filesDirectory);
+    }
+}
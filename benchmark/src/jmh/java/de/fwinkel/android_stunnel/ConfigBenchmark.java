@@ -0,0 +1,69 @@
+package de.fwinkel.android_stunnel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning a {@link StunnelBuilder} into a Stunnel config: serialization only and serialization
+ * plus writing the config file. Does not need the Stunnel binary.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int services;
+
+    private BenchmarkEnvironment environment;
+    private StunnelBuilder builder;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        environment = new BenchmarkEnvironment();
+        builder = new StunnelBuilder(environment);
+        for (int i = 0; i < services; i++) {
+            builder.addService("service" + i)
+                    .client()
+                    .acceptLocal(10000 + i)
+                    .connect("example.com", 443)
+                    .sslVersion(SSLVersion.TLSv1_3)
+                    .ciphersuites(TLS1_3CipherSuite.TLS_AES_256_GCM_SHA384, TLS1_3CipherSuite.TLS_CHACHA20_POLY1305_SHA256)
+                    .timeouts(TimeoutPolicy.MOBILE)
+                    .apply();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        environment.delete();
+    }
+
+    @Benchmark
+    public String getConfigFileContent() {
+        return builder.getConfigFileContent();
+    }
+
+    @Benchmark
+    public File writeConfigFile() throws IOException {
+        return builder.writeConfigFile();
+    }
+}
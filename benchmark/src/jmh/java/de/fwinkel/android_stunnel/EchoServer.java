@@ -0,0 +1,70 @@
+package de.fwinkel.android_stunnel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Local TCP server that sends back everything it receives, one thread per connection.
+ */
+public class EchoServer implements Closeable {
+
+    private final ServerSocket serverSocket;
+
+    public EchoServer() throws IOException {
+        serverSocket = new ServerSocket(0, 128, InetAddress.getByName("localhost"));
+
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while(true) {
+                        final Socket socket = serverSocket.accept();
+                        socket.setTcpNoDelay(true);
+                        Thread connection = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                echo(socket);
+                            }
+                        }, "Echo connection");
+                        connection.setDaemon(true);
+                        connection.start();
+                    }
+                } catch (IOException e) {
+                    //closed
+                }
+            }
+        }, "Echo acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private static void echo(Socket socket) {
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            //connection reset
+        } finally {
+            Util.close(socket);
+        }
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+}
@@ -0,0 +1,76 @@
+package de.fwinkel.android_stunnel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spawn-to-ready latency: time from {@link StunnelBuilder#start(long, TimeUnit)} until the configuration
+ * has been applied, including closing the instance again.<br/>
+ * The check for failed binds of ephemeral ports ends once the startup messages have been read, so no fixed
+ * delay is included. Both backends log at {@link LogLevel#INFO} so that they write the same startup messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StartupBenchmark {
+
+    @Param({"NATIVE", "SSL_ENGINE"})
+    public StunnelBackend backend;
+
+    @Param({"1", "10"})
+    public int services;
+
+    @Param({"false", "true"})
+    public boolean pipeConfig;
+
+    private BenchmarkEnvironment environment;
+    private EchoServer echoServer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        environment = new BenchmarkEnvironment();
+        echoServer = new EchoServer();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        echoServer.close();
+        environment.delete();
+    }
+
+    @Benchmark
+    public Stunnel start() throws IOException {
+        StunnelBuilder builder = new StunnelBuilder(environment)
+                .backend(backend)
+                .pipeConfig(pipeConfig)
+                .logLevel(LogLevel.INFO);
+        for (int i = 0; i < services; i++) {
+            builder.addService("service" + i)
+                    .client()
+                    .acceptLocalEphemeral()
+                    .connect("localhost", echoServer.getPort())
+                    .apply();
+        }
+
+        Stunnel stunnel = builder.start(10, TimeUnit.SECONDS);
+        stunnel.close();
+        return stunnel;
+    }
+}
@@ -0,0 +1,134 @@
+package de.fwinkel.android_stunnel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Data flow through a full tunnel: a client service encrypts, a server service decrypts and forwards
+ * to a local echo server, and the reply takes the same way back.<br/>
+ * Both services authenticate with PSK, which is why this benchmark only runs the native backend
+ * (the SSLEngine backend needs an SSLContext with PSK support).
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ThroughputBenchmark {
+
+    /**
+     * Bytes per round trip of {@link #roundTrip()}. Bytes/sec = ops/sec * chunkSize.
+     */
+    @Param({"1024", "65536"})
+    public int chunkSize;
+
+    private BenchmarkEnvironment environment;
+    private EchoServer echoServer;
+    private Stunnel stunnel;
+    private int clientPort;
+
+    private Socket socket;
+    private OutputStream out;
+    private DataInputStream in;
+    private byte[] chunk;
+    private byte[] reply;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        environment = new BenchmarkEnvironment();
+        echoServer = new EchoServer();
+
+        PreSharedKey key = new PreSharedKey("benchmark", "benchmarkbenchmarkbenchmark");
+        StunnelBuilder builder = new StunnelBuilder(environment);
+        builder.addService("server")
+                .acceptLocalEphemeral()
+                .connect("localhost", echoServer.getPort())
+                .sslVersion(SSLVersion.TLSv1_2)
+                .ciphers(SSLCipher.PSK)
+                .pskSecrets(key)
+                .apply();
+        builder.addService("client")
+                .client()
+                .acceptLocalEphemeral()
+                .connect("localhost", builder.acceptPorts.get("server"))
+                .sslVersion(SSLVersion.TLSv1_2)
+                .ciphers(SSLCipher.PSK)
+                .pskSecrets(key)
+                .apply();
+
+        stunnel = builder.start(10, TimeUnit.SECONDS);
+        clientPort = stunnel.getAcceptPort("client");
+
+        chunk = new byte[chunkSize];
+        new Random(0).nextBytes(chunk);
+        reply = new byte[chunkSize];
+        socket = connect();
+        out = socket.getOutputStream();
+        in = new DataInputStream(socket.getInputStream());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Util.close(socket);
+        stunnel.close();
+        echoServer.close();
+        environment.delete();
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket("localhost", clientPort);
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    /**
+     * Sends {@link #chunkSize} bytes over an established connection and reads them back.
+     * @return
+     * @throws IOException
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public byte[] roundTrip() throws IOException {
+        out.write(chunk);
+        out.flush();
+        in.readFully(reply);
+        return reply;
+    }
+
+    /**
+     * Opens a new connection (including the TLS handshake), sends one byte, reads it back and closes the connection.
+     * @return
+     * @throws IOException
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int connection() throws IOException {
+        Socket socket = connect();
+        try {
+            socket.getOutputStream().write(1);
+            return socket.getInputStream().read();
+        }
+        finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package de.fwinkel.android_stunnel;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+/**
+ * {@link StunnelLogSink} that writes Stunnel's log lines to logcat with a matching priority.
+ */
+public class AndroidLogSink implements StunnelLogSink {
+
+    @NonNull
+    private final String tag;
+    @NonNull
+    private final LogLevel minLevel;
+
+    /**
+     * Writes all lines with the tag "Stunnel".
+     */
+    public AndroidLogSink() {
+        this(Stunnel.LOG_TAG, LogLevel.DEBUG);
+    }
+
+    /**
+     * @param tag
+     * @param minLevel Lines less severe than this level are not written.
+     */
+    public AndroidLogSink(@NonNull String tag, @NonNull LogLevel minLevel) {
+        this.tag = tag;
+        this.minLevel = minLevel;
+    }
+
+    @Override
+    public void onLogLine(@NonNull Stunnel stunnel, @NonNull LogLevel level, @NonNull CharSequence line) {
+        if(level.level > minLevel.level)
+            return;
+
+        Log.println(toPriority(level), tag, line.toString());
+    }
+
+    /**
+     * Maps a syslog level to a logcat priority.
+     * @param level
+     * @return
+     */
+    protected static int toPriority(@NonNull LogLevel level) {
+        switch (level) {
+            case EMERGENCY:
+            case ALERT:
+            case CRITICAL:
+            case ERROR:
+                return Log.ERROR;
+            case WARNING:
+                return Log.WARN;
+            case NOTICE:
+            case INFO:
+                return Log.INFO;
+            default:
+                return Log.DEBUG;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package de.fwinkel.android_stunnel;
+
+import android.content.Context;
+
+import java.io.File;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Default {@link StunnelEnvironment}: the Stunnel binary that ships with this library as libstunnel.so
+ * and the app's {@link Context#getFilesDir() files directory}.
+ */
+public class AndroidStunnelEnvironment implements StunnelEnvironment {
+
+    @NonNull protected final Context context;
+
+    public AndroidStunnelEnvironment(@NonNull Context context) {
+        this.context = context;
+    }
+
+    @NonNull
+    @Override
+    public File getBinaryPath() {
+        return new File(context.getApplicationInfo().nativeLibraryDir, "libstunnel.so");
+    }
+
+    @NonNull
+    @Override
+    public File getFilesDirectory() {
+        return context.getFilesDir();
+    }
+}
@@ -0,0 +1,52 @@
+package de.fwinkel.android_stunnel;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Pool of equally sized direct {@link ByteBuffer}s.<br/>
+ * Direct buffers are expensive to allocate and are only freed by the garbage collector, so buffers
+ * of closed connections are kept for new connections instead, up to a maximum number of buffers.<br/>
+ * Not thread-safe: only used by the selector thread of {@link SSLEngineTunnel}.
+ */
+class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooledBuffers;
+    @NonNull
+    private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+
+    BufferPool(int bufferSize, int maxPooledBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxPooledBuffers = maxPooledBuffers;
+    }
+
+    /**
+     * Returns an empty buffer of {@link #getBufferSize()} bytes.
+     * @return
+     */
+    @NonNull
+    ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.pollFirst();
+        if(buffer == null)
+            return ByteBuffer.allocateDirect(bufferSize);
+
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns the given buffer to the pool. The buffer must not be used afterwards.
+     * @param buffer
+     */
+    void release(@NonNull ByteBuffer buffer) {
+        if(buffer.capacity() == bufferSize && buffers.size() < maxPooledBuffers)
+            buffers.offerFirst(buffer);
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+}
@@ -0,0 +1,221 @@
+package de.fwinkel.android_stunnel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Ordered ciphers, TLSv1.3 ciphersuites and curves of a Stunnel service, see
+ * {@link StunnelBuilder.ServiceBuilder#cipherProfile(CipherProfile)}.<br/>
+ * Which cipher is fastest depends on the CPU: with AES instructions (ARMv8 crypto extensions, AES-NI) AES-GCM
+ * is faster than ChaCha20-Poly1305, without them ChaCha20-Poly1305 is several times faster than AES-GCM.
+ * {@link #auto()} picks the matching profile for the device.<br/>
+ * All profiles only contain forward secret AEAD ciphers (plus the PSK AEAD ciphers, which are only used by
+ * services with {@link StunnelBuilder.ServiceBuilder#pskSecrets(PreSharedKey...) PSK secrets}).
+ * The order decides which cipher is negotiated when Stunnel is the client; server services only use it
+ * when the server's preference is enabled (<code>options = CIPHER_SERVER_PREFERENCE</code>).
+ */
+public class CipherProfile {
+
+    /**
+     * For CPUs with AES instructions: prefers AES-GCM over ChaCha20-Poly1305.
+     */
+    public static final CipherProfile AES_ACCELERATED = new CipherProfile(true,
+            Arrays.asList(
+                    SSLCipher.ECDHE_ECDSA_AES128_GCM_SHA256,
+                    SSLCipher.ECDHE_RSA_AES128_GCM_SHA256,
+                    SSLCipher.ECDHE_ECDSA_AES256_GCM_SHA384,
+                    SSLCipher.ECDHE_RSA_AES256_GCM_SHA384,
+                    SSLCipher.ECDHE_ECDSA_CHACHA20_POLY1305,
+                    SSLCipher.ECDHE_RSA_CHACHA20_POLY1305,
+                    SSLCipher.DHE_RSA_AES128_GCM_SHA256,
+                    SSLCipher.DHE_RSA_AES256_GCM_SHA384,
+                    SSLCipher.DHE_RSA_CHACHA20_POLY1305,
+                    SSLCipher.DHE_PSK_AES128_GCM_SHA256,
+                    SSLCipher.DHE_PSK_AES256_GCM_SHA384,
+                    SSLCipher.ECDHE_PSK_CHACHA20_POLY1305,
+                    SSLCipher.DHE_PSK_CHACHA20_POLY1305,
+                    SSLCipher.PSK_AES128_GCM_SHA256,
+                    SSLCipher.PSK_AES256_GCM_SHA384,
+                    SSLCipher.PSK_CHACHA20_POLY1305
+            ),
+            Arrays.asList(
+                    TLS1_3CipherSuite.TLS_AES_128_GCM_SHA256,
+                    TLS1_3CipherSuite.TLS_AES_256_GCM_SHA384,
+                    TLS1_3CipherSuite.TLS_CHACHA20_POLY1305_SHA256
+            ));
+
+    /**
+     * For CPUs without AES instructions: prefers ChaCha20-Poly1305 over AES-GCM.
+     */
+    public static final CipherProfile CHACHA20_PREFERRED = new CipherProfile(false,
+            Arrays.asList(
+                    SSLCipher.ECDHE_ECDSA_CHACHA20_POLY1305,
+                    SSLCipher.ECDHE_RSA_CHACHA20_POLY1305,
+                    SSLCipher.ECDHE_ECDSA_AES128_GCM_SHA256,
+                    SSLCipher.ECDHE_RSA_AES128_GCM_SHA256,
+                    SSLCipher.ECDHE_ECDSA_AES256_GCM_SHA384,
+                    SSLCipher.ECDHE_RSA_AES256_GCM_SHA384,
+                    SSLCipher.DHE_RSA_CHACHA20_POLY1305,
+                    SSLCipher.DHE_RSA_AES128_GCM_SHA256,
+                    SSLCipher.DHE_RSA_AES256_GCM_SHA384,
+                    SSLCipher.ECDHE_PSK_CHACHA20_POLY1305,
+                    SSLCipher.DHE_PSK_CHACHA20_POLY1305,
+                    SSLCipher.DHE_PSK_AES128_GCM_SHA256,
+                    SSLCipher.DHE_PSK_AES256_GCM_SHA384,
+                    SSLCipher.PSK_CHACHA20_POLY1305,
+                    SSLCipher.PSK_AES128_GCM_SHA256,
+                    SSLCipher.PSK_AES256_GCM_SHA384
+            ),
+            Arrays.asList(
+                    TLS1_3CipherSuite.TLS_CHACHA20_POLY1305_SHA256,
+                    TLS1_3CipherSuite.TLS_AES_128_GCM_SHA256,
+                    TLS1_3CipherSuite.TLS_AES_256_GCM_SHA384
+            ));
+
+    /**
+     * Curves of all profiles: X25519 is fast in software on every CPU, P-256 has optimized implementations
+     * on common CPUs and is the most widely supported NIST curve.
+     */
+    protected static final List<ECCurve> CURVES = Collections.unmodifiableList(Arrays.asList(
+            ECCurve.X25519,
+            ECCurve.P_256,
+            ECCurve.P_384
+    ));
+
+    protected static final File CPU_INFO = new File("/proc/cpuinfo");
+
+    /**
+     * Result of {@link #auto()}; the CPU does not change while we are running.
+     */
+    @Nullable
+    private static volatile CipherProfile autoProfile;
+
+    protected final boolean aesAccelerated;
+    @NonNull
+    protected final List<SSLCipher> ciphers;
+    @NonNull
+    protected final List<TLS1_3CipherSuite> ciphersuites;
+
+    protected CipherProfile(boolean aesAccelerated, @NonNull List<SSLCipher> ciphers, @NonNull List<TLS1_3CipherSuite> ciphersuites) {
+        this.aesAccelerated = aesAccelerated;
+        this.ciphers = Collections.unmodifiableList(ciphers);
+        this.ciphersuites = Collections.unmodifiableList(ciphersuites);
+    }
+
+    /**
+     * Returns {@link #AES_ACCELERATED} if the CPU supports AES and carry-less multiplication (for GCM)
+     * in hardware, otherwise {@link #CHACHA20_PREFERRED}.<br/>
+     * The CPU's features are read from /proc/cpuinfo ("aes" and "pmull" on ARM, "aes" and "pclmulqdq" on x86).
+     * If they can't be read, x86 CPUs are assumed to support AES-NI and all others are assumed not to support AES.
+     * @return
+     */
+    @NonNull
+    public static CipherProfile auto() {
+        CipherProfile profile = autoProfile;
+        if(profile == null) {
+            Boolean accelerated = readAesSupport(CPU_INFO);
+            if(accelerated == null)
+                accelerated = isX86(System.getProperty("os.arch"));
+
+            profile = accelerated ? AES_ACCELERATED : CHACHA20_PREFERRED;
+            autoProfile = profile;
+        }
+
+        return profile;
+    }
+
+    /**
+     * Returns whether this profile prefers AES-GCM over ChaCha20-Poly1305.
+     * @return
+     */
+    public boolean isAesAccelerated() {
+        return aesAccelerated;
+    }
+
+    /**
+     * Returns the ciphers for TLSv1.2 and below, fastest first.
+     * @return
+     */
+    @NonNull
+    public List<SSLCipher> getCiphers() {
+        return ciphers;
+    }
+
+    /**
+     * Returns the ciphersuites for TLSv1.3, fastest first.
+     * @return
+     */
+    @NonNull
+    public List<TLS1_3CipherSuite> getCiphersuites() {
+        return ciphersuites;
+    }
+
+    /**
+     * Returns the curves for the ECDH key exchange, fastest first.
+     * @return
+     */
+    @NonNull
+    public List<ECCurve> getCurves() {
+        return CURVES;
+    }
+
+    /**
+     * Reads whether the CPU supports AES and carry-less multiplication from the feature flags in the given cpuinfo file.
+     * @param cpuInfo
+     * @return Null if the file does not contain feature flags.
+     */
+    @Nullable
+    protected static Boolean readAesSupport(@NonNull File cpuInfo) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(cpuInfo));
+            String line;
+            while((line = reader.readLine()) != null) {
+                //ARM: "Features	: fp asimd aes pmull sha1 ...", x86: "flags		: fpu ... pclmulqdq ... aes ..."
+                int separator = line.indexOf(':');
+                if(separator < 0)
+                    continue;
+                String key = line.substring(0, separator).trim();
+                if(!key.equals("Features") && !key.equals("flags"))
+                    continue;
+
+                List<String> features = Arrays.asList(line.substring(separator + 1).trim().split("\\s+"));
+                return features.contains("aes") && (features.contains("pmull") || features.contains("pclmulqdq"));
+            }
+
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+        finally {
+            Util.close(reader);
+        }
+    }
+
+    /**
+     * @param arch Value of the os.arch system property.
+     * @return
+     */
+    protected static boolean isX86(@Nullable String arch) {
+        return arch != null && (arch.equals("x86") || arch.equals("x86_64") || arch.equals("amd64")
+                || arch.matches("i[3-6]86"));
+    }
+
+    @Override
+    public String toString() {
+        return "CipherProfile{" +
+                "aesAccelerated=" + aesAccelerated +
+                ", ciphers=" + new StunnelList<>(ciphers).toStunnelValue() +
+                ", ciphersuites=" + new StunnelList<>(ciphersuites).toStunnelValue() +
+                ", curves=" + new StunnelList<>(CURVES).toStunnelValue() +
+                '}';
+    }
+}
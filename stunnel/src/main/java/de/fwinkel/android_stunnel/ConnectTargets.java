@@ -0,0 +1,104 @@
+package de.fwinkel.android_stunnel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Ordered list of remote addresses a service connects to, plus the strategy that is used to choose
+ * between them. See {@link StunnelBuilder.ServiceBuilder#connect(ConnectTargets)}.<br/>
+ * The health of each target can be watched via {@link ServiceMetrics#getTargets()}.
+ */
+public class ConnectTargets {
+
+    @NonNull
+    protected final List<String> targets = new ArrayList<>();
+    @Nullable
+    protected Failover failover;
+    @Nullable
+    protected Boolean retry;
+
+    /**
+     * Adds a target. Order matters for {@link Failover#PRIO}.
+     * @param host Null or empty for localhost.
+     * @param port
+     * @return
+     */
+    public ConnectTargets add(@Nullable String host, int port) {
+        if(port <= 0 || port > 65535)
+            throw new IllegalArgumentException("Invalid port: " + port);
+
+        String value = "";
+        if(host != null && !host.isEmpty())
+            value += host + ":";
+        value += port;
+
+        targets.add(value);
+        return this;
+    }
+
+    /**
+     * Adds a target on localhost.
+     * @param port
+     * @return
+     */
+    public ConnectTargets add(int port) {
+        return add(null, port);
+    }
+
+    /**
+     * <pre>{@code
+     *
+
+    Failover strategy for multiple "connect" targets.
+
+    default: prio (for delayed resolver or for multiple connect options), rr (otherwise)
+
+     * }</pre>
+     * @param failover
+     * @return
+     */
+    public ConnectTargets failover(@NonNull Failover failover) {
+        this.failover = failover;
+        return this;
+    }
+
+    /**
+     * <pre>{@code
+     *
+
+    reconnect a connect+exec section after it was disconnected
+
+    default: no
+
+     * }</pre>
+     * @param retry
+     * @return
+     */
+    public ConnectTargets retry(boolean retry) {
+        this.retry = retry;
+        return this;
+    }
+
+    /**
+     * Returns the targets as they are written into the config file ("host:port" or "port").
+     * @return
+     */
+    @NonNull
+    public List<String> getTargets() {
+        return Collections.unmodifiableList(targets);
+    }
+
+    @Nullable
+    public Failover getFailover() {
+        return failover;
+    }
+
+    @Nullable
+    public Boolean getRetry() {
+        return retry;
+    }
+}
@@ -0,0 +1,23 @@
+package de.fwinkel.android_stunnel;
+
+/**
+ * Curves for the ECDH key exchange, see {@link StunnelBuilder.ServiceBuilder#curves(ECCurve...)}.
+ */
+public enum ECCurve implements StunnelValue {
+    X25519("X25519"),
+    X448("X448"),
+    P_256("P-256"),
+    P_384("P-384"),
+    P_521("P-521");
+
+    public final String value;
+
+    ECCurve(String value) {
+        this.value = value;
+    }
+
+    @Override
+    public String toStunnelValue() {
+        return value;
+    }
+}
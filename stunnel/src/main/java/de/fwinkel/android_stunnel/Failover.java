@@ -0,0 +1,27 @@
+package de.fwinkel.android_stunnel;
+
+/**
+ * Strategy for choosing one of multiple {@link ConnectTargets}.
+ */
+public enum Failover implements StunnelValue {
+    /**
+     * Round robin: spreads connections across all targets.
+     */
+    RR("rr"),
+    /**
+     * Priority: always tries the targets in the order they have been added and
+     * uses the first one that accepts the connection.
+     */
+    PRIO("prio");
+
+    public final String value;
+
+    Failover(String value) {
+        this.value = value;
+    }
+
+    @Override
+    public String toStunnelValue() {
+        return value;
+    }
+}
@@ -0,0 +1,129 @@
+package de.fwinkel.android_stunnel;
+
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Immutable snapshot of a latency distribution, see {@link ServiceMetrics#getConnectLatency()},
+ * {@link ServiceMetrics#getHandshakeLatency()} and {@link ServiceMetrics#getConnectionDuration()}.<br/>
+ * Latencies are measured between the arrival of Stunnel's log lines, with microsecond resolution.
+ * Percentiles are reported as the upper bound of the histogram bucket they fall into and are accurate
+ * to within 12.5%; {@link #getMax(TimeUnit)} is exact.<br/>
+ * To look at the latencies of a certain period only (e.g. after changing the ciphers via
+ * {@link Stunnel#reconfigure(StunnelBuilder)}), take a snapshot at its start and use {@link #since(LatencyHistogram)}.
+ */
+public class LatencyHistogram {
+
+    @NonNull
+    private final long[] buckets;
+    private final long count;
+    private final long sumMicros;
+    private final long maxMicros;
+
+    LatencyHistogram(@NonNull long[] buckets, long count, long sumMicros, long maxMicros) {
+        this.buckets = buckets;
+        this.count = count;
+        this.sumMicros = sumMicros;
+        this.maxMicros = maxMicros;
+    }
+
+    /**
+     * Returns the number of recorded values.
+     * @return
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the value below which the given percentage of recorded values fall.
+     * @param percentile Between 0 and 100.
+     * @param unit
+     * @return 0 if no values have been recorded.
+     */
+    public long getPercentile(double percentile, @NonNull TimeUnit unit) {
+        if(percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("percentile must be between 0 and 100: " + percentile);
+        if(count == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if(seen >= rank)
+                return unit.convert(Math.min(LatencyRecorder.getBucketUpperBound(i), maxMicros), TimeUnit.MICROSECONDS);
+        }
+
+        return getMax(unit);
+    }
+
+    /**
+     * Returns the median.
+     * @param unit
+     * @return
+     */
+    public long getP50(@NonNull TimeUnit unit) {
+        return getPercentile(50, unit);
+    }
+
+    /**
+     * Returns the 99th percentile.
+     * @param unit
+     * @return
+     */
+    public long getP99(@NonNull TimeUnit unit) {
+        return getPercentile(99, unit);
+    }
+
+    /**
+     * Returns the highest recorded value.
+     * @param unit
+     * @return
+     */
+    public long getMax(@NonNull TimeUnit unit) {
+        return unit.convert(maxMicros, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Returns the average of all recorded values.
+     * @param unit
+     * @return
+     */
+    public long getMean(@NonNull TimeUnit unit) {
+        return count == 0 ? 0 : unit.convert(sumMicros / count, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Returns the values that have been recorded after the given, earlier snapshot of the same histogram.<br/>
+     * The maximum of the result is the upper bound of its highest bucket (but not more than this snapshot's
+     * maximum), since the exact maximum of a period is not recorded.
+     * @param earlier
+     * @return
+     */
+    @NonNull
+    public LatencyHistogram since(@NonNull LatencyHistogram earlier) {
+        long[] buckets = new long[this.buckets.length];
+        long count = 0;
+        long maxMicros = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = Math.max(0, this.buckets[i] - earlier.buckets[i]);
+            count += buckets[i];
+            if(buckets[i] > 0)
+                maxMicros = Math.min(LatencyRecorder.getBucketUpperBound(i), this.maxMicros);
+        }
+
+        return new LatencyHistogram(buckets, count, Math.max(0, sumMicros - earlier.sumMicros), maxMicros);
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram{" +
+                "count=" + count +
+                ", p50=" + getP50(TimeUnit.MICROSECONDS) + "us" +
+                ", p99=" + getP99(TimeUnit.MICROSECONDS) + "us" +
+                ", max=" + maxMicros + "us" +
+                '}';
+    }
+}
@@ -0,0 +1,85 @@
+package de.fwinkel.android_stunnel;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size, log-linear latency histogram that is updated by the log pump and can be read from any thread
+ * via {@link #getHistogram()}.<br/>
+ * Values are recorded in microseconds. Each power of two is split into {@link #SUB_BUCKETS} buckets, so a
+ * bucket's width is at most 1/8th of its lower bound and percentiles are accurate to within 12.5%.
+ * Values above {@link #MAX_MICROS} (about 19 hours) are counted in the last bucket.
+ */
+class LatencyRecorder {
+
+    protected static final int SUB_BUCKET_BITS = 3;
+    protected static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * Highest power of two whose range has its own buckets.
+     */
+    protected static final int MAX_EXPONENT = 36;
+    protected static final long MAX_MICROS = (1L << (MAX_EXPONENT + 1)) - 1;
+    protected static final int BUCKET_COUNT = getBucket(MAX_MICROS) + 1;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a single value.
+     * @param nanos Negative values are recorded as 0.
+     */
+    void record(long nanos) {
+        long micros = Math.min(Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos)), MAX_MICROS);
+
+        buckets.incrementAndGet(getBucket(micros));
+        sum.addAndGet(micros);
+        long currentMax;
+        while(micros > (currentMax = max.get()) && !max.compareAndSet(currentMax, micros));
+    }
+
+    /**
+     * Returns a snapshot of all values recorded so far. Values that are recorded concurrently may or may not
+     * be part of the snapshot.
+     * @return
+     */
+    LatencyHistogram getHistogram() {
+        long[] buckets = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = this.buckets.get(i);
+            count += buckets[i];
+        }
+
+        return new LatencyHistogram(buckets, count, sum.get(), max.get());
+    }
+
+    /**
+     * Returns the index of the bucket that holds the given value.
+     * @param micros
+     * @return
+     */
+    protected static int getBucket(long micros) {
+        if(micros < SUB_BUCKETS)
+            return (int) micros;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((micros >> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * Returns the highest value that falls into the given bucket.
+     * @param bucket
+     * @return
+     */
+    protected static long getBucketUpperBound(int bucket) {
+        if(bucket < SUB_BUCKETS)
+            return bucket;
+
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+}
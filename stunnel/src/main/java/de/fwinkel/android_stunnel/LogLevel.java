@@ -0,0 +1,53 @@
+package de.fwinkel.android_stunnel;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Syslog level of a Stunnel log line and Stunnel's log verbosity, see {@link StunnelBuilder#logLevel(LogLevel)}.
+ */
+public enum LogLevel implements StunnelValue {
+    EMERGENCY("emerg", 0),
+    ALERT("alert", 1),
+    CRITICAL("crit", 2),
+    ERROR("err", 3),
+    WARNING("warning", 4),
+    /**
+     * Stunnel's default. Connection events, which {@link Stunnel#getMetrics()} are collected from,
+     * are logged at this level.
+     */
+    NOTICE("notice", 5),
+    INFO("info", 6),
+    DEBUG("debug", 7);
+
+    public final String value;
+    public final int level;
+
+    LogLevel(String value, int level) {
+        this.value = value;
+        this.level = level;
+    }
+
+    @Override
+    public String toStunnelValue() {
+        return value;
+    }
+
+    /**
+     * Returns the level of a Stunnel log line ("... LOG5[id]: message").
+     * @param line
+     * @return {@link #NOTICE} if the line has no level, e.g. because it has not been written by Stunnel's logger.
+     */
+    @NonNull
+    static LogLevel fromLine(@NonNull CharSequence line) {
+        int levelStart = Util.indexOf(line, "LOG", 0);
+        if(levelStart >= 0 && levelStart + 3 < line.length()) {
+            int level = line.charAt(levelStart + 3) - '0';
+            for (LogLevel logLevel : values()) {
+                if(logLevel.level == level)
+                    return logLevel;
+            }
+        }
+
+        return NOTICE;
+    }
+}
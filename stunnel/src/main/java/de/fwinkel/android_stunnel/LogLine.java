@@ -0,0 +1,50 @@
+package de.fwinkel.android_stunnel;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Reusable {@link CharSequence} view of one line in the buffer of a {@link LogLineReader}.<br/>
+ * The content is only valid until the next line is read. {@link #toString()} and {@link #subSequence(int, int)}
+ * copy the characters into a new {@link String}.
+ */
+class LogLine implements CharSequence {
+
+    @NonNull
+    private char[] chars = new char[0];
+    private int offset;
+    private int length;
+
+    void set(@NonNull char[] chars, int offset, int length) {
+        this.chars = chars;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if(index < 0 || index >= length)
+            throw new IndexOutOfBoundsException("index: " + index + ", length: " + length);
+
+        return chars[offset + index];
+    }
+
+    @NonNull
+    @Override
+    public String subSequence(int start, int end) {
+        if(start < 0 || end > length || start > end)
+            throw new IndexOutOfBoundsException("start: " + start + ", end: " + end + ", length: " + length);
+
+        return new String(chars, offset + start, end - start);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return new String(chars, offset, length);
+    }
+}
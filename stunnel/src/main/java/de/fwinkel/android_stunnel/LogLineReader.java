@@ -0,0 +1,210 @@
+package de.fwinkel.android_stunnel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Splits Stunnel's output into lines without allocating a {@link String} per line (unlike
+ * {@link java.io.BufferedReader#readLine()}): bytes are decoded into a reusable char buffer and each line is
+ * handed out as a {@link LogLine} view of that buffer.<br/>
+ * Not thread-safe: only used by the log pump, except for {@link #isWaiting()} and {@link #awaitWaiting(long, TimeUnit)}.
+ */
+class LogLineReader {
+
+    protected static final int BUFFER_SIZE = 8 * 1024;
+    /**
+     * Lines longer than this are split.
+     */
+    protected static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    @NonNull
+    private final InputStream in;
+    @NonNull
+    private final CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    /**
+     * Bytes that have been read but not decoded yet. In write mode.
+     */
+    @NonNull
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+    /**
+     * Decoded characters. In write mode: [{@link #lineStart}, position) have not been handed out yet.
+     */
+    @NonNull
+    private CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    private int lineStart;
+    /**
+     * Index up to which the current line has been searched for its end.
+     */
+    private int scanned;
+    /**
+     * Whether the stream has ended.
+     */
+    private boolean inputClosed;
+    /**
+     * Whether all input has been decoded after the stream has ended.
+     */
+    private boolean endOfInput;
+    /**
+     * Whether all complete lines have been handed out and no more input is available. Read by other threads;
+     * the reader's monitor is notified when it becomes true.
+     */
+    private volatile boolean waiting;
+
+    LogLineReader(@NonNull InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads the next line into the given view, which stays valid until the next call.
+     * @param line
+     * @return False at the end of the input.
+     * @throws IOException
+     */
+    boolean readLine(@NonNull LogLine line) throws IOException {
+        while(true) {
+            char[] array = chars.array();
+            int end = chars.position();
+            for (int i = scanned; i < end; i++) {
+                if(array[i] == '\n') {
+                    emit(line, i, i + 1);
+                    return true;
+                }
+            }
+            scanned = end;
+
+            if(endOfInput) {
+                if(lineStart >= end) {
+                    setWaiting();
+                    return false;
+                }
+
+                emit(line, end, end);
+                return true;
+            }
+
+            makeRoom();
+            if(!chars.hasRemaining()) {
+                //line too long: hand out what we have
+                emit(line, end, end);
+                return true;
+            }
+
+            try {
+                fill();
+            }
+            catch (IOException e) {
+                //no more input either
+                setWaiting();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Returns whether every complete line that has been written so far has been handed out
+     * and the reader is waiting for more input. Safe to call from any thread.
+     * @return
+     */
+    boolean isWaiting() {
+        return waiting;
+    }
+
+    /**
+     * Waits until {@link #isWaiting()} returns true. Safe to call from any thread.
+     * @param timeout
+     * @param unit
+     * @return False if the timeout elapsed first.
+     * @throws InterruptedException
+     */
+    synchronized boolean awaitWaiting(long timeout, @NonNull TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while(!waiting) {
+            long remaining = deadline - System.nanoTime();
+            if(remaining <= 0)
+                return false;
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+
+        return true;
+    }
+
+    private synchronized void setWaiting() {
+        waiting = true;
+        notifyAll();
+    }
+
+    /**
+     * Hands out [{@link #lineStart}, lineEnd) without a trailing '\r' and continues at next.
+     */
+    private void emit(@NonNull LogLine line, int lineEnd, int next) {
+        char[] array = chars.array();
+        int length = lineEnd - lineStart;
+        if(length > 0 && array[lineStart + length - 1] == '\r')
+            length--;
+
+        line.set(array, lineStart, length);
+        lineStart = next;
+        scanned = next;
+    }
+
+    /**
+     * Moves the current line to the start of {@link #chars} and grows it if the line fills it completely.
+     */
+    private void makeRoom() {
+        char[] array = chars.array();
+        int pending = chars.position() - lineStart;
+        if(lineStart > 0) {
+            System.arraycopy(array, lineStart, array, 0, pending);
+            chars.position(pending);
+            scanned -= lineStart;
+            lineStart = 0;
+        }
+
+        if(!chars.hasRemaining() && chars.capacity() < MAX_LINE_LENGTH) {
+            CharBuffer grown = CharBuffer.allocate(Math.min(chars.capacity() * 2, MAX_LINE_LENGTH));
+            grown.put(array, 0, pending);
+            chars = grown;
+        }
+    }
+
+    /**
+     * Reads and decodes more input into {@link #chars}.
+     * @throws IOException
+     */
+    private void fill() throws IOException {
+        if(!inputClosed) {
+            if(in.available() <= 0)
+                setWaiting();
+            int read;
+            try {
+                read = in.read(bytes.array(), bytes.position(), bytes.remaining());
+            }
+            finally {
+                waiting = false;
+            }
+            if(read < 0)
+                inputClosed = true;
+            else
+                bytes.position(bytes.position() + read);
+        }
+
+        bytes.flip();
+        CoderResult result = decoder.decode(bytes, chars, inputClosed);
+        bytes.compact();
+
+        //at the end once everything that has been read is decoded
+        if(inputClosed && !result.isOverflow() && decoder.flush(chars).isUnderflow())
+            endOfInput = true;
+    }
+}
@@ -0,0 +1,132 @@
+package de.fwinkel.android_stunnel;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Limits how many log lines per second and category are forwarded, see {@link StunnelBuilder#logRateLimit(int)}.<br/>
+ * The category of a line is its level plus the beginning of its message with all digits removed, so that
+ * e.g. all "Connection closed: N byte(s) sent to TLS, M byte(s) sent to socket" lines share one category
+ * regardless of their connection id and byte counts. Warnings and errors are never limited.<br/>
+ * Categories are counted in a fixed-size table that is reset every second, so checking a line does not allocate.
+ * Not thread-safe: only used by the log pump.
+ */
+class LogRateLimiter {
+
+    /**
+     * Number of message characters that make up a line's category.
+     */
+    protected static final int CATEGORY_LENGTH = 32;
+    /**
+     * Maximum number of categories per second; lines of further categories are not limited.
+     */
+    protected static final int MAX_CATEGORIES = 64;
+    protected static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final int linesPerSecond;
+
+    private final int[] categories = new int[MAX_CATEGORIES];
+    private final int[] counts = new int[MAX_CATEGORIES];
+    private int usedCategories;
+    private long windowStart;
+    /**
+     * Number of lines that have been suppressed in the current window.
+     */
+    private int suppressed;
+    /**
+     * Number of lines that have been suppressed in previous windows and not been reported
+     * via {@link #takeSuppressed()} yet.
+     */
+    private int unreported;
+
+    /**
+     * @param linesPerSecond Maximum number of lines per second and category.
+     */
+    LogRateLimiter(int linesPerSecond) {
+        this.linesPerSecond = linesPerSecond;
+    }
+
+    /**
+     * Returns whether the given line should be forwarded.
+     * @param line
+     * @param level
+     * @param now {@link System#nanoTime()}
+     * @return
+     */
+    boolean accept(@NonNull CharSequence line, @NonNull LogLevel level, long now) {
+        if(now - windowStart >= WINDOW_NANOS) {
+            windowStart = now;
+            unreported += suppressed;
+            suppressed = 0;
+            Arrays.fill(counts, 0);
+            usedCategories = 0;
+        }
+
+        if(level.level <= LogLevel.WARNING.level)
+            return true;
+
+        int category = getCategory(line, level);
+        int index = (category & 0x7fffffff) % MAX_CATEGORIES;
+        for (int probe = 0; probe < MAX_CATEGORIES; probe++) {
+            int slot = (index + probe) % MAX_CATEGORIES;
+            if(counts[slot] == 0) {
+                if(usedCategories >= MAX_CATEGORIES)
+                    return true;
+
+                categories[slot] = category;
+                counts[slot] = 1;
+                usedCategories++;
+                return true;
+            }
+            if(categories[slot] == category) {
+                if(counts[slot] >= linesPerSecond) {
+                    suppressed++;
+                    return false;
+                }
+
+                counts[slot]++;
+                return true;
+            }
+        }
+
+        //table is full
+        return true;
+    }
+
+    /**
+     * Returns the number of lines that have been suppressed in previous windows since the last call,
+     * so that suppressed lines are reported at most once per second.
+     * @return
+     */
+    int takeSuppressed() {
+        int unreported = this.unreported;
+        this.unreported = 0;
+        return unreported;
+    }
+
+    /**
+     * Returns a hash of the line's level and the first {@link #CATEGORY_LENGTH} non-digit characters of its message.
+     * @param line
+     * @param level
+     * @return
+     */
+    protected static int getCategory(@NonNull CharSequence line, @NonNull LogLevel level) {
+        int messageStart = Util.indexOf(line, "]: ", 0);
+        messageStart = messageStart < 0 ? 0 : messageStart + 3;
+
+        int hash = level.level;
+        int length = 0;
+        for (int i = messageStart; i < line.length() && length < CATEGORY_LENGTH; i++) {
+            char c = line.charAt(i);
+            if(c >= '0' && c <= '9')
+                continue;
+
+            hash = 31 * hash + c;
+            length++;
+        }
+
+        return hash;
+    }
+}
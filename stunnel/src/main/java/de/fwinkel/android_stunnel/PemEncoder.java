@@ -0,0 +1,126 @@
+package de.fwinkel.android_stunnel;
+
+import java.security.PrivateKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Converts certificates and private keys into the PEM files Stunnel reads.<br/>
+ * Results are cached for as long as the certificate or key object is in use, so that configs built
+ * repeatedly from the same objects (e.g. on every start) do not encode them again.
+ */
+class PemEncoder {
+
+    protected static final int LINE_LENGTH = 64;
+    protected static final String TYPE_CERTIFICATE = "CERTIFICATE";
+    protected static final String TYPE_PRIVATE_KEY = "PRIVATE KEY";
+    protected static final String FORMAT_PKCS8 = "PKCS#8";
+
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    /**
+     * Certificate or key -> its PEM encoding. Guarded by itself.
+     */
+    private static final Map<Object, byte[]> cache = new WeakHashMap<>();
+
+    /**
+     * Returns the PEM encoding of the given certificate. The returned array must not be modified.
+     * @param certificate
+     * @return
+     * @throws CertificateEncodingException
+     */
+    @NonNull
+    static byte[] encode(@NonNull X509Certificate certificate) throws CertificateEncodingException {
+        byte[] pem = getCached(certificate);
+        if(pem == null) {
+            pem = encode(TYPE_CERTIFICATE, certificate.getEncoded());
+            putCached(certificate, pem);
+        }
+
+        return pem;
+    }
+
+    /**
+     * Returns the unencrypted PKCS#8 PEM encoding of the given key. The returned array must not be modified.
+     * @param key
+     * @return
+     * @throws IllegalArgumentException When the key can't be exported, e.g. because it is stored in
+     * the Android Keystore.
+     */
+    @NonNull
+    static byte[] encode(@NonNull PrivateKey key) {
+        byte[] pem = getCached(key);
+        if(pem == null) {
+            byte[] encoded = key.getEncoded();
+            if(encoded == null || !FORMAT_PKCS8.equals(key.getFormat()))
+                throw new IllegalArgumentException("Private key can't be exported (format: " + key.getFormat() + "). " +
+                        "Keys of the Android Keystore can't be used by Stunnel");
+
+            pem = encode(TYPE_PRIVATE_KEY, encoded);
+            putCached(key, pem);
+        }
+
+        return pem;
+    }
+
+    /**
+     * Encodes the given DER data as a PEM block of the given type.
+     * @param type E.g. "CERTIFICATE"
+     * @param der
+     * @return
+     */
+    @NonNull
+    protected static byte[] encode(@NonNull String type, @NonNull byte[] der) {
+        StringBuilder pem = new StringBuilder(der.length * 4 / 3 + 100);
+        pem.append("-----BEGIN ").append(type).append("-----\n");
+
+        int lineLength = 0;
+        for (int i = 0; i < der.length; i += 3) {
+            int remaining = der.length - i;
+            int block = (der[i] & 0xff) << 16;
+            if(remaining > 1)
+                block |= (der[i + 1] & 0xff) << 8;
+            if(remaining > 2)
+                block |= der[i + 2] & 0xff;
+
+            pem.append(BASE64[(block >> 18) & 0x3f]);
+            pem.append(BASE64[(block >> 12) & 0x3f]);
+            pem.append(remaining > 1 ? BASE64[(block >> 6) & 0x3f] : '=');
+            pem.append(remaining > 2 ? BASE64[block & 0x3f] : '=');
+
+            lineLength += 4;
+            if(lineLength == LINE_LENGTH) {
+                pem.append('\n');
+                lineLength = 0;
+            }
+        }
+        if(lineLength > 0)
+            pem.append('\n');
+
+        pem.append("-----END ").append(type).append("-----\n");
+
+        //PEM is plain ASCII
+        byte[] bytes = new byte[pem.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) pem.charAt(i);
+        }
+
+        return bytes;
+    }
+
+    private static byte[] getCached(@NonNull Object key) {
+        synchronized (cache) {
+            return cache.get(key);
+        }
+    }
+
+    private static void putCached(@NonNull Object key, @NonNull byte[] pem) {
+        synchronized (cache) {
+            cache.put(key, pem);
+        }
+    }
+}
@@ -0,0 +1,553 @@
+package de.fwinkel.android_stunnel;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.net.ssl.SSLEngine;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Stunnel configuration as understood by the {@link StunnelBackend#SSL_ENGINE SSLEngine backend}.<br/>
+ * Parses the same config file that {@link StunnelBuilder} writes for the Stunnel binary. Global options other than
+ * "debug" are ignored; service options that the backend does not implement are ignored with a warning, except for
+ * options whose absence would change the security of a service.
+ */
+class SSLEngineConfig {
+
+    /**
+     * Protocol versions in ascending order, as named by Stunnel and JSSE.
+     */
+    protected static final List<String> PROTOCOLS = Arrays.asList("SSLv3", "TLSv1", "TLSv1.1", "TLSv1.2", "TLSv1.3");
+
+    protected static final long DEFAULT_CONNECT_TIMEOUT_SECONDS = 10;
+    protected static final long DEFAULT_IDLE_TIMEOUT_SECONDS = 43200;
+
+    /**
+     * One remote address of a service's connect option.
+     */
+    static class Target {
+        /**
+         * Host name as given in the config, used for SNI and session resumption.
+         */
+        @NonNull
+        final String host;
+        @NonNull
+        final InetSocketAddress address;
+
+        Target(@NonNull String host, @NonNull InetSocketAddress address) {
+            this.host = host;
+            this.address = address;
+        }
+
+        /**
+         * Returns the address the way Stunnel logs it, e.g. "127.0.0.1:443".
+         * @return
+         */
+        @NonNull
+        String getLogAddress() {
+            return address.getAddress().getHostAddress() + ":" + address.getPort();
+        }
+    }
+
+    static class Service {
+        @NonNull
+        final String name;
+
+        @Nullable
+        String acceptHost;
+        int acceptPort = -1;
+        /**
+         * Raw "host:port" values of the connect options.
+         */
+        @NonNull
+        final List<String> connect = new ArrayList<>();
+        boolean client;
+        boolean delay;
+        boolean roundRobin = true;
+        boolean psk;
+        @Nullable
+        String ciphers;
+        @Nullable
+        String ciphersuites;
+        @Nullable
+        String sslVersion;
+        @Nullable
+        String sslVersionMin;
+        @Nullable
+        String sslVersionMax;
+        long connectTimeoutSeconds = DEFAULT_CONNECT_TIMEOUT_SECONDS;
+        long idleTimeoutSeconds = DEFAULT_IDLE_TIMEOUT_SECONDS;
+        /**
+         * Host name the server certificate has to match (client mode), from the checkHost option.
+         * Null to check against the connect host.
+         */
+        @Nullable
+        String checkHost;
+        /**
+         * Server name to send via SNI (client mode), from the sni option. Null to send the connect host,
+         * empty to disable SNI.
+         */
+        @Nullable
+        String sni;
+
+        /**
+         * Resolved {@link #connect} addresses. Null in delayed resolver mode.
+         */
+        @Nullable
+        List<Target> targets;
+        /**
+         * Protocols to enable or null to keep the defaults.
+         */
+        @Nullable
+        String[] protocols;
+        /**
+         * Cipher suites to enable or null to keep the defaults.
+         */
+        @Nullable
+        String[] cipherSuites;
+        /**
+         * Index of the first target of the next connection when {@link #roundRobin} is used.
+         */
+        int nextTarget;
+
+        Service(@NonNull String name) {
+            this.name = name;
+        }
+
+        /**
+         * Returns the addresses to connect to, resolving them if necessary (delayed resolver mode).
+         * @return
+         * @throws UnknownHostException
+         */
+        @NonNull
+        List<Target> getTargets() throws UnknownHostException {
+            if(targets != null)
+                return targets;
+
+            return resolve(connect);
+        }
+
+        /**
+         * Returns the host name the server's certificate is verified against when connecting to the given target.
+         * @param target
+         * @return
+         */
+        @NonNull
+        String getVerifiedHost(@NonNull Target target) {
+            return checkHost != null ? checkHost : target.host;
+        }
+
+        /**
+         * Returns the server name to send via SNI when connecting to the given target.
+         * @param target
+         * @return Null if no server name is sent.
+         */
+        @Nullable
+        String getServerName(@NonNull Target target) {
+            String serverName = sni != null ? sni : target.host;
+            if(serverName.isEmpty() || isIpAddress(serverName))
+                //SNI only carries host names
+                return null;
+            return serverName;
+        }
+
+        /**
+         * Checks the service's options against what the given engine supports and resolves the connect targets.
+         * @param probe An engine of the {@link javax.net.ssl.SSLContext} that is used for the service's connections.
+         * @param pskSupported Whether the {@link javax.net.ssl.SSLContext} has been provided by the user,
+         *                     who is responsible for PSK support in that case.
+         * @param log
+         * @throws IOException When the service can't be run as configured.
+         */
+        void prepare(@NonNull SSLEngine probe, boolean pskSupported, @NonNull SSLEngineTunnel.Log log) throws IOException {
+            if(acceptPort < 0)
+                throw new IOException("Service [" + name + "]: accept is required");
+            if(connect.isEmpty())
+                throw new IOException("Service [" + name + "]: connect is required");
+            if(!client && (checkHost != null || sni != null))
+                log.log(4, SSLEngineTunnel.ID_GLOBAL, "Service [" + name + "]: checkHost and sni are only supported in client mode by the SSLEngine backend, ignored");
+            if(psk && !pskSupported)
+                throw new IOException("Service [" + name + "]: PSK requires an SSLContext with PSK support, see StunnelBuilder#sslContext");
+
+            protocols = getProtocols(probe.getSupportedProtocols());
+            cipherSuites = getCipherSuites(probe, log);
+
+            if(!delay) {
+                try {
+                    targets = resolve(connect);
+                } catch (UnknownHostException e) {
+                    //same as Stunnel: resolve on each connect instead
+                    log.log(4, SSLEngineTunnel.ID_GLOBAL, "Service [" + name + "]: cannot resolve " + e.getMessage() + ", delayed resolver mode engaged");
+                }
+            }
+        }
+
+        @Nullable
+        private String[] getProtocols(@NonNull String[] supported) throws IOException {
+            if(sslVersion == null && sslVersionMin == null && sslVersionMax == null)
+                return null;
+
+            Set<String> supportedSet = new LinkedHashSet<>(Arrays.asList(supported));
+            int min = 0;
+            int max = PROTOCOLS.size() - 1;
+            if(sslVersion != null && !sslVersion.equalsIgnoreCase(SSLVersion.ALL.value)) {
+                min = max = indexOfProtocol(sslVersion);
+            }
+            else {
+                if(sslVersionMin != null && !sslVersionMin.equalsIgnoreCase(SSLVersion.ALL.value))
+                    min = indexOfProtocol(sslVersionMin);
+                if(sslVersionMax != null && !sslVersionMax.equalsIgnoreCase(SSLVersion.ALL.value))
+                    max = indexOfProtocol(sslVersionMax);
+            }
+
+            List<String> protocols = new ArrayList<>();
+            for (int i = min; i <= max; i++) {
+                if(supportedSet.contains(PROTOCOLS.get(i)))
+                    protocols.add(PROTOCOLS.get(i));
+            }
+            if(protocols.isEmpty())
+                throw new IOException("Service [" + name + "]: none of the configured protocol versions is supported");
+
+            return protocols.toArray(new String[0]);
+        }
+
+        private int indexOfProtocol(@NonNull String protocol) throws IOException {
+            int index = PROTOCOLS.indexOf(protocol);
+            if(index < 0)
+                throw new IOException("Service [" + name + "]: unsupported protocol version: " + protocol);
+
+            return index;
+        }
+
+        /**
+         * Combines {@link #ciphers} (TLSv1.2 and below) and {@link #ciphersuites} (TLSv1.3) into JSSE cipher suite names.
+         * Each one keeps the engine's defaults when it is not set, same as with Stunnel.
+         * @param probe
+         * @param log
+         * @return
+         * @throws IOException
+         */
+        @Nullable
+        private String[] getCipherSuites(@NonNull SSLEngine probe, @NonNull SSLEngineTunnel.Log log) throws IOException {
+            if(ciphers == null && ciphersuites == null)
+                return null;
+
+            Set<String> supported = new LinkedHashSet<>(Arrays.asList(probe.getSupportedCipherSuites()));
+            Set<String> suites = new LinkedHashSet<>();
+
+            if(ciphers != null) {
+                for (String cipher : ciphers.split(":")) {
+                    String suite = toJsseCipherSuite(cipher);
+                    if(suite == null || !supported.contains(suite))
+                        log.log(4, SSLEngineTunnel.ID_GLOBAL, "Service [" + name + "]: cipher not supported by the SSLEngine backend: " + cipher);
+                    else
+                        suites.add(suite);
+                }
+            }
+            else {
+                for (String suite : probe.getEnabledCipherSuites()) {
+                    if(!isTls13CipherSuite(suite))
+                        suites.add(suite);
+                }
+            }
+
+            if(ciphersuites != null) {
+                for (String suite : ciphersuites.split(":")) {
+                    if(!supported.contains(suite))
+                        log.log(4, SSLEngineTunnel.ID_GLOBAL, "Service [" + name + "]: ciphersuite not supported by the SSLEngine backend: " + suite);
+                    else
+                        suites.add(suite);
+                }
+            }
+            else {
+                for (String suite : probe.getEnabledCipherSuites()) {
+                    if(isTls13CipherSuite(suite))
+                        suites.add(suite);
+                }
+            }
+
+            if(suites.isEmpty())
+                throw new IOException("Service [" + name + "]: none of the configured ciphers is supported");
+
+            return suites.toArray(new String[0]);
+        }
+    }
+
+    @NonNull
+    final List<Service> services;
+    /**
+     * Highest syslog level that is logged, from the global "debug" option.
+     */
+    final int debugLevel;
+
+    protected SSLEngineConfig(@NonNull List<Service> services, int debugLevel) {
+        this.services = services;
+        this.debugLevel = debugLevel;
+    }
+
+    /**
+     * Parses a Stunnel config file.
+     * @param reader
+     * @param log Receives warnings about ignored options.
+     * @return
+     * @throws IOException When reading fails or the config contains options that can't be ignored.
+     */
+    @NonNull
+    static SSLEngineConfig parse(@NonNull BufferedReader reader, @NonNull SSLEngineTunnel.Log log) throws IOException {
+        List<Service> services = new ArrayList<>();
+        Service service = null;
+        int debugLevel = LogLevel.NOTICE.level;
+
+        String line;
+        while((line = reader.readLine()) != null) {
+            line = line.replace("\uFEFF", "").trim();
+            if(line.isEmpty() || line.startsWith(";") || line.startsWith("#"))
+                continue;
+
+            if(line.startsWith("[") && line.endsWith("]")) {
+                service = new Service(line.substring(1, line.length() - 1));
+                services.add(service);
+                continue;
+            }
+
+            int separator = line.indexOf('=');
+            if(separator < 0)
+                throw new IOException("Invalid config line: " + line);
+            String key = line.substring(0, separator).trim().toLowerCase(Locale.US);
+            String value = line.substring(separator + 1).trim();
+
+            if(service == null) {
+                if(key.equals("debug"))
+                    debugLevel = parseDebugLevel(value, log);
+                //other global options only affect the Stunnel process
+                continue;
+            }
+
+            setOption(service, key, value, log);
+        }
+
+        return new SSLEngineConfig(services, debugLevel);
+    }
+
+    private static void setOption(@NonNull Service service, @NonNull String key, @NonNull String value, @NonNull SSLEngineTunnel.Log log) throws IOException {
+        switch (key) {
+            case "accept":
+                if(value.startsWith("/"))
+                    throw new IOException("Service [" + service.name + "]: Unix sockets are not supported by the SSLEngine backend");
+                int portSeparator = value.lastIndexOf(':');
+                service.acceptHost = portSeparator > 0 ? value.substring(0, portSeparator) : null;
+                service.acceptPort = parsePort(service, value.substring(portSeparator + 1));
+                break;
+            case "connect":
+                service.connect.add(value);
+                break;
+            case "client":
+                service.client = parseBoolean(value);
+                break;
+            case "delay":
+                service.delay = parseBoolean(value);
+                break;
+            case "failover":
+                service.roundRobin = !value.equalsIgnoreCase("prio");
+                break;
+            case "ciphers":
+                service.ciphers = value;
+                break;
+            case "ciphersuites":
+                service.ciphersuites = value;
+                break;
+            case "sslversion":
+                service.sslVersion = value;
+                break;
+            case "sslversionmin":
+                service.sslVersionMin = value;
+                break;
+            case "sslversionmax":
+                service.sslVersionMax = value;
+                break;
+            case "pskidentity":
+            case "psksecrets":
+                service.psk = true;
+                break;
+            case "timeoutconnect":
+                service.connectTimeoutSeconds = parseSeconds(service, value);
+                break;
+            case "timeoutidle":
+                service.idleTimeoutSeconds = parseSeconds(service, value);
+                break;
+            case "checkhost":
+                //the SSLEngine's endpoint identification checks a single host name
+                if(service.checkHost != null)
+                    throw new IOException("Service [" + service.name + "]: only one checkHost is supported by the SSLEngine backend");
+                service.checkHost = value;
+                break;
+            case "sni":
+                service.sni = value;
+                break;
+            case "verify":
+            case "verifychain":
+            case "verifypeer":
+            case "checkip":
+            case "cafile":
+            case "capath":
+            case "cert":
+            case "key":
+                //certificates are configured through the SSLContext
+                throw new IOException("Service [" + service.name + "]: " + key + " is not supported by the SSLEngine backend, configure the SSLContext instead");
+            default:
+                log.log(4, SSLEngineTunnel.ID_GLOBAL, "Service [" + service.name + "]: option not supported by the SSLEngine backend, ignored: " + key);
+        }
+    }
+
+    /**
+     * Parses Stunnel's "debug" option: "[facility.]level", where level is a number or a syslog level name.
+     * @param value
+     * @param log
+     * @return {@link LogLevel#NOTICE} if the value is invalid.
+     */
+    private static int parseDebugLevel(@NonNull String value, @NonNull SSLEngineTunnel.Log log) {
+        String level = value.substring(value.lastIndexOf('.') + 1).trim();
+        for (LogLevel logLevel : LogLevel.values()) {
+            if(level.equalsIgnoreCase(logLevel.value) || level.equals(String.valueOf(logLevel.level)))
+                return logLevel.level;
+        }
+
+        log.log(4, SSLEngineTunnel.ID_GLOBAL, "Invalid debug level: " + value);
+        return LogLevel.NOTICE.level;
+    }
+
+    private static boolean parseBoolean(@NonNull String value) {
+        return value.equalsIgnoreCase("yes");
+    }
+
+    private static int parsePort(@NonNull Service service, @NonNull String value) throws IOException {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("Service [" + service.name + "]: invalid port: " + value);
+        }
+    }
+
+    private static long parseSeconds(@NonNull Service service, @NonNull String value) throws IOException {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("Service [" + service.name + "]: invalid timeout: " + value);
+        }
+    }
+
+    /**
+     * Resolves "host:port" or "port" (localhost) values into addresses. Hosts with several addresses
+     * result in several targets.
+     * @param values
+     * @return
+     * @throws UnknownHostException
+     */
+    @NonNull
+    static List<Target> resolve(@NonNull List<String> values) throws UnknownHostException {
+        List<Target> targets = new ArrayList<>();
+        for (String value : values) {
+            int portSeparator = value.lastIndexOf(':');
+            String host = portSeparator > 0 ? value.substring(0, portSeparator) : "localhost";
+            if(host.startsWith("[") && host.endsWith("]"))
+                host = host.substring(1, host.length() - 1);
+            int port;
+            try {
+                port = Integer.parseInt(value.substring(portSeparator + 1));
+            } catch (NumberFormatException e) {
+                throw new UnknownHostException("Invalid port: " + value);
+            }
+
+            for (InetAddress address : InetAddress.getAllByName(host)) {
+                targets.add(new Target(host, new InetSocketAddress(address, port)));
+            }
+        }
+
+        return targets;
+    }
+
+    /**
+     * Returns true if the given host is an IPv4 or IPv6 address literal rather than a host name.
+     * @param host
+     * @return
+     */
+    static boolean isIpAddress(@NonNull String host) {
+        return host.indexOf(':') >= 0 || host.matches("[0-9.]+");
+    }
+
+    /**
+     * Translates an OpenSSL cipher name (e.g. ECDHE-RSA-AES128-GCM-SHA256) into the JSSE/IANA name
+     * (e.g. TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256).
+     * @param cipher
+     * @return The JSSE name or null if the name is not a single cipher (e.g. a cipher group such as "PSK")
+     * or not known.
+     */
+    @Nullable
+    static String toJsseCipherSuite(@NonNull String cipher) {
+        String[] tokens = cipher.split("-");
+
+        int encryption = 0;
+        while(encryption < tokens.length && !tokens[encryption].startsWith("AES") && !tokens[encryption].startsWith("CHACHA20"))
+            encryption++;
+        if(encryption >= tokens.length)
+            return null;
+
+        StringBuilder suite = new StringBuilder("TLS_");
+        if(encryption == 0)
+            suite.append("RSA");
+        for (int i = 0; i < encryption; i++) {
+            if(i > 0)
+                suite.append('_');
+            suite.append(tokens[i]);
+        }
+        suite.append("_WITH_");
+
+        int mac;
+        if(tokens[encryption].equals("CHACHA20")) {
+            if(encryption + 1 >= tokens.length || !tokens[encryption + 1].equals("POLY1305"))
+                return null;
+            return suite.append("CHACHA20_POLY1305_SHA256").toString();
+        }
+        else if(tokens[encryption].equals("AES128"))
+            suite.append("AES_128");
+        else if(tokens[encryption].equals("AES256"))
+            suite.append("AES_256");
+        else
+            return null;
+
+        mac = encryption + 1;
+        if(mac < tokens.length && tokens[mac].equals("GCM")) {
+            suite.append("_GCM");
+            mac++;
+        }
+        else {
+            if(mac < tokens.length && tokens[mac].equals("CBC"))
+                mac++;
+            suite.append("_CBC");
+        }
+        if(mac != tokens.length - 1 || !tokens[mac].startsWith("SHA"))
+            return null;
+
+        return suite.append('_').append(tokens[mac]).toString();
+    }
+
+    /**
+     * Returns true for TLSv1.3 cipher suites, which are configured separately from older cipher suites.
+     * @param suite
+     * @return
+     */
+    static boolean isTls13CipherSuite(@NonNull String suite) {
+        return suite.startsWith("TLS_AES_") || suite.startsWith("TLS_CHACHA20_");
+    }
+}
@@ -0,0 +1,230 @@
+package de.fwinkel.android_stunnel;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.Writer;
+import java.security.GeneralSecurityException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * {@link Stunnel} that runs its configuration with {@link StunnelBackend#SSL_ENGINE} instead of the Stunnel binary.<br/>
+ * The in-process tunnel is wrapped in a {@link Process} that behaves like the Stunnel binary (config on stdin or
+ * from the config file, log lines on stdout), so that everything else in {@link Stunnel} works unchanged.
+ */
+class SSLEngineStunnel extends Stunnel {
+
+    /**
+     * Size of the pipes that emulate stdin and stdout.
+     */
+    protected static final int PIPE_SIZE = 64 * 1024;
+
+    @Nullable
+    private final SSLContext sslContext;
+    @Nullable
+    private volatile TunnelProcess tunnelProcess;
+
+    /**
+     * @param binaryPath Not executed; kept for {@link Stunnel}'s command line.
+     * @param configPath
+     * @param logBufferSize
+     * @param sslContext Null to use the default context.
+     */
+    SSLEngineStunnel(@NonNull File binaryPath, @NonNull File configPath, int logBufferSize, @Nullable SSLContext sslContext) {
+        super(binaryPath, configPath, logBufferSize);
+        this.sslContext = sslContext;
+    }
+
+    /**
+     * @param binaryPath Not executed; kept for {@link Stunnel}'s command line.
+     * @param configSource
+     * @param logBufferSize
+     * @param sslContext Null to use the default context.
+     */
+    SSLEngineStunnel(@NonNull File binaryPath, @NonNull StunnelConfigSource configSource, int logBufferSize, @Nullable SSLContext sslContext) {
+        super(binaryPath, configSource, logBufferSize);
+        this.sslContext = sslContext;
+    }
+
+    @NonNull
+    @Override
+    protected Process startProcess(@NonNull List<String> command) throws IOException {
+        TunnelProcess process = new TunnelProcess(command, sslContext);
+        tunnelProcess = process;
+        return process;
+    }
+
+    @Override
+    protected void stopAccepting(long timeout, @NonNull TimeUnit unit) throws IOException {
+        TunnelProcess process = tunnelProcess;
+        if(process != null)
+            process.stopAccepting();
+    }
+
+    @Override
+    public void reconfigure(@NonNull StunnelBuilder builder, long timeout, @NonNull TimeUnit unit) throws IOException {
+        throw new IllegalStateException("Can't reconfigure Stunnel: not supported by the SSLEngine backend");
+    }
+
+    /**
+     * Runs an {@link SSLEngineTunnel} on its own thread.
+     * All log lines are written by that thread, which is what {@link PipedOutputStream} requires.
+     */
+    private static class TunnelProcess extends Process {
+        @NonNull
+        private final PipedOutputStream stdin = new PipedOutputStream();
+        @NonNull
+        private final PipedInputStream configInput;
+        @NonNull
+        private final PipedOutputStream logOutput = new PipedOutputStream();
+        @NonNull
+        private final PipedInputStream stdout;
+        @NonNull
+        private final CountDownLatch exitLatch = new CountDownLatch(1);
+
+        @Nullable
+        private final File configFile;
+        @Nullable
+        private final SSLContext sslContext;
+
+        @Nullable
+        private volatile SSLEngineTunnel tunnel;
+        private volatile boolean destroyed;
+        private volatile boolean acceptStopped;
+        private volatile int exitCode;
+        /**
+         * Highest syslog level that is written to the log, see {@link SSLEngineConfig#debugLevel}.
+         * Only accessed by the tunnel's thread.
+         */
+        private int logLevel = LogLevel.NOTICE.level;
+
+        TunnelProcess(@NonNull List<String> command, @Nullable SSLContext sslContext) throws IOException {
+            this.configInput = new PipedInputStream(stdin, PIPE_SIZE);
+            this.stdout = new PipedInputStream(logOutput, PIPE_SIZE);
+            //"binary config" or "binary -fd 0"
+            this.configFile = command.size() == 2 ? new File(command.get(1)) : null;
+            this.sslContext = sslContext;
+
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runTunnel();
+                }
+            }, "Stunnel SSLEngine");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void runTunnel() {
+            final Writer log = new OutputStreamWriter(logOutput);
+            final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy.MM.dd HH:mm:ss", Locale.US);
+            SSLEngineTunnel.Log tunnelLog = new SSLEngineTunnel.Log() {
+                @Override
+                public void log(int level, @NonNull String id, @NonNull String message) {
+                    if(level > logLevel)
+                        return;
+                    try {
+                        log.write(dateFormat.format(new Date()) + " LOG" + level + "[" + id + "]: " + message + "\n");
+                        log.flush();
+                    } catch (IOException e) {
+                        //nobody reads the log anymore
+                    }
+                }
+            };
+
+            int exitCode = 0;
+            BufferedReader reader = null;
+            try {
+                InputStream configStream = configFile != null ? new FileInputStream(configFile) : configInput;
+                reader = new BufferedReader(new InputStreamReader(configStream, "UTF-8"));
+                SSLEngineConfig config = SSLEngineConfig.parse(reader, tunnelLog);
+                logLevel = config.debugLevel;
+                Util.close(reader);
+                reader = null;
+
+                SSLContext context = sslContext != null ? sslContext : SSLContext.getDefault();
+                SSLEngineTunnel tunnel = new SSLEngineTunnel(config, context, sslContext != null, tunnelLog);
+                this.tunnel = tunnel;
+                if(acceptStopped)
+                    tunnel.stopAccepting();
+                if(destroyed)
+                    tunnel.stop();
+
+                tunnel.run();
+            } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                tunnelLog.log(3, SSLEngineTunnel.ID_GLOBAL, String.valueOf(e.getMessage()));
+                exitCode = 1;
+            } finally {
+                Util.close(reader);
+                Util.close(log);
+                this.exitCode = exitCode;
+                exitLatch.countDown();
+            }
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return stdin;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return stdout;
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            //merged into stdout
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public int waitFor() throws InterruptedException {
+            exitLatch.await();
+            return exitCode;
+        }
+
+        @Override
+        public int exitValue() {
+            if(exitLatch.getCount() > 0)
+                throw new IllegalThreadStateException("Process has not exited");
+
+            return exitCode;
+        }
+
+        void stopAccepting() {
+            acceptStopped = true;
+            SSLEngineTunnel tunnel = this.tunnel;
+            if(tunnel != null)
+                tunnel.stopAccepting();
+        }
+
+        @Override
+        public void destroy() {
+            destroyed = true;
+            SSLEngineTunnel tunnel = this.tunnel;
+            if(tunnel != null)
+                tunnel.stop();
+            //unblocks reading the config
+            Util.close(configInput);
+        }
+    }
+}
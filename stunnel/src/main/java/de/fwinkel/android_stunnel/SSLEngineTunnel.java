@@ -0,0 +1,705 @@
+package de.fwinkel.android_stunnel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+
+import android.annotation.TargetApi;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Runs the services of an {@link SSLEngineConfig} in-process: a single selector thread accepts connections,
+ * connects to the services' targets and moves data between the plaintext and the TLS side of each connection
+ * through an {@link SSLEngine}.<br/>
+ * Everything is logged in Stunnel's log format, so that {@link Stunnel}'s log parsing (startup detection, metrics,
+ * bind results) works the same as with the Stunnel binary.<br/>
+ * Delegated handshake tasks run on the selector thread: they are short compared to the handshake's round trips.
+ */
+class SSLEngineTunnel {
+
+    /**
+     * Receives log lines in Stunnel's format (level, connection id, message). Only called on the thread
+     * that runs the tunnel.
+     */
+    interface Log {
+        /**
+         * @param level Syslog level as used by Stunnel: 3 error, 4 warning, 5 notice, 6 info, 7 debug.
+         * @param id Connection id or {@link #ID_GLOBAL}.
+         * @param message
+         */
+        void log(int level, @NonNull String id, @NonNull String message);
+    }
+
+    /**
+     * Connection id of log lines that don't belong to a connection, same as Stunnel's.
+     */
+    static final String ID_GLOBAL = "ui";
+
+    /**
+     * Interval at which connect and idle timeouts are checked.
+     */
+    protected static final long SWEEP_INTERVAL_MILLIS = 1000;
+    /**
+     * Each connection uses 4 buffers; buffers of up to 16 closed connections are kept.
+     */
+    protected static final int MAX_POOLED_BUFFERS = 64;
+    /**
+     * Whether {@link SSLParameters} supports endpoint identification and SNI (Android 7.0+, Java 8+).
+     * Otherwise the server's host name is checked with the default {@link javax.net.ssl.HostnameVerifier}
+     * once the handshake is done.
+     */
+    protected static final boolean ENDPOINT_IDENTIFICATION_SUPPORTED = isEndpointIdentificationSupported();
+
+    @NonNull
+    private final SSLEngineConfig config;
+    @NonNull
+    private final SSLContext sslContext;
+    @NonNull
+    private final Log log;
+    @NonNull
+    private final Selector selector;
+    @NonNull
+    private final BufferPool bufferPool;
+
+    @NonNull
+    private final List<ServerSocketChannel> serverChannels = new ArrayList<>();
+    @NonNull
+    private final Set<Connection> connections = new HashSet<>();
+    private long nextConnectionId;
+
+    private volatile boolean stopped;
+    /**
+     * Set by {@link #stopAccepting()}: the selector thread closes {@link #serverChannels}.
+     */
+    private volatile boolean acceptStopped;
+
+    /**
+     * @param config
+     * @param sslContext
+     * @param pskSupported Whether the given {@link SSLContext} has been provided by the user and may support PSK.
+     * @param log
+     * @throws IOException When the configuration can't be run by this backend.
+     */
+    SSLEngineTunnel(@NonNull SSLEngineConfig config, @NonNull SSLContext sslContext, boolean pskSupported, @NonNull Log log) throws IOException {
+        this.config = config;
+        this.sslContext = sslContext;
+        this.log = log;
+
+        SSLEngine probe = sslContext.createSSLEngine();
+        for (SSLEngineConfig.Service service : config.services) {
+            service.prepare(probe, pskSupported, log);
+        }
+
+        SSLSession session = probe.getSession();
+        this.bufferPool = new BufferPool(Math.max(session.getPacketBufferSize(), session.getApplicationBufferSize()), MAX_POOLED_BUFFERS);
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Binds all services and handles connections until {@link #stop()} is called.
+     * Must be called on the thread that called the constructor.
+     * @throws IOException When a service can't be bound.
+     */
+    void run() throws IOException {
+        try {
+            for (SSLEngineConfig.Service service : config.services) {
+                bind(service);
+            }
+            log.log(5, ID_GLOBAL, "Configuration successful");
+
+            long nextSweep = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MILLIS);
+            while(!stopped) {
+                selector.select(connections.isEmpty() ? 0 : SWEEP_INTERVAL_MILLIS);
+
+                if(acceptStopped && !serverChannels.isEmpty()) {
+                    for (ServerSocketChannel channel : serverChannels) {
+                        Util.close(channel);
+                    }
+                    serverChannels.clear();
+                    log.log(5, ID_GLOBAL, "Stopped accepting new connections");
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if(!key.isValid())
+                        continue;
+
+                    Object attachment = key.attachment();
+                    if(attachment instanceof SSLEngineConfig.Service)
+                        accept((ServerSocketChannel) key.channel(), (SSLEngineConfig.Service) attachment);
+                    else
+                        ((Connection) attachment).onReady(key);
+                }
+
+                long now = System.nanoTime();
+                if(now - nextSweep >= 0) {
+                    sweep(now);
+                    nextSweep = now + TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MILLIS);
+                }
+            }
+
+            log.log(5, ID_GLOBAL, "Terminated");
+        }
+        finally {
+            for (Connection connection : new ArrayList<>(connections)) {
+                connection.close(true);
+            }
+            for (ServerSocketChannel channel : serverChannels) {
+                Util.close(channel);
+            }
+            Util.close(selector);
+        }
+    }
+
+    /**
+     * Stops {@link #run()}. May be called from any thread.
+     */
+    void stop() {
+        stopped = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Closes all listening sockets while open connections are kept. May be called from any thread.
+     */
+    void stopAccepting() {
+        acceptStopped = true;
+        selector.wakeup();
+    }
+
+    private void bind(@NonNull SSLEngineConfig.Service service) throws IOException {
+        String host = service.acceptHost == null || service.acceptHost.isEmpty() ? "0.0.0.0" : service.acceptHost;
+        InetSocketAddress address = new InetSocketAddress(host, service.acceptPort);
+
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        serverChannels.add(channel);
+        try {
+            channel.socket().setReuseAddress(true);
+            channel.socket().bind(address);
+        } catch (IOException e) {
+            log.log(3, ID_GLOBAL, "Error binding service [" + service.name + "] to " + host + ":" + service.acceptPort + ": " + e.getMessage());
+            throw new IOException("Binding service [" + service.name + "] failed");
+        }
+
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_ACCEPT, service);
+        log.log(6, ID_GLOBAL, "Service [" + service.name + "] bound to " + host + ":" + channel.socket().getLocalPort());
+    }
+
+    private void accept(@NonNull ServerSocketChannel server, @NonNull SSLEngineConfig.Service service) {
+        while(true) {
+            SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (IOException e) {
+                log.log(3, ID_GLOBAL, "Service [" + service.name + "]: accept: " + e.getMessage());
+                return;
+            }
+            if(channel == null)
+                return;
+
+            String id = String.valueOf(nextConnectionId++);
+            Socket socket = channel.socket();
+            log.log(5, id, "Service [" + service.name + "] accepted connection from "
+                    + socket.getInetAddress().getHostAddress() + ":" + socket.getPort());
+
+            Connection connection = new Connection(id, service, channel);
+            connections.add(connection);
+            try {
+                channel.configureBlocking(false);
+                socket.setTcpNoDelay(true);
+                connection.acceptedKey = channel.register(selector, 0, connection);
+            } catch (IOException e) {
+                log.log(3, id, "Service [" + service.name + "]: " + e.getMessage());
+                connection.close(true);
+                continue;
+            }
+            connection.connectNext();
+        }
+    }
+
+    /**
+     * Makes a client engine check the server's certificate against the engine's peer host and send the given
+     * server name via SNI.
+     * @param engine
+     * @param serverName Null to send no server name.
+     */
+    @TargetApi(24)
+    private static void setEndpointIdentification(@NonNull SSLEngine engine, @Nullable String serverName) {
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        List<SNIServerName> serverNames = Collections.emptyList();
+        if(serverName != null) {
+            try {
+                serverNames = Collections.<SNIServerName>singletonList(new SNIHostName(serverName));
+            } catch (IllegalArgumentException e) {
+                //not a valid host name: connect without SNI
+            }
+        }
+        parameters.setServerNames(serverNames);
+        engine.setSSLParameters(parameters);
+    }
+
+    private static boolean isEndpointIdentificationSupported() {
+        try {
+            SSLParameters.class.getMethod("setEndpointIdentificationAlgorithm", String.class);
+            SSLParameters.class.getMethod("setServerNames", List.class);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Enforces connect and idle timeouts.
+     * @param now
+     */
+    private void sweep(long now) {
+        for (Connection connection : new ArrayList<>(connections)) {
+            connection.checkTimeouts(now);
+        }
+    }
+
+    /**
+     * One accepted connection and its connection to the service's target.<br/>
+     * In client mode the accepted socket is the plaintext side and the target the TLS side;
+     * in server mode it's the other way around.<br/>
+     * All buffers are kept in write mode (position = end of data) between calls.
+     */
+    private class Connection {
+        @NonNull
+        private final String id;
+        @NonNull
+        private final SSLEngineConfig.Service service;
+        @NonNull
+        private final SocketChannel accepted;
+        @Nullable
+        private SelectionKey acceptedKey;
+
+        @Nullable
+        private List<SSLEngineConfig.Target> targets;
+        private int firstTarget;
+        private int attempts;
+        @Nullable
+        private SSLEngineConfig.Target target;
+        @Nullable
+        private SocketChannel remote;
+        @Nullable
+        private SelectionKey remoteKey;
+        private long connectDeadline;
+
+        private SocketChannel plain;
+        private SocketChannel tls;
+        private SelectionKey plainKey;
+        private SelectionKey tlsKey;
+        private SSLEngine engine;
+        /**
+         * Read from {@link #plain}, to be wrapped.
+         */
+        private ByteBuffer plainToTls;
+        /**
+         * Wrapped, to be written to {@link #tls}.
+         */
+        private ByteBuffer netOut;
+        /**
+         * Read from {@link #tls}, to be unwrapped.
+         */
+        private ByteBuffer netIn;
+        /**
+         * Unwrapped, to be written to {@link #plain}.
+         */
+        private ByteBuffer tlsToPlain;
+
+        private boolean plainEof;
+        private boolean tlsEof;
+        private boolean outboundClosed;
+        /**
+         * Whether the end of the TLS side's stream has been passed on by shutting down {@link #plain}'s output.
+         */
+        private boolean plainOutputShutdown;
+        private boolean handshakeDone;
+        private long handshakeStart;
+        private long lastActivity;
+        private boolean closed;
+
+        private long bytesSentToTls;
+        private long bytesSentToSocket;
+
+        Connection(@NonNull String id, @NonNull SSLEngineConfig.Service service, @NonNull SocketChannel accepted) {
+            this.id = id;
+            this.service = service;
+            this.accepted = accepted;
+            this.lastActivity = System.nanoTime();
+        }
+
+        /**
+         * Connects to the next target or closes the connection if all targets failed.
+         */
+        void connectNext() {
+            if(targets == null) {
+                try {
+                    targets = service.getTargets();
+                } catch (IOException e) {
+                    log.log(3, id, "Service [" + service.name + "]: cannot resolve " + e.getMessage());
+                    close(true);
+                    return;
+                }
+                if(service.roundRobin && !targets.isEmpty()) {
+                    firstTarget = service.nextTarget % targets.size();
+                    service.nextTarget = firstTarget + 1;
+                }
+            }
+
+            while(attempts < targets.size()) {
+                target = targets.get((firstTarget + attempts++) % targets.size());
+                boolean connected;
+                try {
+                    remote = SocketChannel.open();
+                    remote.configureBlocking(false);
+                    remote.socket().setTcpNoDelay(true);
+                    connected = remote.connect(target.address);
+                    remoteKey = remote.register(selector, connected ? 0 : SelectionKey.OP_CONNECT, this);
+                } catch (IOException e) {
+                    onConnectFailed("s_connect: connect " + target.getLogAddress() + ": " + e.getMessage());
+                    continue;
+                }
+
+                if(connected) {
+                    try {
+                        onConnected();
+                    } catch (IOException e) {
+                        log.log(3, id, "transfer: " + e.getMessage());
+                        close(true);
+                    }
+                }
+                else
+                    connectDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(service.connectTimeoutSeconds);
+                return;
+            }
+
+            log.log(3, id, "No more addresses to connect");
+            close(true);
+        }
+
+        private void onConnectFailed(@NonNull String message) {
+            log.log(3, id, message);
+            if(remoteKey != null)
+                remoteKey.cancel();
+            Util.close(remote);
+            remote = null;
+            remoteKey = null;
+        }
+
+        private void onConnected() throws IOException {
+            log.log(6, id, "s_connect: connected " + target.getLogAddress());
+
+            if(service.client) {
+                plain = accepted;
+                plainKey = acceptedKey;
+                tls = remote;
+                tlsKey = remoteKey;
+                //the engine's peer host is the name the server's certificate is checked against
+                engine = sslContext.createSSLEngine(service.getVerifiedHost(target), target.address.getPort());
+                if(ENDPOINT_IDENTIFICATION_SUPPORTED)
+                    setEndpointIdentification(engine, service.getServerName(target));
+            }
+            else {
+                plain = remote;
+                plainKey = remoteKey;
+                tls = accepted;
+                tlsKey = acceptedKey;
+                engine = sslContext.createSSLEngine();
+            }
+            engine.setUseClientMode(service.client);
+            if(service.protocols != null)
+                engine.setEnabledProtocols(service.protocols);
+            if(service.cipherSuites != null)
+                engine.setEnabledCipherSuites(service.cipherSuites);
+
+            plainToTls = bufferPool.acquire();
+            netOut = bufferPool.acquire();
+            netIn = bufferPool.acquire();
+            tlsToPlain = bufferPool.acquire();
+
+            handshakeStart = System.currentTimeMillis();
+            engine.beginHandshake();
+            pump();
+        }
+
+        void onReady(@NonNull SelectionKey key) {
+            try {
+                if(engine == null) {
+                    if(key == remoteKey && key.isConnectable()) {
+                        try {
+                            if(!remote.finishConnect())
+                                return;
+                        } catch (IOException e) {
+                            onConnectFailed("s_connect: connect " + target.getLogAddress() + ": " + e.getMessage());
+                            connectNext();
+                            return;
+                        }
+                        onConnected();
+                    }
+                    return;
+                }
+
+                pump();
+            } catch (CancelledKeyException e) {
+                close(true);
+            } catch (IOException e) {
+                log.log(3, id, "transfer: " + e.getMessage());
+                close(true);
+            }
+        }
+
+        void checkTimeouts(long now) {
+            if(engine == null) {
+                if(remote != null && now - connectDeadline >= 0) {
+                    onConnectFailed("s_connect: s_poll_wait " + target.getLogAddress() + ": TIMEOUTconnect exceeded");
+                    connectNext();
+                }
+            }
+            else if(now - lastActivity >= TimeUnit.SECONDS.toNanos(service.idleTimeoutSeconds)) {
+                log.log(5, id, "s_poll_wait: TIMEOUTidle exceeded: sending reset");
+                close(true);
+            }
+        }
+
+        /**
+         * Moves as much data as possible without blocking, then updates the interest ops.
+         * @throws IOException
+         */
+        private void pump() throws IOException {
+            boolean progress;
+            do {
+                progress = false;
+
+                if(!plainEof && plainToTls.hasRemaining()) {
+                    int read = plain.read(plainToTls);
+                    if(read < 0)
+                        plainEof = true;
+                    progress |= read != 0;
+                }
+                if(!tlsEof && netIn.hasRemaining()) {
+                    int read = tls.read(netIn);
+                    if(read < 0)
+                        tlsEof = true;
+                    progress |= read != 0;
+                }
+
+                if(engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK)
+                    runDelegatedTasks();
+                progress |= unwrap();
+                progress |= wrap();
+
+                if(netOut.position() > 0) {
+                    netOut.flip();
+                    progress |= tls.write(netOut) > 0;
+                    netOut.compact();
+                }
+                if(tlsToPlain.position() > 0) {
+                    tlsToPlain.flip();
+                    int written = plain.write(tlsToPlain);
+                    tlsToPlain.compact();
+                    bytesSentToSocket += written;
+                    progress |= written > 0;
+                }
+
+                if(progress)
+                    lastActivity = System.nanoTime();
+            } while(progress && !closed);
+
+            //each direction ends on its own, so that e.g. a client that half-closed its socket still gets the reply
+            boolean tlsToPlainDone = tlsEof && tlsToPlain.position() == 0;
+            //before TLSv1.3 the engine answers a received close_notify with its own and closes its outbound side
+            //(RFC 5246 7.2.1), so half-closed connections only stay open with TLSv1.3
+            boolean plainToTlsDone = engine.isOutboundDone() && netOut.position() == 0;
+            if(tlsToPlainDone && plainToTlsDone) {
+                close(false);
+                return;
+            }
+            if(tlsToPlainDone && !plainOutputShutdown) {
+                plainOutputShutdown = true;
+                plain.socket().shutdownOutput();
+            }
+
+            int plainOps = 0;
+            if(!plainEof && plainToTls.hasRemaining())
+                plainOps |= SelectionKey.OP_READ;
+            if(tlsToPlain.position() > 0)
+                plainOps |= SelectionKey.OP_WRITE;
+            int tlsOps = 0;
+            if(!tlsEof && netIn.hasRemaining())
+                tlsOps |= SelectionKey.OP_READ;
+            if(netOut.position() > 0)
+                tlsOps |= SelectionKey.OP_WRITE;
+
+            plainKey.interestOps(plainOps);
+            tlsKey.interestOps(tlsOps);
+        }
+
+        /**
+         * Unwraps {@link #netIn} into {@link #tlsToPlain}.
+         * @return True if anything has been consumed or produced.
+         * @throws IOException
+         */
+        private boolean unwrap() throws IOException {
+            if(netIn.position() == 0 || engine.isInboundDone())
+                return false;
+
+            boolean progress = false;
+            netIn.flip();
+            try {
+                while(netIn.hasRemaining()) {
+                    SSLEngineResult result = engine.unwrap(netIn, tlsToPlain);
+                    onHandshakeStatus(result.getHandshakeStatus());
+                    boolean moved = result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+                    progress |= moved;
+
+                    SSLEngineResult.Status status = result.getStatus();
+                    if(status == SSLEngineResult.Status.CLOSED) {
+                        tlsEof = true;
+                        return true;
+                    }
+                    else if(status == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        if(tlsToPlain.position() == 0)
+                            throw new SSLException("Application buffer too small");
+                        break;
+                    }
+                    else if(status == SSLEngineResult.Status.BUFFER_UNDERFLOW || !moved)
+                        break;
+                }
+            }
+            finally {
+                netIn.compact();
+            }
+
+            return progress;
+        }
+
+        /**
+         * Wraps {@link #plainToTls} and handshake messages into {@link #netOut}.
+         * @return True if anything has been consumed or produced.
+         * @throws IOException
+         */
+        private boolean wrap() throws IOException {
+            if(engine.isOutboundDone())
+                return false;
+
+            boolean progress = false;
+            if(plainEof && !outboundClosed && plainToTls.position() == 0) {
+                //the plaintext side is done: send close_notify
+                engine.closeOutbound();
+                outboundClosed = true;
+                progress = true;
+            }
+
+            plainToTls.flip();
+            try {
+                while(true) {
+                    SSLEngineResult.HandshakeStatus handshakeStatus = engine.getHandshakeStatus();
+                    boolean handshaking = handshakeStatus != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                            && handshakeStatus != SSLEngineResult.HandshakeStatus.FINISHED;
+                    if(handshaking && handshakeStatus != SSLEngineResult.HandshakeStatus.NEED_WRAP)
+                        break;
+                    if(!handshaking && !plainToTls.hasRemaining() && !outboundClosed)
+                        break;
+
+                    SSLEngineResult result = engine.wrap(plainToTls, netOut);
+                    onHandshakeStatus(result.getHandshakeStatus());
+                    bytesSentToTls += result.bytesConsumed();
+                    boolean moved = result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+                    progress |= moved;
+
+                    SSLEngineResult.Status status = result.getStatus();
+                    if(status == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        if(netOut.position() == 0)
+                            throw new SSLException("Packet buffer too small");
+                        break;
+                    }
+                    else if(status == SSLEngineResult.Status.CLOSED || !moved)
+                        break;
+                }
+            }
+            finally {
+                plainToTls.compact();
+            }
+
+            return progress;
+        }
+
+        private void onHandshakeStatus(@NonNull SSLEngineResult.HandshakeStatus handshakeStatus) throws SSLException {
+            if(handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_TASK)
+                runDelegatedTasks();
+            else if(handshakeStatus == SSLEngineResult.HandshakeStatus.FINISHED && !handshakeDone) {
+                handshakeDone = true;
+
+                SSLSession session = engine.getSession();
+                if(service.client && !ENDPOINT_IDENTIFICATION_SUPPORTED
+                        && !HttpsURLConnection.getDefaultHostnameVerifier().verify(engine.getPeerHost(), session))
+                    throw new SSLPeerUnverifiedException("Certificate does not match the host name " + engine.getPeerHost());
+                boolean reused = session.getCreationTime() < handshakeStart;
+                log.log(6, id, (service.client ? "TLS connected: " : "TLS accepted: ")
+                        + (reused ? "previous session reused" : "new session negotiated"));
+                log.log(6, id, "TLS: " + session.getProtocol() + ", cipher " + session.getCipherSuite());
+            }
+        }
+
+        private void runDelegatedTasks() {
+            Runnable task;
+            while((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+        }
+
+        /**
+         * Closes both sockets and returns the buffers to the pool.
+         * @param reset True if the connection failed.
+         */
+        void close(boolean reset) {
+            if(closed)
+                return;
+            closed = true;
+            connections.remove(this);
+
+            Util.close(accepted);
+            Util.close(remote);
+            if(engine != null) {
+                bufferPool.release(plainToTls);
+                bufferPool.release(netOut);
+                bufferPool.release(netIn);
+                bufferPool.release(tlsToPlain);
+            }
+
+            log.log(5, id, (reset ? "Connection reset: " : "Connection closed: ")
+                    + bytesSentToTls + " byte(s) sent to TLS, " + bytesSentToSocket + " byte(s) sent to socket");
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package de.fwinkel.android_stunnel;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Traffic and connection counters of a single Stunnel service.<br/>
+ * Updated by the {@link Stunnel}'s log pump from Stunnel's log output and safe to read from any thread.
+ * Each getter reads one counter, so values read one after another may belong to slightly different
+ * points in time.
+ */
+public class ServiceMetrics {
+
+    @NonNull
+    protected final String name;
+
+    final AtomicLong accepted = new AtomicLong();
+    final AtomicLong failed = new AtomicLong();
+    final AtomicLong active = new AtomicLong();
+    final AtomicLong bytesSentToTls = new AtomicLong();
+    final AtomicLong bytesSentToSocket = new AtomicLong();
+    final AtomicLong fullHandshakes = new AtomicLong();
+    final AtomicLong resumedHandshakes = new AtomicLong();
+    final LatencyRecorder connectLatency = new LatencyRecorder();
+    final LatencyRecorder handshakeLatency = new LatencyRecorder();
+    final LatencyRecorder connectionDuration = new LatencyRecorder();
+
+    private final ConcurrentMap<String, TargetHealth> targets = new ConcurrentHashMap<>();
+
+    ServiceMetrics(@NonNull String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the service's name as given to {@link StunnelBuilder#addService(String)}.
+     * @return
+     */
+    @NonNull
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of connections the service accepted since Stunnel started.
+     * @return
+     */
+    public long getAcceptedConnections() {
+        return accepted.get();
+    }
+
+    /**
+     * Returns the number of connections that were reset or rejected instead of being closed normally,
+     * e.g. because the remote server could not be reached or the TLS handshake failed.
+     * @return
+     */
+    public long getFailedConnections() {
+        return failed.get();
+    }
+
+    /**
+     * Returns the number of connections that are currently open.
+     * @return
+     */
+    public long getActiveConnections() {
+        return active.get();
+    }
+
+    /**
+     * Returns the number of bytes Stunnel sent to the TLS side of finished connections:
+     * outgoing traffic for {@link StunnelBuilder.ServiceBuilder#client() client} services,
+     * incoming traffic for server services.
+     * @return
+     */
+    public long getBytesSentToTls() {
+        return bytesSentToTls.get();
+    }
+
+    /**
+     * Returns the number of bytes Stunnel sent to the plaintext side of finished connections:
+     * incoming traffic for {@link StunnelBuilder.ServiceBuilder#client() client} services,
+     * outgoing traffic for server services.
+     * @return
+     */
+    public long getBytesSentToSocket() {
+        return bytesSentToSocket.get();
+    }
+
+    /**
+     * Returns the number of TLS handshakes that negotiated a new session.<br/>
+     * Stunnel logs handshakes at log level info, so this is only counted when the log level
+     * is info or higher (<code>debug = info</code>).
+     * @return
+     * @see #getResumedHandshakes()
+     */
+    public long getFullHandshakes() {
+        return fullHandshakes.get();
+    }
+
+    /**
+     * Returns the number of TLS handshakes that resumed a previous session, see {@link #getFullHandshakes()}.
+     * @return
+     * @see StunnelBuilder.ServiceBuilder#sessionResume(boolean)
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+
+    /**
+     * Returns the fraction of handshakes that resumed a previous session, between 0 and 1,
+     * or 0 if there were no handshakes yet.
+     * @return
+     */
+    public double getResumptionRate() {
+        long resumed = resumedHandshakes.get();
+        long total = resumed + fullHandshakes.get();
+        return total == 0 ? 0 : (double) resumed / total;
+    }
+
+    /**
+     * Returns the time it took to connect to the remote address, measured from the previous step of the
+     * connection: from accepting the connection for {@link StunnelBuilder.ServiceBuilder#client() client}
+     * services, from the completed TLS handshake for server services. Includes failed attempts to other
+     * targets of the same connection.<br/>
+     * Stunnel logs successful connects at log level info, so this is only recorded when the log level
+     * is info or higher.
+     * @return
+     * @see StunnelBuilder#logLevel(LogLevel)
+     */
+    @NonNull
+    public LatencyHistogram getConnectLatency() {
+        return connectLatency.getHistogram();
+    }
+
+    /**
+     * Returns the time the TLS handshakes took, measured from the previous step of the connection:
+     * from connecting to the remote address for {@link StunnelBuilder.ServiceBuilder#client() client}
+     * services, from accepting the connection for server services.<br/>
+     * Like {@link #getFullHandshakes()} this is only recorded when the log level is info or higher.
+     * @return
+     * @see StunnelBuilder#logLevel(LogLevel)
+     */
+    @NonNull
+    public LatencyHistogram getHandshakeLatency() {
+        return handshakeLatency.getHistogram();
+    }
+
+    /**
+     * Returns the lifetime of finished connections, from being accepted until being closed, reset or rejected.
+     * @return
+     */
+    @NonNull
+    public LatencyHistogram getConnectionDuration() {
+        return connectionDuration.getHistogram();
+    }
+
+    /**
+     * Returns a snapshot of the connect statistics of all remote addresses the service tried to connect to,
+     * keyed by {@link TargetHealth#getAddress()}.<br/>
+     * Successful connects are only reported when the log level is info or higher (<code>debug = info</code>).
+     * @return
+     * @see StunnelBuilder.ServiceBuilder#connect(ConnectTargets)
+     */
+    @NonNull
+    public Map<String, TargetHealth> getTargets() {
+        return Collections.unmodifiableMap(new HashMap<>(targets));
+    }
+
+    /**
+     * Returns the connect statistics of the given remote address or null if the service did not try to connect to it yet.
+     * @param address Resolved address as logged by Stunnel, see {@link TargetHealth#getAddress()}.
+     * @return
+     */
+    @Nullable
+    public TargetHealth getTarget(@NonNull String address) {
+        return targets.get(address);
+    }
+
+    @NonNull
+    TargetHealth getOrAddTarget(@NonNull String address) {
+        TargetHealth target = targets.get(address);
+        if(target == null) {
+            TargetHealth newTarget = new TargetHealth(address);
+            target = targets.putIfAbsent(address, newTarget);
+            if(target == null)
+                target = newTarget;
+        }
+
+        return target;
+    }
+
+    @Override
+    public String toString() {
+        return "ServiceMetrics{" +
+                "name='" + name + '\'' +
+                ", accepted=" + accepted.get() +
+                ", failed=" + failed.get() +
+                ", active=" + active.get() +
+                ", bytesSentToTls=" + bytesSentToTls.get() +
+                ", bytesSentToSocket=" + bytesSentToSocket.get() +
+                ", fullHandshakes=" + fullHandshakes.get() +
+                ", resumedHandshakes=" + resumedHandshakes.get() +
+                ", connectLatency=" + getConnectLatency() +
+                ", handshakeLatency=" + getHandshakeLatency() +
+                ", connectionDuration=" + getConnectionDuration() +
+                ", targets=" + targets.values() +
+                '}';
+    }
+}
@@ -0,0 +1,237 @@
+package de.fwinkel.android_stunnel;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import android.net.LocalSocket;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Tracks when each service of a {@link Stunnel} is ready to accept connections, see
+ * {@link Stunnel#getServiceReadiness(String)}.<br/>
+ * A service is ready once Stunnel logs that it bound the service's accept socket or, for services with a
+ * {@link StunnelBuilder.ServiceBuilder#probeReadiness() readiness probe}, once a connection to the accept
+ * endpoint succeeds. Stunnel only logs successful binds at log level info and above, so services without
+ * a probe and without a bind report are considered ready when no bind error has been reported
+ * {@link #BIND_SETTLE_MILLIS} after the configuration has been applied.
+ */
+class ServiceReadiness {
+
+    /**
+     * Time after the configuration has been applied until a service without bind report and probe is ready.
+     */
+    protected static final long BIND_SETTLE_MILLIS = 100;
+    protected static final long PROBE_INTERVAL_MILLIS = 20;
+    protected static final int PROBE_CONNECT_TIMEOUT_MILLIS = 1000;
+
+    @NonNull
+    private final Stunnel stunnel;
+    /**
+     * Service name -> readiness future. Guarded by itself.
+     */
+    @NonNull
+    private final Map<String, StunnelFuture<Stunnel>> futures = new HashMap<>();
+    /**
+     * Service name -> accept option value ("host:port", "port" or a socket path) of services that are probed.
+     */
+    @NonNull
+    private final Map<String, String> probes = new ConcurrentHashMap<>();
+    /**
+     * {@link System#nanoTime()} of the last time the configuration has been applied.
+     */
+    private volatile long configuredAt;
+    private volatile boolean exited;
+    @Nullable
+    private Thread prober;
+
+    ServiceReadiness(@NonNull Stunnel stunnel) {
+        this.stunnel = stunnel;
+    }
+
+    /**
+     * Returns the readiness future of the given service, creating it if necessary.
+     * @param serviceName
+     * @return
+     */
+    @NonNull
+    StunnelFuture<Stunnel> get(@NonNull String serviceName) {
+        synchronized (futures) {
+            StunnelFuture<Stunnel> future = futures.get(serviceName);
+            if(future == null) {
+                future = new StunnelFuture<>();
+                if(exited)
+                    future.fail(newExitException(serviceName));
+                futures.put(serviceName, future);
+            }
+
+            return future;
+        }
+    }
+
+    /**
+     * Returns true if the readiness of the given service is tracked.
+     * @param serviceName
+     * @return
+     */
+    boolean contains(@NonNull String serviceName) {
+        synchronized (futures) {
+            return futures.containsKey(serviceName);
+        }
+    }
+
+    /**
+     * Probes the given service's accept endpoint until a connection succeeds.
+     * @param serviceName
+     * @param accept Value of the service's accept option.
+     */
+    void addProbe(@NonNull String serviceName, @NonNull String accept) {
+        probes.put(serviceName, accept);
+        get(serviceName);
+    }
+
+    void onBindResult(@NonNull String serviceName, boolean bound) {
+        StunnelFuture<Stunnel> future = get(serviceName);
+        if(bound)
+            future.complete(stunnel);
+        else
+            future.fail(new StunnelStartException("Failed to bind service " + serviceName,
+                    null, stunnel.getLogBuffer().getLastLines(Stunnel.START_FAILURE_LOG_LINES)));
+    }
+
+    /**
+     * Called whenever Stunnel applied its configuration: starts checking pending services.
+     */
+    void onConfigured() {
+        configuredAt = System.nanoTime();
+
+        synchronized (futures) {
+            if(prober != null && prober.isAlive())
+                return;
+
+            prober = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    checkPending();
+                }
+            }, "Stunnel readiness");
+            prober.setDaemon(true);
+            prober.start();
+        }
+    }
+
+    /**
+     * Fails all pending futures once the process has exited.
+     */
+    void onExited() {
+        exited = true;
+        for (Map.Entry<String, StunnelFuture<Stunnel>> entry : getPending()) {
+            entry.getValue().fail(newExitException(entry.getKey()));
+        }
+    }
+
+    /**
+     * Cancels all pending futures.
+     */
+    void cancel() {
+        for (Map.Entry<String, StunnelFuture<Stunnel>> entry : getPending()) {
+            entry.getValue().cancel(false);
+        }
+    }
+
+    /**
+     * Runs on {@link #prober} until all services are ready or Stunnel exits.
+     */
+    private void checkPending() {
+        while(!exited) {
+            List<Map.Entry<String, StunnelFuture<Stunnel>>> pending = getPending();
+            if(pending.isEmpty())
+                return;
+
+            boolean settled = System.nanoTime() - configuredAt >= TimeUnit.MILLISECONDS.toNanos(BIND_SETTLE_MILLIS);
+            for (Map.Entry<String, StunnelFuture<Stunnel>> entry : pending) {
+                String accept = probes.get(entry.getKey());
+                if(accept != null ? probe(accept) : settled)
+                    entry.getValue().complete(stunnel);
+            }
+
+            try {
+                Thread.sleep(PROBE_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    @NonNull
+    private List<Map.Entry<String, StunnelFuture<Stunnel>>> getPending() {
+        List<Map.Entry<String, StunnelFuture<Stunnel>>> pending = new ArrayList<>();
+        synchronized (futures) {
+            for (Map.Entry<String, StunnelFuture<Stunnel>> entry : futures.entrySet()) {
+                if(!entry.getValue().isDone())
+                    pending.add(entry);
+            }
+        }
+
+        return pending;
+    }
+
+    @NonNull
+    private StunnelStartException newExitException(@NonNull String serviceName) {
+        return new StunnelStartException("Stunnel exited before service " + serviceName + " was ready",
+                stunnel.getExitCode(), stunnel.getLogBuffer().getLastLines(Stunnel.START_FAILURE_LOG_LINES));
+    }
+
+    /**
+     * Connects to the given accept endpoint and closes the connection right away.
+     * @param accept Value of an accept option.
+     * @return True if the connection succeeded.
+     */
+    protected static boolean probe(@NonNull String accept) {
+        if(accept.startsWith("/")) {
+            try {
+                LocalSocket socket = new UnixSocketConnector(new File(accept)).connect();
+                try {
+                    //LocalSocket only implements Closeable since API 17
+                    socket.close();
+                } catch (IOException e) {
+                    //ignore
+                }
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        int portSeparator = accept.lastIndexOf(':');
+        String host = portSeparator > 0 ? accept.substring(0, portSeparator) : "";
+        if(host.startsWith("[") && host.endsWith("]"))
+            host = host.substring(1, host.length() - 1);
+        if(host.isEmpty() || host.equals("::") || host.equals("0.0.0.0") || host.equals("*"))
+            //listening on all addresses
+            host = "localhost";
+
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, Integer.parseInt(accept.substring(portSeparator + 1))),
+                    PROBE_CONNECT_TIMEOUT_MILLIS);
+            return true;
+        } catch (IOException | NumberFormatException e) {
+            return false;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package de.fwinkel.android_stunnel;
+
+/**
+ * Socket options Stunnel can set on its sockets, see
+ * {@link StunnelBuilder.ServiceBuilder#socket(SocketSide, SocketOption, int)}.
+ */
+public enum SocketOption implements StunnelValue {
+    SO_KEEPALIVE("SO_KEEPALIVE", Type.FLAG),
+    SO_REUSEADDR("SO_REUSEADDR", Type.FLAG),
+    SO_REUSEPORT("SO_REUSEPORT", Type.FLAG),
+    SO_RCVBUF("SO_RCVBUF", Type.INT),
+    SO_SNDBUF("SO_SNDBUF", Type.INT),
+    SO_RCVLOWAT("SO_RCVLOWAT", Type.INT),
+    SO_SNDLOWAT("SO_SNDLOWAT", Type.INT),
+    SO_LINGER("SO_LINGER", Type.LINGER),
+    SO_RCVTIMEO("SO_RCVTIMEO", Type.TIMEVAL),
+    SO_SNDTIMEO("SO_SNDTIMEO", Type.TIMEVAL),
+    IP_TOS("IP_TOS", Type.INT),
+    IP_TTL("IP_TTL", Type.INT),
+    TCP_NODELAY("TCP_NODELAY", Type.FLAG),
+    TCP_KEEPCNT("TCP_KEEPCNT", Type.INT),
+    TCP_KEEPIDLE("TCP_KEEPIDLE", Type.INT),
+    TCP_KEEPINTVL("TCP_KEEPINTVL", Type.INT);
+
+    /**
+     * Kind of value an option takes.
+     */
+    public enum Type {
+        /**
+         * On/off, see {@link StunnelBuilder.ServiceBuilder#socket(SocketSide, SocketOption, boolean)}
+         */
+        FLAG,
+        /**
+         * Number, see {@link StunnelBuilder.ServiceBuilder#socket(SocketSide, SocketOption, int)}
+         */
+        INT,
+        /**
+         * On/off plus timeout, see {@link StunnelBuilder.ServiceBuilder#socketLinger(SocketSide, boolean, int)}
+         */
+        LINGER,
+        /**
+         * Timeout, see {@link StunnelBuilder.ServiceBuilder#socketTimeout(SocketSide, SocketOption, long, java.util.concurrent.TimeUnit)}
+         */
+        TIMEVAL
+    }
+
+    public final String value;
+    public final Type type;
+
+    SocketOption(String value, Type type) {
+        this.value = value;
+        this.type = type;
+    }
+
+    @Override
+    public String toStunnelValue() {
+        return value;
+    }
+}
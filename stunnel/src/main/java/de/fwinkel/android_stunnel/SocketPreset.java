@@ -0,0 +1,24 @@
+package de.fwinkel.android_stunnel;
+
+/**
+ * Predefined sets of socket options for typical kinds of traffic,
+ * see {@link StunnelBuilder.ServiceBuilder#socketPreset(SocketPreset)}.
+ */
+public enum SocketPreset {
+    /**
+     * For small request/response traffic: disables Nagle's algorithm ({@link SocketOption#TCP_NODELAY})
+     * on both the local and the remote connection, so that small writes are sent immediately
+     * instead of being delayed until previous data has been acknowledged.
+     */
+    LOW_LATENCY,
+    /**
+     * For large transfers: uses large send and receive buffers ({@link #BULK_TRANSFER_BUFFER_SIZE})
+     * on both the local and the remote connection.
+     */
+    BULK_TRANSFER;
+
+    /**
+     * Socket buffer size in bytes used by {@link #BULK_TRANSFER}.
+     */
+    public static final int BULK_TRANSFER_BUFFER_SIZE = 256 * 1024;
+}
@@ -0,0 +1,31 @@
+package de.fwinkel.android_stunnel;
+
+/**
+ * The socket a {@link SocketOption} is applied to, see
+ * {@link StunnelBuilder.ServiceBuilder#socket(SocketSide, SocketOption, int)}.
+ */
+public enum SocketSide implements StunnelValue {
+    /**
+     * The listening socket of {@link StunnelBuilder.ServiceBuilder#accept(String, int)}.
+     */
+    ACCEPT("a"),
+    /**
+     * The sockets of accepted connections.
+     */
+    LOCAL("l"),
+    /**
+     * The sockets of outgoing connections to {@link StunnelBuilder.ServiceBuilder#connect(String, int)}.
+     */
+    REMOTE("r");
+
+    public final String value;
+
+    SocketSide(String value) {
+        this.value = value;
+    }
+
+    @Override
+    public String toStunnelValue() {
+        return value;
+    }
+}
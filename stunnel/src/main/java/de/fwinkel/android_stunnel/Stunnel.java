@@ -1,46 +1,989 @@
 package de.fwinkel.android_stunnel;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 public class Stunnel implements Closeable {
 
+    /**
+     * Notified once a Stunnel process has exited, for whatever reason: because it crashed,
+     * failed to start or was {@link #close() closed}.
+     * Called on the {@link Stunnel}'s log pump thread.
+     */
+    public interface ExitListener {
+        /**
+         * @param stunnel
+         * @param exitCode The process' exit code or null if it could not be determined.
+         */
+        void onExited(@NonNull Stunnel stunnel, @Nullable Integer exitCode);
+    }
+
     static final String LOG_TAG = "Stunnel";
 
+    /**
+     * Default number of log lines kept in {@link #getLogBuffer()}.
+     */
+    public static final int DEFAULT_LOG_BUFFER_SIZE = 256;
+
+    /**
+     * Number of log lines included in a {@link StunnelStartException}.
+     */
+    protected static final int START_FAILURE_LOG_LINES = 20;
+
+    /**
+     * Signal that makes Stunnel reload its config file.
+     */
+    protected static final int SIGNAL_HUP = 1;
+    /**
+     * Signal that makes Stunnel terminate.
+     */
+    protected static final int SIGNAL_TERM = 15;
+    /**
+     * Interval in which {@link #close(long, TimeUnit)} checks whether all connections have been closed.
+     */
+    protected static final long DRAIN_POLL_INTERVAL_MILLIS = 50;
+    /**
+     * Time {@link #close(long, TimeUnit)} gives Stunnel to exit after {@link #SIGNAL_TERM} before it is killed.
+     */
+    protected static final long TERMINATE_GRACE_MILLIS = 1000;
+    /**
+     * Placeholder service of the config that {@link #stopAccepting(long, TimeUnit)} reloads,
+     * as Stunnel does not accept a configuration without services.
+     */
+    protected static final String DRAIN_SERVICE_NAME = "stunnel-drain";
+    protected static final String DRAIN_SOCKET_NAME = "drain.sock";
+    /**
+     * Appended to the drain socket's path to get the placeholder service's connect target, which nobody listens on.
+     */
+    protected static final String DRAIN_TARGET_SUFFIX = ".none";
+
     @NonNull
     protected final File binaryPath;
-    @NonNull
+    /**
+     * Config file Stunnel reads its configuration from. Null if the configuration is passed via {@link #configSource}.
+     */
+    @Nullable
     protected final File configPath;
+    /**
+     * Config that is written to Stunnel's stdin. Null if the configuration is read from {@link #configPath}.
+     */
+    @Nullable
+    protected final StunnelConfigSource configSource;
+    @NonNull
+    protected final StunnelLogBuffer logBuffer;
+    @NonNull
+    protected final StunnelMetrics metrics = new StunnelMetrics();
+    @NonNull
+    private final StunnelLogParser logParser = new StunnelLogParser(metrics, new StunnelLogParser.EventListener() {
+        @Override
+        public void onServiceBindResult(@NonNull String serviceName, boolean bound) {
+            synchronized (bindResults) {
+                bindResults.put(serviceName, bound);
+                bindResults.notifyAll();
+            }
+            readiness.onBindResult(serviceName, bound);
+        }
+    });
+    @NonNull
+    private final ServiceReadiness readiness = new ServiceReadiness(this);
+
+    @Nullable
+    private volatile StunnelLogListener logListener;
+    @Nullable
+    private volatile StunnelLogSink logSink;
+    /**
+     * Limits the lines that are forwarded to {@link #logBuffer}, {@link #logListener} and {@link #logSink}.
+     * Null to forward all lines.
+     */
+    @Nullable
+    private LogRateLimiter logRateLimiter;
+    @NonNull
+    private final List<ExitListener> exitListeners = new CopyOnWriteArrayList<>();
 
     private Process process;
+    private int pid = -1;
+    private Thread logPump;
+
+    /**
+     * Released by the log pump once the configuration has been applied or the process' output ended.
+     */
+    private final CountDownLatch startupLatch = new CountDownLatch(1);
+    private volatile boolean configured;
+    /**
+     * Released by the log pump once the process has exited.
+     */
+    private final CountDownLatch exitLatch = new CountDownLatch(1);
+    @Nullable
+    private volatile Integer exitCode;
+    /**
+     * Reader of the log pump, set when the process is started.
+     */
+    @Nullable
+    private volatile LogLineReader logReader;
+
+    /**
+     * Guards {@link #configurationCount} and {@link #reloadFailureCount}; notified whenever one of them changes
+     * or the process exits.
+     */
+    private final Object configurationLock = new Object();
+    /**
+     * Number of times Stunnel reported that it applied its configuration.
+     */
+    private int configurationCount;
+    /**
+     * Number of times Stunnel reported that it failed to reload its configuration.
+     */
+    private int reloadFailureCount;
+    /**
+     * Serializes calls to {@link #reconfigure(StunnelBuilder, long, TimeUnit)}.
+     */
+    private final Object reconfigureLock = new Object();
+    /**
+     * Temporary directory of the {@link StunnelBuilder} of the last {@link #reconfigure(StunnelBuilder, long, TimeUnit)}
+     * holding secondary config files that the current configuration references.
+     */
+    @Nullable
+    private File reconfigureDirectory;
+    /**
+     * References to the stored secondary config files of the last {@link #reconfigure(StunnelBuilder, long, TimeUnit)}.
+     */
+    @NonNull
+    private List<StunnelFileStore.Reference> reconfigureReferences = Collections.emptyList();
+    /**
+     * Stored secondary config files that are released when this {@link Stunnel} is closed.
+     */
+    @NonNull
+    private final List<StunnelFileStore.Reference> ownedReferences = new CopyOnWriteArrayList<>();
+    /**
+     * Directories that are deleted when this {@link Stunnel} is closed.
+     */
+    @NonNull
+    private final List<File> ownedDirectories = new CopyOnWriteArrayList<>();
+    /**
+     * Service name -> socket file of services that accept connections on a Unix socket.
+     */
+    @NonNull
+    private final Map<String, File> unixSockets = new ConcurrentHashMap<>();
+    /**
+     * Service name -> TCP port of services that accept connections on a TCP port.
+     */
+    @NonNull
+    private final Map<String, Integer> acceptPorts = new ConcurrentHashMap<>();
+    /**
+     * Service name -> whether binding the accept socket succeeded, as reported in the log.
+     * Guarded by and notified on itself.
+     */
+    @NonNull
+    private final Map<String, Boolean> bindResults = new HashMap<>();
+    /**
+     * Records the process while it is running so that it can be killed if it outlives our process.
+     */
+    @Nullable
+    private StunnelProcessRegistry processRegistry;
+    /**
+     * Unix socket the placeholder service of {@link #stopAccepting(long, TimeUnit)} accepts on.
+     * Null to use {@link #DRAIN_SOCKET_NAME} next to the config file.
+     */
+    @Nullable
+    private volatile File drainSocket;
 
     public Stunnel(@NonNull File binaryPath, @NonNull File configPath) {
+        this(binaryPath, configPath, DEFAULT_LOG_BUFFER_SIZE);
+    }
+
+    /**
+     * @param binaryPath
+     * @param configPath
+     * @param logBufferSize Number of log lines to keep in {@link #getLogBuffer()}.
+     */
+    public Stunnel(@NonNull File binaryPath, @NonNull File configPath, int logBufferSize) {
+        this(binaryPath, configPath, null, logBufferSize);
+    }
+
+    /**
+     * Creates a {@link Stunnel} that receives its configuration through a pipe (Stunnel's stdin)
+     * instead of a config file, so the configuration is never written to disk.
+     * Such a {@link Stunnel} can't be {@link #reconfigure(StunnelBuilder) reconfigured}.
+     * @param binaryPath
+     * @param configSource
+     * @param logBufferSize Number of log lines to keep in {@link #getLogBuffer()}.
+     */
+    public Stunnel(@NonNull File binaryPath, @NonNull StunnelConfigSource configSource, int logBufferSize) {
+        this(binaryPath, null, configSource, logBufferSize);
+    }
+
+    private Stunnel(@NonNull File binaryPath, @Nullable File configPath, @Nullable StunnelConfigSource configSource, int logBufferSize) {
         this.binaryPath = binaryPath;
         this.configPath = configPath;
+        this.configSource = configSource;
+        this.logBuffer = new StunnelLogBuffer(logBufferSize);
     }
 
     /**
-     * Starts the Stunnel process and does not return until the configuration has been fully applied.
+     * Starts the Stunnel process and does not return until the configuration has been fully applied.<br/>
+     * Stunnel's output keeps being drained by a background thread for the lifetime of the process,
+     * see {@link #getLogBuffer()} and {@link #setLogListener(StunnelLogListener)}.
+     * @throws StunnelStartException When the Stunnel process exits before its configuration is applied.
      * @throws IOException When there is an error starting the Stunnel process or while reading from
      * the Stunnel process' output.
+     * @see #start(long, TimeUnit)
+     * @see #startAsync(long, TimeUnit, Executor)
      */
     public void start() throws IOException {
-        this.process = new ProcessBuilder(binaryPath.getAbsolutePath(), configPath.getAbsolutePath()).start();
+        start(0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Same as {@link #start()} but gives up when Stunnel does not apply its configuration in time.
+     * The process is destroyed when starting fails for any reason.
+     * @param timeout Maximum time to wait for the configuration to be applied. 0 or less to wait indefinitely.
+     * @param unit
+     * @throws StunnelStartException When the Stunnel process exits before its configuration is applied
+     * or when the timeout elapses.
+     * @throws IOException When there is an error starting the Stunnel process or while reading from
+     * the Stunnel process' output.
+     */
+    public void start(long timeout, @NonNull TimeUnit unit) throws IOException {
+        List<String> command;
+        if(configPath != null)
+            command = Arrays.asList(binaryPath.getAbsolutePath(), configPath.getAbsolutePath());
+        else
+            //read the config from stdin
+            command = Arrays.asList(binaryPath.getAbsolutePath(), "-fd", "0");
+
+        this.process = startProcess(command);
+        this.pid = Util.getPid(process);
+        if(processRegistry != null && pid >= 0) {
+            try {
+                processRegistry.register(pid, binaryPath);
+            } catch (IOException e) {
+                //only needed to clean up after a crash
+            }
+        }
+
+        logReader = new LogLineReader(process.getInputStream());
+        logPump = new Thread(new LogPump(process, logReader), "Stunnel log pump");
+        logPump.setDaemon(true);
+        logPump.start();
+
+        try {
+            if(configSource != null)
+                pipeConfig();
+
+            //wait until Stunnel is fully initialized
+            if(timeout > 0) {
+                if(!startupLatch.await(timeout, unit)) {
+                    throw new StunnelStartException("Stunnel did not start within " + unit.toMillis(timeout) + "ms",
+                            null, logBuffer.getLastLines(START_FAILURE_LOG_LINES));
+                }
+            }
+            else
+                startupLatch.await();
+
+            if(!configured) {
+                //the log pump only releases the latch without configuration after the process has exited
+                exitLatch.await();
+                throw new StunnelStartException("Stunnel exited before its configuration was applied",
+                        exitCode, logBuffer.getLastLines(START_FAILURE_LOG_LINES));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            process.destroy();
+            throw new InterruptedIOException("Interrupted while waiting for Stunnel to start");
+        } catch (IOException e) {
+            process.destroy();
+            throw e;
+        }
+    }
+
+    /**
+     * Starts the process that runs the configuration.
+     * The process' stdout must contain everything it logs.
+     * @param command Stunnel's command line: the binary followed by its arguments.
+     * @return
+     * @throws IOException
+     */
+    @NonNull
+    protected Process startProcess(@NonNull List<String> command) throws IOException {
+        //stdout is merged into stderr so that a single thread drains everything Stunnel writes
+        return new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .start();
+    }
+
+    /**
+     * Writes {@link #configSource} to Stunnel's stdin and closes it, which tells Stunnel that the config is complete.
+     * @throws IOException
+     */
+    private void pipeConfig() throws IOException {
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(process.getOutputStream(), "UTF-8");
+            //write BOM
+            writer.write('\uFEFF');
+            configSource.writeTo(writer);
+            writer.flush();
+        }
+        finally {
+            Util.close(writer);
+        }
+    }
+
+    /**
+     * Starts Stunnel in the background without blocking the calling thread.
+     * The returned future completes with this {@link Stunnel} once the configuration has been applied,
+     * or fails with the exception thrown by {@link #start(long, TimeUnit)}.
+     * Cancelling the future while Stunnel is starting destroys the process.
+     * @param timeout Maximum time to wait for the configuration to be applied. 0 or less to wait indefinitely.
+     * @param unit
+     * @param executor Executor that waits for Stunnel to start. Null to use a new thread.
+     * @return
+     */
+    @NonNull
+    public StunnelFuture<Stunnel> startAsync(final long timeout, @NonNull final TimeUnit unit, @Nullable Executor executor) {
+        return execute(new StunnelFuture<>(new Callable<Stunnel>() {
+            @Override
+            public Stunnel call() throws Exception {
+                start(timeout, unit);
+                return Stunnel.this;
+            }
+        }), executor);
+    }
+
+    /**
+     * Same as {@link #startAsync(long, TimeUnit, Executor)} with a new thread.
+     * @param timeout
+     * @param unit
+     * @return
+     */
+    @NonNull
+    public StunnelFuture<Stunnel> startAsync(long timeout, @NonNull TimeUnit unit) {
+        return startAsync(timeout, unit, null);
+    }
+
+    /**
+     * Runs the given future on the given executor or on a new thread if executor is null.
+     * @param future
+     * @param executor
+     * @param <T>
+     * @return The given future.
+     */
+    @NonNull
+    static <T> StunnelFuture<T> execute(@NonNull StunnelFuture<T> future, @Nullable Executor executor) {
+        if(executor != null)
+            executor.execute(future);
+        else {
+            Thread thread = new Thread(future, "Stunnel start");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        return future;
+    }
+
+    /**
+     * Returns true if the process has been started and did not exit yet.
+     * @return
+     */
+    public boolean isRunning() {
+        return process != null && exitLatch.getCount() > 0;
+    }
+
+    /**
+     * Returns the process' exit code or null if the process is still running or has not been started.
+     * @return
+     */
+    @Nullable
+    public Integer getExitCode() {
+        return exitCode;
+    }
+
+    /**
+     * Blocks until the process has exited.
+     * @return The process' exit code.
+     * @throws IllegalStateException When the process has not been started.
+     * @throws InterruptedException
+     */
+    public int waitFor() throws InterruptedException {
+        if(process == null)
+            throw new IllegalStateException("Stunnel has not been started");
+
+        exitLatch.await();
+        Integer exitCode = this.exitCode;
+        return exitCode != null ? exitCode : process.waitFor();
+    }
+
+    /**
+     * Returns the process id of the Stunnel process or -1 if it is unknown or the process has not been started.
+     * @return
+     */
+    public int getPid() {
+        return pid;
+    }
+
+    /**
+     * Replaces the running configuration with the given builder's configuration without restarting
+     * the process: the config file is rewritten in place and Stunnel is asked to reload it (SIGHUP).
+     * Established connections are kept alive; services that have been removed stop accepting new connections
+     * and new services start accepting connections.<br/>
+     * Does not return until Stunnel confirms that it applied the new configuration. If Stunnel rejects
+     * the new configuration, it keeps running with the old one and the old config file is restored.
+     * @param builder The new configuration. Its secondary config files (e.g. PSK secrets) are kept
+     *                until this {@link Stunnel} is closed or reconfigured again.
+     * @param timeout Maximum time to wait for the reload. 0 or less to wait indefinitely.
+     * @param unit
+     * @throws IllegalStateException When the process is not running, its pid is unknown or it has been started
+     * with a piped configuration.
+     * @throws StunnelStartException When Stunnel rejects the new configuration, exits or the timeout elapses.
+     * @throws IOException When the config file can't be written.
+     */
+    public void reconfigure(@NonNull StunnelBuilder builder, long timeout, @NonNull TimeUnit unit) throws IOException {
+        synchronized (reconfigureLock) {
+            if(!isRunning())
+                throw new IllegalStateException("Stunnel is not running");
+            if(pid < 0)
+                throw new IllegalStateException("Can't reconfigure Stunnel: process id is unknown");
+            if(configPath == null)
+                throw new IllegalStateException("Can't reconfigure Stunnel: configuration has been piped, not read from a file");
+
+            File newConfig = builder.writeConfigFile();
+            File newDirectory = newConfig.getParentFile();
+            List<StunnelFileStore.Reference> newReferences;
+            try {
+                newReferences = builder.acquireStoredFiles();
+            }
+            catch (IOException e) {
+                StunnelBuilder.deleteDirectory(newDirectory);
+                throw e;
+            }
+            //the config file must stay at the path Stunnel was started with. The previous one is kept until
+            //the reload succeeded, so that later reloads and restarts don't pick up a rejected config
+            File previousConfig = new File(configPath.getPath() + ".previous");
+            if(!configPath.renameTo(previousConfig)) {
+                StunnelBuilder.deleteDirectory(newDirectory);
+                StunnelBuilder.releaseStoredFiles(newReferences);
+                throw new IOException("Can't back up config file " + configPath);
+            }
+            if(!newConfig.renameTo(configPath)) {
+                previousConfig.renameTo(configPath);
+                StunnelBuilder.deleteDirectory(newDirectory);
+                StunnelBuilder.releaseStoredFiles(newReferences);
+                throw new IOException("Can't replace config file " + configPath);
+            }
+
+            int configurations;
+            int reloadFailures;
+            synchronized (configurationLock) {
+                configurations = configurationCount;
+                reloadFailures = reloadFailureCount;
+            }
+
+            //before the reload, so that the new services are checked once it has been applied
+            List<String> newServices = new ArrayList<>();
+            for (String serviceName : builder.serviceNames) {
+                if(!readiness.contains(serviceName))
+                    newServices.add(serviceName);
+                readiness.get(serviceName);
+            }
+            builder.addReadinessProbes(this);
 
-        //wait until Stunnel is fully initialized
-        BufferedReader reader = new BufferedReader(new InputStreamReader(this.process.getErrorStream()));
+            Util.sendSignal(pid, SIGNAL_HUP);
 
-        String line;
-        while((line = reader.readLine()) != null) {
-//            Log.d(LOG_TAG, line);
+            try {
+                awaitReload(configurations, reloadFailures, timeout, unit);
+            }
+            catch (IOException e) {
+                //Stunnel keeps using the previous config and secondary config files
+                if(!previousConfig.renameTo(configPath))
+                    logBuffer.add("Can't restore config file " + configPath + " after a failed reload");
+                StunnelBuilder.deleteDirectory(newDirectory);
+                StunnelBuilder.releaseStoredFiles(newReferences);
+                for (String serviceName : newServices) {
+                    readiness.get(serviceName).fail(e);
+                }
+                throw e;
+            }
 
-            if(line.contains("Configuration successful"))
-                break;
+            for (String serviceName : builder.serviceNames) {
+                metrics.getOrAddService(serviceName);
+            }
+            unixSockets.putAll(builder.unixSockets);
+            acceptPorts.putAll(builder.acceptPorts);
+            for (File socketFile : builder.managedUnixSockets) {
+                deleteOnClose(socketFile);
+            }
+            previousConfig.delete();
+            StunnelBuilder.deleteDirectory(reconfigureDirectory);
+            reconfigureDirectory = newDirectory;
+            StunnelBuilder.releaseStoredFiles(reconfigureReferences);
+            reconfigureReferences = newReferences;
+        }
+    }
+
+    /**
+     * Same as {@link #reconfigure(StunnelBuilder, long, TimeUnit)} without timeout.
+     * @param builder
+     * @throws IOException
+     */
+    public void reconfigure(@NonNull StunnelBuilder builder) throws IOException {
+        reconfigure(builder, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Waits until Stunnel reports the result of a reload that was triggered while
+     * {@link #configurationCount} and {@link #reloadFailureCount} had the given values.
+     * @param configurations
+     * @param reloadFailures
+     * @param timeout 0 or less to wait indefinitely.
+     * @param unit
+     * @throws IOException
+     */
+    private void awaitReload(int configurations, int reloadFailures, long timeout, @NonNull TimeUnit unit) throws IOException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        synchronized (configurationLock) {
+            while(configurationCount == configurations) {
+                if(reloadFailureCount != reloadFailures) {
+                    throw new StunnelStartException("Stunnel failed to reload its configuration",
+                            null, logBuffer.getLastLines(START_FAILURE_LOG_LINES));
+                }
+                if(!isRunning()) {
+                    throw new StunnelStartException("Stunnel exited while reloading its configuration",
+                            exitCode, logBuffer.getLastLines(START_FAILURE_LOG_LINES));
+                }
+
+                try {
+                    if(timeout > 0) {
+                        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                        if(remaining <= 0) {
+                            throw new StunnelStartException("Stunnel did not reload its configuration within "
+                                    + unit.toMillis(timeout) + "ms",
+                                    null, logBuffer.getLastLines(START_FAILURE_LOG_LINES));
+                        }
+                        configurationLock.wait(remaining);
+                    }
+                    else
+                        configurationLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for Stunnel to reload its configuration");
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a connector for the given service's Unix socket.
+     * @param serviceName Name of a service that has been configured with
+     *                    {@link StunnelBuilder.ServiceBuilder#acceptUnix(File)} or
+     *                    {@link StunnelBuilder.ServiceBuilder#acceptUnix()}.
+     * @return
+     * @throws IllegalArgumentException When the service does not accept connections on a Unix socket.
+     */
+    @NonNull
+    public UnixSocketConnector getUnixSocketConnector(@NonNull String serviceName) {
+        File socketFile = unixSockets.get(serviceName);
+        if(socketFile == null)
+            throw new IllegalArgumentException("Service does not accept connections on a Unix socket: " + serviceName);
+
+        return new UnixSocketConnector(socketFile);
+    }
+
+    void addUnixSocket(@NonNull String serviceName, @NonNull File socketFile) {
+        unixSockets.put(serviceName, socketFile);
+    }
+
+    /**
+     * Returns the TCP port the given service accepts connections on, e.g. the port that has been chosen by
+     * {@link StunnelBuilder.ServiceBuilder#acceptLocalEphemeral()}.
+     * @param serviceName
+     * @return
+     * @throws IllegalStateException When Stunnel has not applied its configuration yet.
+     * @throws IllegalArgumentException When the service does not accept connections on a TCP port.
+     */
+    public int getAcceptPort(@NonNull String serviceName) {
+        if(!configured)
+            throw new IllegalStateException("Stunnel has not been started");
+
+        Integer port = acceptPorts.get(serviceName);
+        if(port == null)
+            throw new IllegalArgumentException("Service does not accept connections on a TCP port: " + serviceName);
+
+        return port;
+    }
+
+    /**
+     * Records the process in the given registry while it is running. Must be called before {@link #start()}.
+     * @param processRegistry
+     */
+    void setProcessRegistry(@Nullable StunnelProcessRegistry processRegistry) {
+        this.processRegistry = processRegistry;
+    }
+
+    void addAcceptPort(@NonNull String serviceName, int port) {
+        acceptPorts.put(serviceName, port);
+    }
+
+    /**
+     * Sets the Unix socket used by {@link #stopAccepting(long, TimeUnit)}. Its path plus {@link #DRAIN_TARGET_SUFFIX}
+     * must not exceed {@link StunnelBuilder#MAX_UNIX_SOCKET_PATH_LENGTH} characters; the file is deleted when this {@link Stunnel} is closed.
+     * @param socketFile
+     */
+    void setDrainSocket(@Nullable File socketFile) {
+        this.drainSocket = socketFile;
+    }
+
+    /**
+     * Waits until Stunnel reports whether it could bind the given service's accept socket.<br/>
+     * Stunnel only logs successful binds at log level info and above, while failures are always logged.
+     * @param serviceName
+     * @param timeout
+     * @param unit
+     * @return True if the socket has been bound, false if binding failed, null if there was no report in time.
+     * @throws InterruptedException
+     */
+    @Nullable
+    Boolean awaitBindResult(@NonNull String serviceName, long timeout, @NonNull TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        synchronized (bindResults) {
+            while(!bindResults.containsKey(serviceName)) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if(remaining <= 0)
+                    return null;
+                bindResults.wait(remaining);
+            }
+
+            return bindResults.get(serviceName);
+        }
+    }
+
+    /**
+     * Waits until the log pump has handled every line Stunnel has written so far and waits for more output,
+     * or the process has exited.
+     * @param timeout
+     * @param unit
+     * @return False if that did not happen in time.
+     * @throws InterruptedException
+     */
+    boolean awaitLogCaughtUp(long timeout, @NonNull TimeUnit unit) throws InterruptedException {
+        LogLineReader reader = logReader;
+        if(reader == null)
+            return exitLatch.getCount() == 0;
+
+        //the reader also reports waiting once the output has ended
+        return reader.awaitWaiting(timeout, unit) || exitLatch.getCount() == 0;
+    }
+
+    /**
+     * Returns a future that completes with this {@link Stunnel} once the given service accepts connections,
+     * so that traffic for one service can start before all services of the process are up.<br/>
+     * The service is ready when Stunnel reports that it bound the service's accept socket or, if the service
+     * has a {@link StunnelBuilder.ServiceBuilder#probeReadiness() readiness probe}, when a connection to the
+     * accept endpoint succeeds. Without bind report and probe (Stunnel only reports successful binds at log
+     * level info and above) the service is ready shortly after the configuration has been applied
+     * unless a bind error is reported.<br/>
+     * The future fails with a {@link StunnelStartException} when binding fails or the process exits
+     * before the service is ready, and is cancelled when this {@link Stunnel} is closed.
+     * @param serviceName
+     * @return
+     */
+    @NonNull
+    public StunnelFuture<Stunnel> getServiceReadiness(@NonNull String serviceName) {
+        return readiness.get(serviceName);
+    }
+
+    /**
+     * Probes the given service's accept endpoint, see {@link #getServiceReadiness(String)}.
+     * @param serviceName
+     * @param accept Value of the service's accept option.
+     */
+    void addReadinessProbe(@NonNull String serviceName, @NonNull String accept) {
+        readiness.addProbe(serviceName, accept);
+    }
+
+    /**
+     * Sets a listener that receives every line Stunnel logs from now on.
+     * @param logListener Null to remove the current listener.
+     */
+    public void setLogListener(@Nullable StunnelLogListener logListener) {
+        this.logListener = logListener;
+    }
+
+    /**
+     * Sets a sink that receives every line Stunnel logs from now on without converting each line
+     * into a {@link String}, see {@link StunnelLogSink}.
+     * @param logSink Null to remove the current sink.
+     */
+    public void setLogSink(@Nullable StunnelLogSink logSink) {
+        this.logSink = logSink;
+    }
+
+    /**
+     * Limits the number of lines per second and category that are forwarded to the log buffer, listener and sink,
+     * see {@link StunnelBuilder#logRateLimit(int)}. Must be called before {@link #start()}.
+     * @param linesPerSecond 0 or less to forward all lines.
+     */
+    void setLogRateLimit(int linesPerSecond) {
+        logRateLimiter = linesPerSecond > 0 ? new LogRateLimiter(linesPerSecond) : null;
+    }
+
+    /**
+     * Returns the buffer that holds the most recent lines of Stunnel's log output.
+     * @return
+     */
+    @NonNull
+    public StunnelLogBuffer getLogBuffer() {
+        return logBuffer;
+    }
+
+    /**
+     * Shortcut for {@link StunnelLogBuffer#getLines()}.
+     * @return
+     */
+    @NonNull
+    public List<String> getLogLines() {
+        return logBuffer.getLines();
+    }
+
+    /**
+     * Returns the per-service traffic and connection metrics that are collected from Stunnel's log.
+     * @return
+     */
+    @NonNull
+    public StunnelMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Called on the log pump thread for every line Stunnel logs.
+     * @param line
+     */
+    protected void onLogLine(@NonNull CharSequence line) {
+        long now = System.nanoTime();
+        LogLevel level = LogLevel.fromLine(line);
+        if(logRateLimiter == null)
+            forwardLogLine(line, level);
+        else {
+            boolean accepted = logRateLimiter.accept(line, level, now);
+            int suppressed = logRateLimiter.takeSuppressed();
+            if(suppressed > 0)
+                forwardLogLine(suppressed + " log line(s) suppressed by rate limiting", LogLevel.NOTICE);
+            if(accepted)
+                forwardLogLine(line, level);
+        }
+
+        //metrics and state are updated from every line
+        logParser.parse(line, now);
+
+        if(Util.indexOf(line, "Configuration successful", 0) >= 0) {
+            synchronized (configurationLock) {
+                configurationCount++;
+                configurationLock.notifyAll();
+            }
+            readiness.onConfigured();
+
+            if(!configured) {
+                configured = true;
+                startupLatch.countDown();
+            }
+        }
+        else if(Util.indexOf(line, "Failed to reload the configuration", 0) >= 0) {
+            synchronized (configurationLock) {
+                reloadFailureCount++;
+                configurationLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Passes a line to {@link #logBuffer}, {@link #logListener} and {@link #logSink}.
+     * @param line
+     * @param level
+     */
+    private void forwardLogLine(@NonNull CharSequence line, @NonNull LogLevel level) {
+        logBuffer.add(line);
+
+        StunnelLogSink sink = logSink;
+        if(sink != null) {
+            try {
+                sink.onLogLine(this, level, line);
+            }
+            catch (RuntimeException e) {
+                //a faulty sink must not stop us from draining Stunnel's output
+            }
+        }
+
+        StunnelLogListener listener = logListener;
+        if(listener != null) {
+            try {
+                listener.onLogLine(this, line.toString());
+            }
+            catch (RuntimeException e) {
+                //a faulty listener must not stop us from draining Stunnel's output
+            }
+        }
+    }
+
+    /**
+     * Adds a listener that is notified once the process has exited.
+     * @param listener
+     */
+    public void addExitListener(@NonNull ExitListener listener) {
+        exitListeners.add(listener);
+    }
+
+    public void removeExitListener(@NonNull ExitListener listener) {
+        exitListeners.remove(listener);
+    }
+
+    /**
+     * Closes Stunnel gracefully: stops accepting new connections, waits until all open connections
+     * have been closed (as tracked by {@link #getMetrics()}) or the timeout elapses and then terminates the process,
+     * killing it if it does not exit in time.<br/>
+     * Accepting is stopped by reloading a configuration without the services, which requires a configuration
+     * that has been read from a config file (see {@link #reconfigure(StunnelBuilder)}); with a piped
+     * configuration new connections are still accepted while draining. If accepting can't be stopped,
+     * the reason is added to the {@link #getLogBuffer() log buffer} and the open connections are drained anyway.
+     * Blocks the calling thread.
+     * @param drainTimeout Maximum time to wait for open connections. 0 or less to terminate right away.
+     * @param unit
+     * @throws IOException
+     */
+    public void close(long drainTimeout, @NonNull TimeUnit unit) throws IOException {
+        long deadline = System.nanoTime() + unit.toNanos(drainTimeout);
+
+        try {
+            if(drainTimeout > 0 && isRunning()) {
+                try {
+                    stopAccepting(drainTimeout, unit);
+                } catch (IllegalStateException | IOException e) {
+                    //keep serving the open connections anyway
+                    logBuffer.add("Can't stop accepting new connections while draining: " + e.getMessage());
+                }
+
+                while(metrics.getActiveConnections() > 0 && isRunning()) {
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if(remaining <= 0)
+                        break;
+                    exitLatch.await(Math.min(remaining, DRAIN_POLL_INTERVAL_MILLIS), TimeUnit.MILLISECONDS);
+                }
+            }
+
+            if(isRunning() && pid >= 0) {
+                Util.sendSignal(pid, SIGNAL_TERM);
+                exitLatch.await(TERMINATE_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Makes the running process stop accepting new connections while it keeps serving the open ones,
+     * see {@link #close(long, TimeUnit)}.
+     * @param timeout Maximum time to wait for Stunnel to apply the change. 0 or less to wait indefinitely.
+     * @param unit
+     * @throws IllegalStateException When the process' pid is unknown or it has been started with a piped configuration.
+     * @throws IOException When the change could not be applied.
+     */
+    protected void stopAccepting(long timeout, @NonNull TimeUnit unit) throws IOException {
+        synchronized (reconfigureLock) {
+            if(pid < 0)
+                throw new IllegalStateException("Can't stop accepting connections: process id is unknown");
+            if(configPath == null)
+                throw new IllegalStateException("Can't stop accepting connections: configuration has been piped, not read from a file");
+
+            File directory = configPath.getParentFile();
+            File socketFile = drainSocket;
+            if(socketFile == null)
+                socketFile = new File(directory, DRAIN_SOCKET_NAME);
+            if(socketFile.getAbsolutePath().length() + DRAIN_TARGET_SUFFIX.length() > StunnelBuilder.MAX_UNIX_SOCKET_PATH_LENGTH)
+                throw new IOException("Path of the drain socket is too long: " + socketFile);
+
+            File drainConfig = new File(directory, configPath.getName() + ".drain");
+            writeDrainConfig(drainConfig, socketFile);
+            if(!drainConfig.renameTo(configPath)) {
+                drainConfig.delete();
+                throw new IOException("Can't replace config file " + configPath);
+            }
+
+            int configurations;
+            int reloadFailures;
+            synchronized (configurationLock) {
+                configurations = configurationCount;
+                reloadFailures = reloadFailureCount;
+            }
+
+            Util.sendSignal(pid, SIGNAL_HUP);
+            awaitReload(configurations, reloadFailures, timeout, unit);
+        }
+    }
+
+    /**
+     * Writes a config file with the global options of the current config file and a placeholder service
+     * that accepts on the given Unix socket instead of the current services. Connections to the placeholder
+     * fail right away: its target is a socket path next to the given one that nobody listens on.
+     * @param file
+     * @param socketFile
+     * @throws IOException
+     */
+    private void writeDrainConfig(@NonNull File file, @NonNull File socketFile) throws IOException {
+        BufferedReader reader = null;
+        Writer writer = null;
+        try {
+            reader = new BufferedReader(new FileReader(configPath));
+            writer = new BufferedWriter(new FileWriter(file));
+            //write BOM
+            writer.write('\uFEFF');
+
+            String line;
+            while((line = reader.readLine()) != null) {
+                line = line.replace("\uFEFF", "");
+                if(line.trim().startsWith("["))
+                    break;
+                writer.write(line);
+                writer.write('\n');
+            }
+
+            StunnelConfigSection drainService = new StunnelConfigSection(DRAIN_SERVICE_NAME);
+            drainService.set(new StunnelOption<>(StunnelBuilder.ServiceBuilder.KEY_SERVICE_CLIENT, new StunnelBoolean(true)));
+            drainService.set(new StunnelOption<>(StunnelBuilder.ServiceBuilder.KEY_SERVICE_ACCEPT, socketFile.getAbsolutePath()));
+            //never the accept socket itself: Stunnel would connect to itself until it runs out of file descriptors
+            File target = new File(socketFile.getAbsolutePath() + DRAIN_TARGET_SUFFIX);
+            drainService.set(new StunnelOption<>(StunnelBuilder.ServiceBuilder.KEY_SERVICE_CONNECT, target.getAbsolutePath()));
+            drainService.writeTo(writer);
+            writer.flush();
+        }
+        finally {
+            Util.close(reader);
+            Util.close(writer);
         }
     }
 
@@ -48,5 +991,91 @@ public class Stunnel implements Closeable {
     public void close() throws IOException {
         if(process != null)
             process.destroy();
+        readiness.cancel();
+
+        File drainSocket = this.drainSocket;
+        if(drainSocket != null)
+            drainSocket.delete();
+
+        synchronized (reconfigureLock) {
+            StunnelBuilder.deleteDirectory(reconfigureDirectory);
+            reconfigureDirectory = null;
+            StunnelBuilder.releaseStoredFiles(reconfigureReferences);
+            reconfigureReferences = Collections.emptyList();
+        }
+        for (File directory : ownedDirectories) {
+            StunnelBuilder.deleteDirectory(directory);
+        }
+        ownedDirectories.clear();
+        StunnelBuilder.releaseStoredFiles(ownedReferences);
+        ownedReferences.clear();
+    }
+
+    /**
+     * Deletes the given directory (e.g. holding config files) when this {@link Stunnel} is closed.
+     * @param directory
+     */
+    void deleteOnClose(@NonNull File directory) {
+        ownedDirectories.add(directory);
+    }
+
+    /**
+     * Releases the given stored config file when this {@link Stunnel} is closed.
+     * @param reference
+     */
+    void releaseOnClose(@NonNull StunnelFileStore.Reference reference) {
+        ownedReferences.add(reference);
+    }
+
+    /**
+     * Reads Stunnel's output line-by-line until the process closes it.
+     */
+    private class LogPump implements Runnable {
+        @NonNull
+        private final Process process;
+        @NonNull
+        private final LogLineReader reader;
+
+        LogPump(@NonNull Process process, @NonNull LogLineReader reader) {
+            this.process = process;
+            this.reader = reader;
+        }
+
+        @Override
+        public void run() {
+            InputStream in = process.getInputStream();
+            LogLine line = new LogLine();
+            try {
+                while(reader.readLine(line)) {
+                    onLogLine(line);
+                }
+            }
+            catch (IOException e) {
+                //stream closed: process has been destroyed
+            }
+            finally {
+                Util.close(in);
+            }
+
+            try {
+                exitCode = process.waitFor();
+            } catch (InterruptedException e) {
+                //nobody interrupts the log pump
+            }
+            finally {
+                if(processRegistry != null && pid >= 0)
+                    processRegistry.unregister(pid);
+                readiness.onExited();
+                exitLatch.countDown();
+                startupLatch.countDown();
+                synchronized (configurationLock) {
+                    configurationLock.notifyAll();
+                }
+            }
+
+            for (ExitListener listener : exitListeners) {
+                listener.onExited(Stunnel.this, exitCode);
+            }
+        }
     }
 }
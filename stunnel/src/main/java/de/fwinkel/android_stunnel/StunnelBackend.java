@@ -0,0 +1,33 @@
+package de.fwinkel.android_stunnel;
+
+/**
+ * Implementation that runs a {@link StunnelBuilder}'s configuration, see {@link StunnelBuilder#backend(StunnelBackend)}.
+ */
+public enum StunnelBackend {
+    /**
+     * Runs the Stunnel binary (libstunnel.so) in a separate process.
+     */
+    NATIVE,
+    /**
+     * Runs the services in-process with {@link javax.net.ssl.SSLEngine} and NIO, without the Stunnel binary
+     * (e.g. on ABIs the binary is not available for).<br/>
+     * Differences to {@link #NATIVE}:
+     * <ul>
+     *     <li>Certificates, trust and PSK are configured through {@link StunnelBuilder#sslContext(javax.net.ssl.SSLContext)};
+     *     the verify, verifyChain, verifyPeer, checkIP, CAfile, CApath, cert and key options are rejected.
+     *     The default {@link javax.net.ssl.SSLContext} accepts server certificate chains that lead to one of the
+     *     system's CAs and has no server certificate, so server mode requires a custom context. PSK services
+     *     fail to start with the default context.</li>
+     *     <li>In client mode the server's certificate must also match a host name: the one given with
+     *     {@link StunnelBuilder.ServiceBuilder#checkHost(String)} (at most one per service) or else the host
+     *     of the connect option. Connect options with an IP address require a certificate for that IP address.
+     *     The host name is sent via SNI unless the sni option says otherwise.</li>
+     *     <li>Only accept, connect, client, delay, failover, ciphers, ciphersuites, sslVersion(Min|Max),
+     *     checkHost, sni, TIMEOUTconnect and TIMEOUTidle are implemented. Other tuning options are ignored with a warning
+     *     in the log; Unix sockets are not supported.</li>
+     *     <li>The available ciphers and protocol versions are the ones of the platform's TLS provider.</li>
+     *     <li>There is no process id: {@link Stunnel#reconfigure(StunnelBuilder)} is not supported.</li>
+     * </ul>
+     */
+    SSL_ENGINE
+}
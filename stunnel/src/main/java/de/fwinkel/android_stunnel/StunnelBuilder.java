@@ -2,15 +2,37 @@ package de.fwinkel.android_stunnel;
 
 import android.content.Context;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.net.ssl.SSLContext;
+
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
@@ -27,6 +49,7 @@ import androidx.annotation.Nullable;
 public class StunnelBuilder extends StunnelConfigBuilder<StunnelBuilder> {
 
     protected static final String KEY_FOREGROUND = "foreground";
+    protected static final String KEY_DEBUG = "debug";
 
     /**
      * Indicates, when false, that we did not clear the content of {@link #getTemporaryBaseDirectory()}
@@ -34,17 +57,106 @@ public class StunnelBuilder extends StunnelConfigBuilder<StunnelBuilder> {
      * is called for the first time since application start).
      */
     private static final AtomicBoolean housekeepingCleanedTempDirectory = new AtomicBoolean(false);
+    /**
+     * Same as {@link #housekeepingCleanedTempDirectory} for {@link #getSocketDirectory()}.
+     */
+    private static final AtomicBoolean housekeepingCleanedSocketDirectory = new AtomicBoolean(false);
+    /**
+     * Same as {@link #housekeepingCleanedTempDirectory} for {@link #getFileStore()}.
+     */
+    private static final AtomicBoolean housekeepingCleanedFileStore = new AtomicBoolean(false);
+    /**
+     * Same as {@link #housekeepingCleanedTempDirectory} for {@link #reapOrphanedProcesses()}.
+     */
+    private static final AtomicBoolean housekeepingReapedOrphans = new AtomicBoolean(false);
+
+    /**
+     * Maximum length of a Unix socket path (sun_path minus the terminating null byte).
+     */
+    protected static final int MAX_UNIX_SOCKET_PATH_LENGTH = 107;
+    /**
+     * Number of times {@link #start(long, TimeUnit)} tries to start Stunnel with new ports when an
+     * {@link ServiceBuilder#acceptLocalEphemeral() ephemeral port} has been taken in the meantime.
+     */
+    protected static final int MAX_EPHEMERAL_PORT_ATTEMPTS = 3;
+    /**
+     * Maximum time {@link #start(long, TimeUnit)} waits for Stunnel's log output after the configuration
+     * has been applied to check for failed binds of ephemeral ports.
+     */
+    protected static final long EPHEMERAL_BIND_SETTLE_MILLIS = 100;
+
+    /**
+     * The context this builder has been created with. Null if it has been created with a {@link StunnelEnvironment}.
+     */
+    @Nullable protected final Context context;
+    @NonNull protected final StunnelEnvironment environment;
+
+    private int logBufferSize = Stunnel.DEFAULT_LOG_BUFFER_SIZE;
+    @Nullable private StunnelLogListener logListener;
+    @Nullable private StunnelLogSink logSink;
+    private int logRateLimit;
+    private boolean pipeConfig;
+    @NonNull private StunnelBackend backend = StunnelBackend.NATIVE;
+    @Nullable private SSLContext sslContext;
+
+    /**
+     * Names of all services added via {@link ServiceBuilder#apply()}.
+     */
+    protected final List<String> serviceNames = new ArrayList<>();
+    /**
+     * Service name -> socket file of all services that accept connections on a Unix socket.
+     */
+    protected final Map<String, File> unixSockets = new HashMap<>();
+    /**
+     * Socket files created by {@link ServiceBuilder#acceptUnix()} that are deleted when Stunnel is closed.
+     */
+    protected final List<File> managedUnixSockets = new ArrayList<>();
+    /**
+     * Service name -> TCP port of all services that accept connections on a TCP port.
+     */
+    protected final Map<String, Integer> acceptPorts = new HashMap<>();
+    /**
+     * Config sections of all services added via {@link ServiceBuilder#apply()}, in config file order.
+     */
+    protected final List<StunnelConfigSection> services = new ArrayList<>();
+    /**
+     * Names of all services that use {@link ServiceBuilder#probeReadiness()}.
+     */
+    protected final List<String> probedServices = new ArrayList<>();
+    /**
+     * Service name -> config section of all services that use {@link ServiceBuilder#acceptLocalEphemeral()}.
+     */
+    protected final Map<String, StunnelConfigSection> ephemeralAcceptServices = new HashMap<>();
 
-    @NonNull protected final Context context;
+    /**
+     * Secondary config files (e.g. PSK secrets) the config refers to, by section and option name
+     * (see {@link #addStoredFile(String, String, byte[])}). They are written to {@link #getFileStore()}
+     * when a {@link Stunnel} is created, see {@link #acquireStoredFiles()}.
+     */
+    protected final Map<String, StunnelFileStore.Entry> storedFiles = new LinkedHashMap<>();
 
     /**
-     * Directory where we store Stunnel config files: the primary config file
-     * and for example PSKSecrets files.
+     * Directory where we store the primary Stunnel config file.
      */
     private File tempDirectory;
 
     public StunnelBuilder(@NonNull Context context) {
+        this(context, new AndroidStunnelEnvironment(context));
+    }
+
+    /**
+     * Creates a builder that takes the Stunnel binary and its working directory from the given environment
+     * instead of an Android {@link Context}, e.g. to run on a plain JVM.
+     * @param environment
+     */
+    public StunnelBuilder(@NonNull StunnelEnvironment environment) {
+        this(null, environment);
+    }
+
+    private StunnelBuilder(@Nullable Context context, @NonNull StunnelEnvironment environment) {
+        super(null);
         this.context = context;
+        this.environment = environment;
     }
 
     //<editor-fold desc="Stunnel start">
@@ -53,73 +165,516 @@ public class StunnelBuilder extends StunnelConfigBuilder<StunnelBuilder> {
      * Applies all given option by writing a config file in a temporary directory
      * and returns a prepared yet non-{@link Stunnel#start()}ed {@link Stunnel} object.
      * @return
+     * @see #pipeConfig(boolean)
      */
     public Stunnel create() throws IOException {
-        File binaryPath = new File(context.getApplicationInfo().nativeLibraryDir, "libstunnel.so");
-        File configFile = writeConfigFile();
+        return deleteOnClose(createWithoutCleanup());
+    }
+
+    /**
+     * Same as {@link #create()} but does not delete the temporary files when the returned {@link Stunnel} is closed.
+     * @return
+     * @throws IOException
+     */
+    private Stunnel createWithoutCleanup() throws IOException {
+        File configFile = pipeConfig ? null : writeConfigFile();
+        StunnelConfigSource configSource = pipeConfig ? newConfigSource() : null;
+
+        List<StunnelFileStore.Reference> references = acquireStoredFiles();
+        Stunnel stunnel;
+        try {
+            stunnel = newStunnel(getBinaryPath(), configFile, configSource);
+        }
+        catch (RuntimeException e) {
+            releaseStoredFiles(references);
+            throw e;
+        }
+        //released when the Stunnel is closed, even if it never started
+        for (StunnelFileStore.Reference reference : references) {
+            stunnel.releaseOnClose(reference);
+        }
+
+        return stunnel;
+    }
+
+    /**
+     * Writes all {@link #storedFiles} that do not exist yet and acquires a reference to each of them.
+     * @return
+     * @throws IOException When a file could not be written. No references are held in that case.
+     */
+    @NonNull
+    List<StunnelFileStore.Reference> acquireStoredFiles() throws IOException {
+        List<StunnelFileStore.Reference> references = new ArrayList<>(storedFiles.size());
+        try {
+            for (StunnelFileStore.Entry entry : storedFiles.values()) {
+                references.add(getFileStore().acquire(entry));
+            }
+        }
+        catch (IOException e) {
+            releaseStoredFiles(references);
+            throw e;
+        }
+
+        return references;
+    }
+
+    /**
+     * Releases the given references returned by {@link #acquireStoredFiles()}.
+     * @param references
+     */
+    static void releaseStoredFiles(@NonNull List<StunnelFileStore.Reference> references) {
+        for (StunnelFileStore.Reference reference : references) {
+            reference.close();
+        }
+    }
+
+    /**
+     * Lets the given {@link Stunnel} delete our temporary directory and managed Unix sockets once it is closed.
+     * @param stunnel
+     * @return The given {@link Stunnel}.
+     */
+    private Stunnel deleteOnClose(@NonNull Stunnel stunnel) {
+        if(tempDirectory != null)
+            //delete our temp files once Stunnel is closed. we keep them while Stunnel is running: Stunnel re-reads
+            //the config file and secondary config files (eg psk) when it is reconfigured
+            stunnel.deleteOnClose(tempDirectory);
+        for (File socketFile : managedUnixSockets) {
+            stunnel.deleteOnClose(socketFile);
+        }
 
-        return new Stunnel(binaryPath, configFile) {
+        return stunnel;
+    }
+
+    /**
+     * Applies all given options by writing a config file in a temporary directory
+     * and returns a {@link StunnelSupervisor} that starts and restarts {@link Stunnel} processes
+     * with that config until it is closed.<br/>
+     * The temporary directory is kept until the supervisor is closed, so that every restart
+     * can re-use the generated config files.
+     * @return
+     * @throws IOException
+     */
+    public StunnelSupervisor supervise() throws IOException {
+        final File binaryPath = getBinaryPath();
+        final File configFile = pipeConfig ? null : writeConfigFile();
+        final StunnelConfigSource configSource = pipeConfig ? newConfigSource() : null;
+        final File tempDirectory = this.tempDirectory;
+        final List<File> socketFiles = new ArrayList<>(managedUnixSockets);
+        final List<StunnelFileStore.Reference> references = acquireStoredFiles();
+
+        return new StunnelSupervisor() {
+            @NonNull
             @Override
-            public void start() throws IOException {
-                try {
-                    super.start();
-                }
-                finally {
-                    //delete our temp files. aren't needed anymore
-                    //TODO not sure if this will always work with secondary config files (eg psk)
-                    // (i.e. not sure if some files might be read at a later point)
-                    deleteDirectory(getTemporaryDirectory());
+            protected Stunnel newStunnel() {
+                return StunnelBuilder.this.newStunnel(binaryPath, configFile, configSource);
+            }
+
+            @Override
+            protected void onClosed() {
+                releaseStoredFiles(references);
+                deleteDirectory(tempDirectory);
+                for (File socketFile : socketFiles) {
+                    deleteDirectory(socketFile);
                 }
             }
-            //            @Override
-//            public void close() throws IOException {
-//                try {
-//                    super.close();
-//                } finally {
-//                    //delete temporary directory
-//                    deleteDirectory(this.configPath.getParentFile());
-//                }
-//            }
         };
     }
 
+    /**
+     * Creates a {@link Stunnel} that either reads the given config file or receives the given piped config.
+     * @param binaryPath
+     * @param configFile Null if configSource is given.
+     * @param configSource Null if configFile is given.
+     * @return
+     */
+    private Stunnel newStunnel(@NonNull File binaryPath, @Nullable File configFile, @Nullable StunnelConfigSource configSource) {
+        synchronized (housekeepingReapedOrphans) {
+            if(!housekeepingReapedOrphans.getAndSet(true))
+                //Stunnel processes of a previous run of our app would keep their ports
+                reapOrphanedProcesses();
+        }
+
+        if(backend == StunnelBackend.SSL_ENGINE) {
+            if(configFile != null)
+                return configure(new SSLEngineStunnel(binaryPath, configFile, logBufferSize, sslContext));
+            else
+                return configure(new SSLEngineStunnel(binaryPath, configSource, logBufferSize, sslContext));
+        }
+        if(configFile != null)
+            return configure(new Stunnel(binaryPath, configFile, logBufferSize));
+        else
+            return configure(new Stunnel(binaryPath, configSource, logBufferSize));
+    }
+
+    /**
+     * Sets the implementation that runs the configuration.<br/>
+     * default: {@link StunnelBackend#NATIVE}
+     * @param backend
+     * @return
+     * @see StunnelBackend#SSL_ENGINE
+     */
+    public StunnelBuilder backend(@NonNull StunnelBackend backend) {
+        this.backend = backend;
+        return this;
+    }
+
+    /**
+     * Sets the {@link SSLContext} that provides certificates, trust managers and (if supported by the provider)
+     * PSK for {@link StunnelBackend#SSL_ENGINE}. Not used by {@link StunnelBackend#NATIVE}.<br/>
+     * default: {@link SSLContext#getDefault()}
+     * @param sslContext
+     * @return
+     */
+    public StunnelBuilder sslContext(@Nullable SSLContext sslContext) {
+        this.sslContext = sslContext;
+        return this;
+    }
+
+    /**
+     * When true, the configuration is passed to Stunnel through a pipe instead of a config file,
+     * so there is no config file that has to be written to and deleted from flash storage on each start.<br/>
+     * Note that secondary config files such as {@link ServiceBuilder#pskSecrets(List)} are still written
+     * to disk, as Stunnel can only read them from files. A {@link Stunnel} with a piped configuration
+     * can't be {@link Stunnel#reconfigure(StunnelBuilder) reconfigured}.<br/>
+     * default: false
+     * @param pipeConfig
+     * @return
+     */
+    public StunnelBuilder pipeConfig(boolean pipeConfig) {
+        this.pipeConfig = pipeConfig;
+        return this;
+    }
+
+    /**
+     * Applies settings that are not part of the config file (such as the {@link #logListener(StunnelLogListener)})
+     * to a newly created {@link Stunnel}.
+     * @param stunnel
+     * @return The given {@link Stunnel}.
+     */
+    protected Stunnel configure(@NonNull Stunnel stunnel) {
+        stunnel.setLogListener(logListener);
+        stunnel.setLogSink(logSink);
+        stunnel.setLogRateLimit(logRateLimit);
+        stunnel.setProcessRegistry(new StunnelProcessRegistry(getProcessRegistryDirectory()));
+        for (String serviceName : serviceNames) {
+            stunnel.getMetrics().getOrAddService(serviceName);
+            stunnel.getServiceReadiness(serviceName);
+        }
+        addReadinessProbes(stunnel);
+        for (Map.Entry<String, File> unixSocket : unixSockets.entrySet()) {
+            stunnel.addUnixSocket(unixSocket.getKey(), unixSocket.getValue());
+        }
+        for (Map.Entry<String, Integer> acceptPort : acceptPorts.entrySet()) {
+            stunnel.addAcceptPort(acceptPort.getKey(), acceptPort.getValue());
+        }
+        //the temporary directory's path can be too long for a Unix socket
+        stunnel.setDrainSocket(new File(getSocketDirectory(), UUID.randomUUID().toString().substring(0, 8)));
+
+        return stunnel;
+    }
+
+    /**
+     * Passes the current accept endpoints of all services with {@link ServiceBuilder#probeReadiness()}
+     * to the given {@link Stunnel}.
+     * @param stunnel
+     */
+    void addReadinessProbes(@NonNull Stunnel stunnel) {
+        for (StunnelConfigSection service : services) {
+            if(!probedServices.contains(service.getName()))
+                continue;
+
+            StunnelOption<?> accept = service.getOption(ServiceBuilder.KEY_SERVICE_ACCEPT);
+            if(accept != null)
+                stunnel.addReadinessProbe(service.getName(), accept.getValueString());
+        }
+    }
+
+    /**
+     * Returns the path of the Stunnel executable.
+     * @return
+     */
+    protected File getBinaryPath() {
+        return environment.getBinaryPath();
+    }
+
+    /**
+     * Sets the number of log lines the created {@link Stunnel} keeps in {@link Stunnel#getLogBuffer()}.
+     * @param logBufferSize
+     * @return
+     */
+    public StunnelBuilder logBufferSize(int logBufferSize) {
+        if(logBufferSize <= 0)
+            throw new IllegalArgumentException("logBufferSize must be greater than 0: " + logBufferSize);
+
+        this.logBufferSize = logBufferSize;
+        return this;
+    }
+
+    /**
+     * Sets a listener that receives every line the created {@link Stunnel} logs,
+     * see {@link Stunnel#setLogListener(StunnelLogListener)}.
+     * @param logListener
+     * @return
+     */
+    public StunnelBuilder logListener(@Nullable StunnelLogListener logListener) {
+        this.logListener = logListener;
+        return this;
+    }
+
+    /**
+     * Sets a sink that receives every line the created {@link Stunnel} logs without converting each line
+     * into a {@link String}, see {@link Stunnel#setLogSink(StunnelLogSink)}.
+     * @param logSink
+     * @return
+     */
+    public StunnelBuilder logSink(@Nullable StunnelLogSink logSink) {
+        this.logSink = logSink;
+        return this;
+    }
+
+    /**
+     * Limits the number of lines per second that are passed to the {@link Stunnel#getLogBuffer() log buffer},
+     * {@link #logListener(StunnelLogListener) listener} and {@link #logSink(StunnelLogSink) sink}.
+     * Lines are limited per category (their level and message without numbers), so that a flood of e.g.
+     * per-connection messages does not hide other lines. Warnings and errors are never limited.
+     * The number of suppressed lines is reported in a single line at most once per second.<br/>
+     * {@link Stunnel#getMetrics() Metrics} are updated from all lines regardless of this limit.
+     * @param linesPerSecond 0 to pass all lines (default).
+     * @return
+     */
+    public StunnelBuilder logRateLimit(int linesPerSecond) {
+        if(linesPerSecond < 0)
+            throw new IllegalArgumentException("linesPerSecond must not be negative: " + linesPerSecond);
+
+        this.logRateLimit = linesPerSecond;
+        return this;
+    }
+
+    /**
+     * Sets the level of the messages Stunnel logs (Stunnel's global "debug" option). Stunnel's default is
+     * {@link LogLevel#NOTICE}.<br/>
+     * Levels below {@link LogLevel#NOTICE} are not supported: {@link #start()}, {@link Stunnel#reconfigure(StunnelBuilder)}
+     * and {@link Stunnel#getMetrics() metrics} rely on {@link LogLevel#NOTICE} messages (e.g. "Configuration successful").
+     * {@link LogLevel#INFO} adds the bind reports {@link Stunnel#getServiceReadiness(String) readiness} uses
+     * (otherwise a short settle delay is used) and the messages connect and handshake latencies are measured from.
+     * @param level
+     * @return
+     * @throws IllegalArgumentException When the level is below {@link LogLevel#NOTICE}.
+     */
+    public StunnelBuilder logLevel(@NonNull LogLevel level) {
+        if(level.level < LogLevel.NOTICE.level)
+            throw new IllegalArgumentException("Log levels below notice hide the messages Stunnel's startup is detected by: " + level);
+
+        return setOption(KEY_DEBUG, level.toStunnelValue());
+    }
+
     /**
      * Same as {@link #create()} but immediately {@link Stunnel#start()}s the {@link Stunnel} process.
      * @return
      */
     public Stunnel start() throws IOException {
-        Stunnel stunnel = create();
+        return start(0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Same as {@link #create()} but immediately {@link Stunnel#start(long, TimeUnit)}s the {@link Stunnel} process.<br/>
+     * When a port chosen by {@link ServiceBuilder#acceptLocalEphemeral()} has been taken by someone else
+     * before Stunnel could bind it, Stunnel is started again with new ports
+     * (up to {@link #MAX_EPHEMERAL_PORT_ATTEMPTS} times).
+     * @param timeout Maximum time to wait for the configuration to be applied. 0 or less to wait indefinitely.
+     *                Applies to each attempt.
+     * @param unit
+     * @return
+     */
+    public Stunnel start(long timeout, @NonNull TimeUnit unit) throws IOException {
         try {
-            stunnel.start();
+            for (int attempt = 1; ; attempt++) {
+                Stunnel stunnel = createWithoutCleanup();
+                IOException failure;
+                try {
+                    stunnel.start(timeout, unit);
+                    failure = checkEphemeralBinds(stunnel);
+                } catch (IOException e) {
+                    failure = e;
+                }
+
+                if(failure == null)
+                    return deleteOnClose(stunnel);
+
+                boolean retry = attempt < MAX_EPHEMERAL_PORT_ATTEMPTS && isEphemeralBindFailure(stunnel, failure);
+                Util.close(stunnel);
+                if(!retry)
+                    throw failure;
+
+                reallocateEphemeralPorts();
+            }
         } catch (IOException e) {
-            try {
-                stunnel.close();
-            } catch (IOException ex) {
-                //ignore
+            deleteDirectory(tempDirectory);
+            for (File socketFile : managedUnixSockets) {
+                deleteDirectory(socketFile);
             }
 
             throw e;
         }
+    }
 
-        return stunnel;
+    /**
+     * Checks whether the given, started {@link Stunnel} could bind all ports of
+     * {@link ServiceBuilder#acceptLocalEphemeral()}.<br/>
+     * On startup Stunnel buffers its log messages until all ports have been bound (or binding failed
+     * and it exits), so bind errors are written together with "Configuration successful". Successful binds are
+     * only logged at log level info and above, so instead of waiting for them we wait until we have read
+     * everything Stunnel has written so far (at most {@link #EPHEMERAL_BIND_SETTLE_MILLIS}).
+     * @param stunnel
+     * @return Null if there was no bind failure.
+     * @throws IOException
+     */
+    @Nullable
+    private StunnelStartException checkEphemeralBinds(@NonNull Stunnel stunnel) throws IOException {
+        if(ephemeralAcceptServices.isEmpty())
+            return null;
+
+        try {
+            stunnel.awaitLogCaughtUp(EPHEMERAL_BIND_SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+            for (String serviceName : ephemeralAcceptServices.keySet()) {
+                Boolean bound = stunnel.awaitBindResult(serviceName, 0, TimeUnit.MILLISECONDS);
+                if(Boolean.FALSE.equals(bound))
+                    return new StunnelStartException("Failed to bind ephemeral port of service " + serviceName,
+                            stunnel.getExitCode(), stunnel.getLogBuffer().getLastLines(Stunnel.START_FAILURE_LOG_LINES));
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for Stunnel to bind its ports");
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns whether the given start failure has been caused by an ephemeral port that could not be bound,
+     * according to the bind results {@link Stunnel} parsed from its log.
+     * @param stunnel The {@link Stunnel} that failed to start.
+     * @param failure
+     * @return
+     * @throws InterruptedIOException
+     */
+    boolean isEphemeralBindFailure(@NonNull Stunnel stunnel, @NonNull IOException failure) throws InterruptedIOException {
+        if(!(failure instanceof StunnelStartException))
+            return false;
+
+        try {
+            //e.g. after a start timeout the log pump may not have handled every line yet
+            stunnel.awaitLogCaughtUp(EPHEMERAL_BIND_SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+            for (String serviceName : ephemeralAcceptServices.keySet()) {
+                if(Boolean.FALSE.equals(stunnel.awaitBindResult(serviceName, 0, TimeUnit.MILLISECONDS)))
+                    return true;
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for Stunnel to bind its ports");
+        }
+
+        return false;
+    }
+
+    /**
+     * Chooses new ports for all services that use {@link ServiceBuilder#acceptLocalEphemeral()}.
+     * @throws IOException
+     */
+    private void reallocateEphemeralPorts() throws IOException {
+        for (Map.Entry<String, StunnelConfigSection> service : ephemeralAcceptServices.entrySet()) {
+            int port = reserveLocalPort();
+            service.getValue().set(new StunnelOption<>(ServiceBuilder.KEY_SERVICE_ACCEPT, "localhost:" + port));
+            acceptPorts.put(service.getKey(), port);
+        }
+    }
+
+    /**
+     * Returns a local TCP port that is currently free.
+     * The port is not reserved: someone else could take it before Stunnel binds it.
+     * @return
+     * @throws IOException
+     */
+    protected static int reserveLocalPort() throws IOException {
+        ServerSocket socket = new ServerSocket(0, 1, InetAddress.getByName("localhost"));
+        try {
+            return socket.getLocalPort();
+        }
+        finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //ignore
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #start(long, TimeUnit)} but creates and starts the {@link Stunnel} in the background,
+     * so that several tunnels can be started in parallel or overlap with other work.
+     * Writing the config file happens in the background as well.
+     * @param timeout Maximum time to wait for the configuration to be applied. 0 or less to wait indefinitely.
+     * @param unit
+     * @param executor Executor that creates and starts the {@link Stunnel}. Null to use a new thread.
+     * @return
+     * @see Stunnel#startAsync(long, TimeUnit, Executor)
+     */
+    @NonNull
+    public StunnelFuture<Stunnel> startAsync(final long timeout, @NonNull final TimeUnit unit, @Nullable Executor executor) {
+        return Stunnel.execute(new StunnelFuture<>(new Callable<Stunnel>() {
+            @Override
+            public Stunnel call() throws Exception {
+                return start(timeout, unit);
+            }
+        }), executor);
     }
 
+    /**
+     * Same as {@link #startAsync(long, TimeUnit, Executor)} with a new thread.
+     * @param timeout
+     * @param unit
+     * @return
+     */
+    @NonNull
+    public StunnelFuture<Stunnel> startAsync(long timeout, @NonNull TimeUnit unit) {
+        return startAsync(timeout, unit, null);
+    }
+
+    /**
+     * Options which we add regardless of the otherwise given options to ensure optimal execution in Android.
+     */
+    private static final List<String> STATIC_CONFIG = Collections.singletonList(
+            new StunnelOption<>(KEY_FOREGROUND, new StunnelBoolean(true)).toConfigString());
+
     /**
      * Returns an additional set of config option which we add regardless of the otherwise given options
      * to ensure optimal execution in Android.
-     * @return
+     * @return "key = value" lines.
      */
     protected List<String> getStaticConfig() {
-        StunnelConfigBuilder<StunnelConfigBuilder> staticConfigBuilder = new StunnelConfigBuilder<StunnelConfigBuilder>() {
-        };
+        return STATIC_CONFIG;
+    }
 
-        staticConfigBuilder.setOption(new StunnelOption<>(KEY_FOREGROUND, new StunnelBoolean(true)));
+    /**
+     * Returns the configuration that is passed to Stunnel: the {@link #getStaticConfig() static options}
+     * and all global options, followed by all services that have been {@link ServiceBuilder#apply() applied}.<br/>
+     * The returned config reflects later changes to this builder's services; use {@link StunnelConfig#copy()}
+     * for a snapshot.
+     * @return
+     */
+    @NonNull
+    public StunnelConfig getConfig() {
+        StunnelConfigSection global = new StunnelConfigSection(null);
+        for (String line : getStaticConfig()) {
+            global.set(StunnelOption.parse(line));
+        }
+        for (StunnelOption<?> option : config.getOptions()) {
+            global.set(option);
+        }
 
-        return staticConfigBuilder.config;
+        return new StunnelConfig(global, services);
     }
 
     /**
-     * Writes {@link #getConfigFileContent()} into the temporary file
+     * Writes {@link #getConfig()} into the temporary file
      * returned by {@link #newConfigFile()}.
      * @return
      * @throws IOException
@@ -129,11 +684,11 @@ public class StunnelBuilder extends StunnelConfigBuilder<StunnelBuilder> {
 
         Writer writer = null;
         try {
-            writer = new FileWriter(configFile);
+            writer = new BufferedWriter(new FileWriter(configFile));
             //write BOM
             writer.write('\uFEFF');
             //write file content
-            writer.write(getConfigFileContent());
+            getConfig().writeTo(writer);
 
             writer.flush();
         }
@@ -145,23 +700,27 @@ public class StunnelBuilder extends StunnelConfigBuilder<StunnelBuilder> {
     }
 
     /**
-     * Writes the current {@link #config} content line-by-line into a {@link String} which
-     * can then be written into a Stunnel config file to start the program.
+     * Returns a {@link StunnelConfigSource} that writes a snapshot of the current {@link #getConfig()}.
      * @return
      */
-    protected String getConfigFileContent() {
-        StringBuilder str = new StringBuilder();
+    protected StunnelConfigSource newConfigSource() {
+        final StunnelConfig snapshot = getConfig().copy();
 
-        //write the static config first
-        for (String line : getStaticConfig()) {
-            str.append(line).append('\n');
-        }
-        //now write the user defined config
-        for (String line : config) {
-            str.append(line).append('\n');
-        }
+        return new StunnelConfigSource() {
+            @Override
+            public void writeTo(@NonNull Writer writer) throws IOException {
+                snapshot.writeTo(writer);
+            }
+        };
+    }
 
-        return str.toString();
+    /**
+     * Writes the current {@link #getConfig()} into a {@link String} which
+     * can then be written into a Stunnel config file to start the program.
+     * @return
+     */
+    protected String getConfigFileContent() {
+        return getConfig().toString();
     }
 
     /**
@@ -193,6 +752,22 @@ public class StunnelBuilder extends StunnelConfigBuilder<StunnelBuilder> {
         return file;
     }
 
+    /**
+     * Adds a secondary config file with the given content to {@link #getFileStore()}. The file is shared with
+     * all other configs that use the same content and is written when a {@link Stunnel} is created.<br/>
+     * Replaces the file that has been added for the same option before.
+     * @param sectionName Service name or null for the global section.
+     * @param optionName Option that refers to the file.
+     * @param content Must not be modified afterwards.
+     * @return The file's absolute path for the config.
+     */
+    protected String addStoredFile(@Nullable String sectionName, @NonNull String optionName, @NonNull byte[] content) {
+        StunnelFileStore.Entry entry = getFileStore().newEntry(content);
+        storedFiles.put((sectionName == null ? "" : "[" + sectionName + "]") + optionName, entry);
+
+        return entry.getFile().getAbsolutePath();
+    }
+
     /**
      * Creates an empty temporary directory for {@link #newConfigFile()}.
      * @return
@@ -201,29 +776,103 @@ public class StunnelBuilder extends StunnelConfigBuilder<StunnelBuilder> {
         if(tempDirectory == null) {
             File baseDirectory = getTemporaryBaseDirectory();
 
-            synchronized (housekeepingCleanedTempDirectory) {
-                if(!housekeepingCleanedTempDirectory.getAndSet(true)) {
-                    //clean up old config files
-                    deleteDirectory(baseDirectory);
-                }
+            synchronized (housekeepingCleanedTempDirectory) {
+                if(!housekeepingCleanedTempDirectory.getAndSet(true)) {
+                    //clean up old config files
+                    deleteDirectory(baseDirectory);
+                }
+            }
+
+            tempDirectory = new File(baseDirectory, UUID.randomUUID().toString());
+            tempDirectory.mkdirs();
+            //try to delete on exit
+            tempDirectory.deleteOnExit();
+        }
+
+        return tempDirectory;
+    }
+
+    /**
+     * Returns the base directory where each unique Stunnel process will get its own
+     * temporary directory via {@link #getTemporaryDirectory()}.
+     * @return
+     */
+    protected File getTemporaryBaseDirectory() {
+        return new File(environment.getFilesDirectory(), "stunnel/tmp");
+    }
+
+    /**
+     * Kills Stunnel processes that have been started by a previous run of this app and kept running
+     * after the app's process died, e.g. because the app has been killed by the system.
+     * Such processes would keep holding their ports.<br/>
+     * Called automatically before the first {@link Stunnel} is created after the app has been started.
+     * Processes started by other processes of the same app that are still running are not affected.
+     * @return Number of killed processes.
+     */
+    public int reapOrphanedProcesses() {
+        return new StunnelProcessRegistry(getProcessRegistryDirectory()).reapOrphans();
+    }
+
+    /**
+     * Returns the store that holds secondary config files such as PSK secrets, clearing its directory
+     * when it is used for the first time since application start.
+     * @return
+     */
+    protected final StunnelFileStore getFileStore() {
+        File directory = getFileStoreDirectory();
+
+        synchronized (housekeepingCleanedFileStore) {
+            if(!housekeepingCleanedFileStore.getAndSet(true)) {
+                //clean up files of a previous run: their references are gone
+                deleteDirectory(directory);
+            }
+        }
+
+        return StunnelFileStore.forDirectory(directory);
+    }
+
+    /**
+     * Returns the directory of {@link #getFileStore()}.
+     * @return
+     */
+    protected File getFileStoreDirectory() {
+        return new File(environment.getFilesDirectory(), "stunnel/store");
+    }
+
+    /**
+     * Returns the directory where running Stunnel processes are recorded, see {@link #reapOrphanedProcesses()}.
+     * @return
+     */
+    protected File getProcessRegistryDirectory() {
+        return new File(environment.getFilesDirectory(), "stunnel/run");
+    }
+
+    /**
+     * Returns the directory that holds the Unix sockets of {@link ServiceBuilder#acceptUnix()}.<br/>
+     * Not part of {@link #getTemporaryDirectory()}, because Unix socket paths are limited
+     * to {@link #MAX_UNIX_SOCKET_PATH_LENGTH} characters.
+     * @return
+     */
+    protected final File getSocketDirectory() {
+        File directory = getSocketBaseDirectory();
+
+        synchronized (housekeepingCleanedSocketDirectory) {
+            if(!housekeepingCleanedSocketDirectory.getAndSet(true)) {
+                //clean up old sockets
+                deleteDirectory(directory);
             }
-
-            tempDirectory = new File(baseDirectory, UUID.randomUUID().toString());
-            tempDirectory.mkdirs();
-            //try to delete on exit
-            tempDirectory.deleteOnExit();
         }
+        directory.mkdirs();
 
-        return tempDirectory;
+        return directory;
     }
 
     /**
-     * Returns the base directory where each unique Stunnel process will get its own
-     * temporary directory via {@link #getTemporaryDirectory()}.
+     * Returns the base directory of {@link #getSocketDirectory()}.
      * @return
      */
-    protected File getTemporaryBaseDirectory() {
-        return new File(context.getFilesDir(), "stunnel/tmp");
+    protected File getSocketBaseDirectory() {
+        return new File(environment.getFilesDirectory(), "stunnel/s");
     }
 
     /**
@@ -278,20 +927,54 @@ public class StunnelBuilder extends StunnelConfigBuilder<StunnelBuilder> {
      */
     public class ServiceBuilder extends StunnelConfigBuilder<ServiceBuilder> {
         protected static final String KEY_SERVICE_ACCEPT = "accept";
+        protected static final String KEY_SERVICE_CA_FILE = "CAfile";
+        protected static final String KEY_SERVICE_CERT = "cert";
+        protected static final String KEY_SERVICE_CHECK_HOST = "checkHost";
         protected static final String KEY_SERVICE_CLIENT = "client";
         protected static final String KEY_SERVICE_CONNECT = "connect";
         protected static final String KEY_SERVICE_CIPHERS = "ciphers";
         protected static final String KEY_SERVICE_CIPHERSUITES = "ciphersuites";
+        protected static final String KEY_SERVICE_CURVES = "curves";
         protected static final String KEY_SERVICE_DELAY = "delay";
+        protected static final String KEY_SERVICE_FAILOVER = "failover";
+        protected static final String KEY_SERVICE_KEY = "key";
         protected static final String KEY_SERVICE_PSK_IDENTITY = "PSKidentity";
+        protected static final String KEY_SERVICE_OPTIONS = "options";
         protected static final String KEY_SERVICE_PSK_SECRETS = "PSKsecrets";
+        protected static final String KEY_SERVICE_RETRY = "retry";
+        protected static final String KEY_SERVICE_SESSION_CACHE_SIZE = "sessionCacheSize";
+        protected static final String KEY_SERVICE_SESSION_CACHE_TIMEOUT = "sessionCacheTimeout";
+        protected static final String KEY_SERVICE_SESSION_RESUME = "sessionResume";
+        protected static final String KEY_SERVICE_SOCKET = "socket";
         protected static final String KEY_SERVICE_SSL_VERSION = "sslVersion";
         protected static final String KEY_SERVICE_SSL_VERSION_MAX = "sslVersionMax";
         protected static final String KEY_SERVICE_SSL_VERSION_MIN = "sslVersionMin";
+        protected static final String KEY_SERVICE_TIMEOUT_BUSY = "TIMEOUTbusy";
+        protected static final String KEY_SERVICE_TIMEOUT_CLOSE = "TIMEOUTclose";
+        protected static final String KEY_SERVICE_TIMEOUT_CONNECT = "TIMEOUTconnect";
+        protected static final String KEY_SERVICE_TIMEOUT_IDLE = "TIMEOUTidle";
+        protected static final String KEY_SERVICE_VERIFY_CHAIN = "verifyChain";
 
         @NonNull protected final String name;
+        /**
+         * Socket file of {@link #acceptUnix(File)} if any.
+         */
+        @Nullable protected File unixSocket;
+        /**
+         * Port of the last {@link #accept(String, int)} or -1.
+         */
+        protected int acceptPort = -1;
+        /**
+         * Whether the current accept option has been set by {@link #acceptLocalEphemeral()}.
+         */
+        protected boolean ephemeralAccept;
+        /**
+         * See {@link #probeReadiness()}.
+         */
+        protected boolean probeReadiness;
 
         protected ServiceBuilder(@NonNull String name) {
+            super(name);
             this.name = name;
         }
 
@@ -320,6 +1003,8 @@ public class StunnelBuilder extends StunnelConfigBuilder<StunnelBuilder> {
                 value += host + ":";
             value += port;
 
+            acceptPort = port;
+            ephemeralAccept = false;
             return setOption(KEY_SERVICE_ACCEPT, value);
         }
 
@@ -350,6 +1035,188 @@ public class StunnelBuilder extends StunnelConfigBuilder<StunnelBuilder> {
             return accept("localhost", port);
         }
 
+        /**
+         * Same as {@link #acceptLocal(int)} with a port that is currently free, so that several Stunnel instances
+         * (or several apps) never fight over a hard-coded port.<br/>
+         * The port is chosen now and can be queried via {@link Stunnel#getAcceptPort(String)} once Stunnel
+         * has been started. If the port is taken by someone else before Stunnel binds it,
+         * {@link StunnelBuilder#start(long, TimeUnit)} chooses a new port and starts Stunnel again.
+         * {@link Stunnel#reconfigure(StunnelBuilder)} does not retry.
+         * @return
+         * @throws IOException When no free port could be found.
+         */
+        public ServiceBuilder acceptLocalEphemeral() throws IOException {
+            acceptLocal(reserveLocalPort());
+            ephemeralAccept = true;
+
+            return this;
+        }
+
+        /**
+         * Accepts connections on a Unix domain socket instead of a TCP port.
+         * Compared to {@link #acceptLocal(int)} connections skip the loopback TCP stack and
+         * there is no port that can collide with or be reached by other apps.<br/>
+         * Use {@link Stunnel#getUnixSocketConnector(String)} to connect to the service.
+         * @param socketFile Absolute path of at most 107 characters.
+         *                   Its directory must be writable.
+         * @return
+         * @see #acceptUnix()
+         */
+        public ServiceBuilder acceptUnix(@NonNull File socketFile) {
+            String path = socketFile.getAbsolutePath();
+            if(path.length() > MAX_UNIX_SOCKET_PATH_LENGTH)
+                throw new IllegalArgumentException("Unix socket path is longer than " + MAX_UNIX_SOCKET_PATH_LENGTH + " characters: " + path);
+
+            unixSocket = socketFile;
+            acceptPort = -1;
+            ephemeralAccept = false;
+            return setOption(KEY_SERVICE_ACCEPT, path);
+        }
+
+        /**
+         * Same as {@link #acceptUnix(File)} with a new socket file in the app's private files directory.
+         * The file is deleted when the {@link Stunnel} is closed.
+         * @return
+         */
+        public ServiceBuilder acceptUnix() {
+            File socketFile = new File(getSocketDirectory(), UUID.randomUUID().toString().substring(0, 8));
+            managedUnixSockets.add(socketFile);
+
+            return acceptUnix(socketFile);
+        }
+
+        /**
+         * <pre>{@code
+         *
+
+        load trusted CA certificates from a file
+
+        The loaded CA certificates will be used with the verifyChain and verifyPeer options.
+
+         * }</pre>
+         * The certificates are written as a PEM file to {@link #getFileStore()} when Stunnel is created.
+         * @param certificates
+         * @return
+         * @throws CertificateEncodingException
+         * @see #verifyChain(boolean)
+         */
+        public ServiceBuilder caFile(@NonNull X509Certificate... certificates) throws CertificateEncodingException {
+            ByteArrayOutputStream pem = new ByteArrayOutputStream();
+            for (X509Certificate certificate : certificates) {
+                byte[] encoded = PemEncoder.encode(certificate);
+                pem.write(encoded, 0, encoded.length);
+            }
+
+            return setOption(KEY_SERVICE_CA_FILE, addStoredFile(name, KEY_SERVICE_CA_FILE, pem.toByteArray()));
+        }
+
+        /**
+         * Same as {@link #caFile(X509Certificate...)} with all trusted certificate entries
+         * of the given {@link KeyStore} (e.g. loaded from a BKS or PKCS#12 file).
+         * @param trustStore A loaded {@link KeyStore}.
+         * @return
+         * @throws GeneralSecurityException
+         */
+        public ServiceBuilder caFile(@NonNull KeyStore trustStore) throws GeneralSecurityException {
+            List<X509Certificate> certificates = new ArrayList<>();
+            for (String alias : Collections.list(trustStore.aliases())) {
+                Certificate certificate = trustStore.getCertificate(alias);
+                if(trustStore.isCertificateEntry(alias) && certificate instanceof X509Certificate)
+                    certificates.add((X509Certificate) certificate);
+            }
+            if(certificates.isEmpty())
+                throw new IllegalArgumentException("KeyStore does not contain any trusted X.509 certificates");
+
+            return caFile(certificates.toArray(new X509Certificate[0]));
+        }
+
+        /**
+         * <pre>{@code
+         *
+
+        certificate chain file name
+
+        The parameter specifies the file containing certificates used by stunnel to authenticate itself against the remote client or server. The file should contain the whole certificate chain starting from the actual server/client certificate, and ending with the self-signed root CA certificate. The file must be either in PEM or P12 format.
+
+        A certificate chain is required in server mode, and optional in client mode.
+
+         * }</pre>
+         * The chain is written as a PEM file to {@link #getFileStore()} when Stunnel is created.
+         * @param chain The service's own certificate first.
+         * @return
+         * @throws CertificateEncodingException
+         * @see #key(PrivateKey)
+         */
+        public ServiceBuilder cert(@NonNull X509Certificate... chain) throws CertificateEncodingException {
+            if(chain.length == 0)
+                throw new IllegalArgumentException("chain must contain at least one certificate");
+
+            ByteArrayOutputStream pem = new ByteArrayOutputStream();
+            for (X509Certificate certificate : chain) {
+                byte[] encoded = PemEncoder.encode(certificate);
+                pem.write(encoded, 0, encoded.length);
+            }
+
+            return setOption(KEY_SERVICE_CERT, addStoredFile(name, KEY_SERVICE_CERT, pem.toByteArray()));
+        }
+
+        /**
+         * Sets the {@link #cert(X509Certificate...) certificate chain} and the {@link #key(PrivateKey) private key}
+         * of the given key entry.
+         * @param keyStore A loaded {@link KeyStore}, e.g. from a PKCS#12 file. Keys of the Android Keystore
+         *                 can't be exported and are not supported.
+         * @param alias
+         * @param password The key's password, may be null if it has none.
+         * @return
+         * @throws GeneralSecurityException E.g. when the password is wrong.
+         */
+        public ServiceBuilder cert(@NonNull KeyStore keyStore, @NonNull String alias, @Nullable char[] password) throws GeneralSecurityException {
+            Key key = keyStore.getKey(alias, password);
+            Certificate[] chain = keyStore.getCertificateChain(alias);
+            if(!(key instanceof PrivateKey) || chain == null)
+                throw new IllegalArgumentException("KeyStore does not contain a private key entry with alias " + alias);
+
+            X509Certificate[] x509Chain = new X509Certificate[chain.length];
+            for (int i = 0; i < chain.length; i++) {
+                if(!(chain[i] instanceof X509Certificate))
+                    throw new IllegalArgumentException("Not an X.509 certificate: " + chain[i].getType());
+                x509Chain[i] = (X509Certificate) chain[i];
+            }
+
+            return cert(x509Chain).key((PrivateKey) key);
+        }
+
+        /**
+         * <pre>{@code
+         *
+
+        host of the peer certificate subject
+
+        Certificates are accepted if no subject checks were specified, or the host name of the peer certificate matches any of the hosts specified with checkHost.
+
+        Multiple checkHost options are allowed in a single service section.
+
+         * }</pre>
+         * @param host
+         * @return
+         * @see #verifyChain(boolean)
+         */
+        public ServiceBuilder checkHost(@NonNull String host) {
+            return setOption(KEY_SERVICE_CHECK_HOST, host);
+        }
+
+        /**
+         * Sets the {@link #ciphers(List) ciphers}, {@link #ciphersuites(List) ciphersuites} and
+         * {@link #curves(List) curves} of the given profile, in the profile's order.
+         * @param profile E.g. {@link CipherProfile#auto()} to prefer the ciphers that are fastest on this device.
+         * @return
+         */
+        public ServiceBuilder cipherProfile(@NonNull CipherProfile profile) {
+            return ciphers(profile.getCiphers())
+                    .ciphersuites(profile.getCiphersuites())
+                    .curves(profile.getCurves());
+        }
+
         /**
          *
          * @param ciphers
@@ -458,6 +1325,28 @@ public class StunnelBuilder extends StunnelConfigBuilder<StunnelBuilder> {
             return setOption(KEY_SERVICE_CONNECT, value);
         }
 
+        /**
+         * Connects to one of multiple remote addresses, chosen by the given targets' {@link Failover} strategy.
+         * Which targets work can be watched via {@link ServiceMetrics#getTargets()}.
+         * @param targets
+         * @return
+         * @see #connect(String, int)
+         */
+        public ServiceBuilder connect(@NonNull ConnectTargets targets) {
+            if(targets.getTargets().isEmpty())
+                throw new IllegalArgumentException("No connect targets");
+
+            for (String target : targets.getTargets()) {
+                setOption(KEY_SERVICE_CONNECT, target);
+            }
+            if(targets.getFailover() != null)
+                setOption(KEY_SERVICE_FAILOVER, targets.getFailover().toStunnelValue());
+            if(targets.getRetry() != null)
+                setOption(new StunnelOption<>(KEY_SERVICE_RETRY, new StunnelBoolean(targets.getRetry())));
+
+            return this;
+        }
+
         /**
          * Calls {@link #connect(String, int)} with an empty host to listen to connect to localhost.
          * @param port
@@ -467,6 +1356,36 @@ public class StunnelBuilder extends StunnelConfigBuilder<StunnelBuilder> {
             return connect(null, port);
         }
 
+        /**
+         * <pre>{@code
+         *
+
+        ECDH curves separated with ':'
+
+        Only a single curve name is allowed for OpenSSL older than 1.1.1.
+
+        default: X25519:P-256:X448:P-521:P-384 (OpenSSL 1.1.1 or later)
+
+         * }</pre>
+         * Not supported by {@link StunnelBackend#SSL_ENGINE}.
+         * @param curves
+         * @return
+         * @see CipherProfile#getCurves()
+         */
+        public ServiceBuilder curves(List<ECCurve> curves) {
+            return setOption(new StunnelOption<>(KEY_SERVICE_CURVES, new StunnelList<>(curves)));
+        }
+
+        /**
+         *
+         * @param curves
+         * @return
+         * @see #curves(List)
+         */
+        public ServiceBuilder curves(ECCurve... curves) {
+            return curves(Arrays.asList(curves));
+        }
+
         /**
          * <pre>{@code
          *
@@ -489,6 +1408,25 @@ public class StunnelBuilder extends StunnelConfigBuilder<StunnelBuilder> {
             return setOption(new StunnelOption<>(KEY_SERVICE_DELAY, new StunnelBoolean(delay)));
         }
 
+        /**
+         * <pre>{@code
+         *
+
+        private key for the certificate specified with cert option
+
+        A private key is needed to authenticate the certificate owner. Since this file should be kept secret it should only be readable by its owner.
+
+         * }</pre>
+         * The key is written unencrypted as a PEM file to {@link #getFileStore()} (readable by the app only)
+         * when Stunnel is created and deleted once no {@link Stunnel} uses it anymore.
+         * @param key An exportable (PKCS#8) key. Keys of the Android Keystore can't be exported and are not supported.
+         * @return
+         * @see #cert(X509Certificate...)
+         */
+        public ServiceBuilder key(@NonNull PrivateKey key) {
+            return setOption(KEY_SERVICE_KEY, addStoredFile(name, KEY_SERVICE_KEY, PemEncoder.encode(key)));
+        }
+
         /**
          * <pre>{@code
          *
@@ -522,28 +1460,13 @@ public class StunnelBuilder extends StunnelConfigBuilder<StunnelBuilder> {
          * }</pre>
          * @param pskSecrets
          * @return
-         * @throws IOException When there are errors writing the required config file to disk.
+         * @throws IOException When the secrets can't be encoded. The file itself is written to
+         * {@link #getFileStore()} when Stunnel is created.
          * @see #pskIdentity(String)
          */
         public ServiceBuilder pskSecrets(List<PreSharedKey> pskSecrets) throws IOException {
-            File file = newConfigFile();
-
-            Writer writer = null;
-            try {
-                //we must NOT use a BOM here
-                writer = new FileWriter(file);
-                writer.write(PreSharedKey.makePskSecretsFile(pskSecrets));
-                writer.flush();
-                Util.close(writer);
-            }
-            catch(IOException e) {
-                Util.close(writer);
-                //delete the temporary file
-                deleteDirectory(file);
-                throw e;
-            }
-
-            return setOption(KEY_SERVICE_PSK_SECRETS, file.getAbsolutePath());
+            //we must NOT use a BOM here
+            return setOption(KEY_SERVICE_PSK_SECRETS, addStoredFile(name, KEY_SERVICE_PSK_SECRETS, PreSharedKey.makePskSecretsFile(pskSecrets).getBytes("UTF-8")));
         }
 
         /**
@@ -557,6 +1480,201 @@ public class StunnelBuilder extends StunnelConfigBuilder<StunnelBuilder> {
             return pskSecrets(Arrays.asList(pskSecrets));
         }
 
+        /**
+         * <pre>{@code
+         *
+
+        session cache size
+
+        sessionCacheSize specifies the maximum number of the internal session cache entries.
+
+        The value of 0 can be used for unlimited size. It is not recommended for production use due to the risk of a memory exhaustion DoS attack.
+
+        default: 1000
+
+         * }</pre>
+         * @param entries
+         * @return
+         * @see #sessionResume(boolean)
+         */
+        public ServiceBuilder sessionCacheSize(int entries) {
+            if(entries < 0)
+                throw new IllegalArgumentException("entries must not be negative: " + entries);
+
+            return setOption(KEY_SERVICE_SESSION_CACHE_SIZE, String.valueOf(entries));
+        }
+
+        /**
+         * <pre>{@code
+         *
+
+        session cache timeout
+
+        This is the number of seconds to keep cached TLS sessions.
+
+        default: 300
+
+         * }</pre>
+         * @param timeout Rounded down to full seconds.
+         * @param unit
+         * @return
+         * @see #sessionResume(boolean)
+         */
+        public ServiceBuilder sessionCacheTimeout(long timeout, @NonNull TimeUnit unit) {
+            if(timeout < 0)
+                throw new IllegalArgumentException("timeout must not be negative: " + timeout);
+
+            return setOption(KEY_SERVICE_SESSION_CACHE_TIMEOUT, String.valueOf(unit.toSeconds(timeout)));
+        }
+
+        /**
+         * <pre>{@code
+         *
+
+        allow or disallow session resumption
+
+        default: yes
+
+         * }</pre>
+         * Resumed sessions skip the full TLS handshake, saving round trips and CPU time for each new connection.
+         * Use {@link ServiceMetrics#getResumptionRate()} to check how many handshakes are resumed.
+         * @param resume
+         * @return
+         * @see #sessionCacheSize(int)
+         * @see #sessionCacheTimeout(long, TimeUnit)
+         * @see #sessionTickets(boolean)
+         */
+        public ServiceBuilder sessionResume(boolean resume) {
+            return setOption(new StunnelOption<>(KEY_SERVICE_SESSION_RESUME, new StunnelBoolean(resume)));
+        }
+
+        /**
+         * Enables or disables stateless session resumption with session tickets (RFC 5077)
+         * by clearing or setting OpenSSL's <code>NO_TICKET</code> option:
+         * <pre>{@code
+         *
+
+        OpenSSL library options
+
+        The parameter is the OpenSSL option name as described in the SSL_CTX_set_options(3ssl) manual, but without SSL_OP_ prefix. stunnel -options lists the options found to be allowed in the current combination of stunnel and the OpenSSL library used to build it.
+
+        Several options can be used to specify multiple options. An option name can be prepended with a dash ("-") to disable the option.
+
+         * }</pre>
+         * @param enabled
+         * @return
+         * @see #sessionResume(boolean)
+         */
+        public ServiceBuilder sessionTickets(boolean enabled) {
+            //options is repeatable: drop an earlier call's value
+            config.remove(KEY_SERVICE_OPTIONS, "NO_TICKET");
+            config.remove(KEY_SERVICE_OPTIONS, "-NO_TICKET");
+            return setOption(KEY_SERVICE_OPTIONS, enabled ? "-NO_TICKET" : "NO_TICKET");
+        }
+
+        /**
+         * <pre>{@code
+         *
+
+        Set an option on the accept/local/remote socket
+
+        The values for the linger option are l_onof:l_linger. The values for the time are tv_sec:tv_usec.
+
+         * }</pre>
+         * Sets an on/off option such as {@link SocketOption#TCP_NODELAY}.
+         * Can be called multiple times to set several options.
+         * @param side
+         * @param option Must be of type {@link SocketOption.Type#FLAG}.
+         * @param enabled
+         * @return
+         * @throws IllegalArgumentException When the option is not an on/off option.
+         * @see #socketPreset(SocketPreset)
+         */
+        public ServiceBuilder socket(@NonNull SocketSide side, @NonNull SocketOption option, boolean enabled) {
+            requireSocketOptionType(option, SocketOption.Type.FLAG);
+            return setSocketOption(side, option, enabled ? "1" : "0");
+        }
+
+        /**
+         * Sets a numeric option such as {@link SocketOption#SO_SNDBUF}, see {@link #socket(SocketSide, SocketOption, boolean)}.
+         * @param side
+         * @param option Must be of type {@link SocketOption.Type#INT}.
+         * @param value
+         * @return
+         * @throws IllegalArgumentException When the option is not a numeric option or the value is negative.
+         */
+        public ServiceBuilder socket(@NonNull SocketSide side, @NonNull SocketOption option, int value) {
+            requireSocketOptionType(option, SocketOption.Type.INT);
+            if(value < 0)
+                throw new IllegalArgumentException(option.value + " must not be negative: " + value);
+
+            return setSocketOption(side, option, String.valueOf(value));
+        }
+
+        /**
+         * Sets {@link SocketOption#SO_LINGER}, see {@link #socket(SocketSide, SocketOption, boolean)}.
+         * @param side
+         * @param enabled
+         * @param seconds How long closing the socket may block to send remaining data.
+         * @return
+         */
+        public ServiceBuilder socketLinger(@NonNull SocketSide side, boolean enabled, int seconds) {
+            if(seconds < 0)
+                throw new IllegalArgumentException("seconds must not be negative: " + seconds);
+
+            return setSocketOption(side, SocketOption.SO_LINGER, (enabled ? "1" : "0") + ":" + seconds);
+        }
+
+        /**
+         * Sets a timeout option such as {@link SocketOption#SO_RCVTIMEO}, see {@link #socket(SocketSide, SocketOption, boolean)}.
+         * @param side
+         * @param option Must be of type {@link SocketOption.Type#TIMEVAL}.
+         * @param timeout
+         * @param unit
+         * @return
+         * @throws IllegalArgumentException When the option is not a timeout option or the timeout is negative.
+         */
+        public ServiceBuilder socketTimeout(@NonNull SocketSide side, @NonNull SocketOption option, long timeout, @NonNull TimeUnit unit) {
+            requireSocketOptionType(option, SocketOption.Type.TIMEVAL);
+            if(timeout < 0)
+                throw new IllegalArgumentException(option.value + " must not be negative: " + timeout);
+
+            long micros = unit.toMicros(timeout);
+            return setSocketOption(side, option, (micros / 1000000) + ":" + (micros % 1000000));
+        }
+
+        /**
+         * Applies a predefined set of socket options to the local and remote sockets.
+         * Can be combined with further calls to {@link #socket(SocketSide, SocketOption, int)} and similar.
+         * @param preset
+         * @return
+         */
+        public ServiceBuilder socketPreset(@NonNull SocketPreset preset) {
+            switch (preset) {
+                case LOW_LATENCY:
+                    socket(SocketSide.LOCAL, SocketOption.TCP_NODELAY, true);
+                    socket(SocketSide.REMOTE, SocketOption.TCP_NODELAY, true);
+                    break;
+                case BULK_TRANSFER:
+                    for (SocketSide side : new SocketSide[]{SocketSide.LOCAL, SocketSide.REMOTE}) {
+                        socket(side, SocketOption.SO_SNDBUF, SocketPreset.BULK_TRANSFER_BUFFER_SIZE);
+                        socket(side, SocketOption.SO_RCVBUF, SocketPreset.BULK_TRANSFER_BUFFER_SIZE);
+                    }
+                    break;
+            }
+
+            return this;
+        }
+
+        protected ServiceBuilder setSocketOption(@NonNull SocketSide side, @NonNull SocketOption option, @NonNull String value) {
+            return setOption(KEY_SERVICE_SOCKET, side.toStunnelValue() + ":" + option.toStunnelValue() + "=" + value);
+        }
+
+        protected void requireSocketOptionType(@NonNull SocketOption option, @NonNull SocketOption.Type type) {
+            if(option.type != type)
+                throw new IllegalArgumentException(option.value + " is of type " + option.type + ", not " + type);
+        }
+
         /**
          * <pre>{@code
          *
@@ -637,28 +1755,78 @@ public class StunnelBuilder extends StunnelConfigBuilder<StunnelBuilder> {
         }
 
         /**
-         * Finalizes this Stunnel service and returns the original {@link StunnelBuilder}.
+         * Sets the service's connection timeouts (TIMEOUTconnect, TIMEOUTbusy, TIMEOUTidle and TIMEOUTclose).
+         * Timeouts that are not set in the policy keep Stunnel's defaults.
+         * @param policy
          * @return
+         * @see TimeoutPolicy#MOBILE
          */
-        public StunnelBuilder apply() {
-            //write the service name
-            StunnelBuilder.this.addConfig(makeServiceName());
+        public ServiceBuilder timeouts(@NonNull TimeoutPolicy policy) {
+            if(policy.getConnectSeconds() != TimeoutPolicy.UNSET)
+                setOption(KEY_SERVICE_TIMEOUT_CONNECT, String.valueOf(policy.getConnectSeconds()));
+            if(policy.getBusySeconds() != TimeoutPolicy.UNSET)
+                setOption(KEY_SERVICE_TIMEOUT_BUSY, String.valueOf(policy.getBusySeconds()));
+            if(policy.getIdleSeconds() != TimeoutPolicy.UNSET)
+                setOption(KEY_SERVICE_TIMEOUT_IDLE, String.valueOf(policy.getIdleSeconds()));
+            if(policy.getCloseSeconds() != TimeoutPolicy.UNSET)
+                setOption(KEY_SERVICE_TIMEOUT_CLOSE, String.valueOf(policy.getCloseSeconds()));
+
+            return this;
+        }
 
-            //write the service settings
-            for (String line : config) {
-                StunnelBuilder.this.addConfig(line);
-            }
+        /**
+         * <pre>{@code
+         *
 
-            return StunnelBuilder.this;
+        verify the peer certificate chain starting from the root CA
+
+        For server certificate verification it is essential to also require a specific certificate with checkHost or checkIP.
+
+        The self-signed root CA certificate needs to be stored either in the file specified with CAfile, or in the directory specified with CApath.
+
+        default: no
+
+         * }</pre>
+         * @param verify
+         * @return
+         * @see #caFile(X509Certificate...)
+         * @see #checkHost(String)
+         */
+        public ServiceBuilder verifyChain(boolean verify) {
+            return setOption(new StunnelOption<>(KEY_SERVICE_VERIFY_CHAIN, new StunnelBoolean(verify)));
+        }
+
+        /**
+         * Checks whether this service is ready by connecting to its accept endpoint instead of relying on
+         * Stunnel's log only, see {@link Stunnel#getServiceReadiness(String)}.<br/>
+         * Probe connections reach Stunnel like any other connection: they show up in the log and
+         * in {@link Stunnel#getMetrics()} and, unless {@link #delay(boolean)} is used, make Stunnel
+         * connect to the service's target.
+         * @return
+         */
+        public ServiceBuilder probeReadiness() {
+            probeReadiness = true;
+            return this;
         }
 
         /**
-         * Returns the service's {@link #name} as it needs to be written into the Stunnel config file.
+         * Finalizes this Stunnel service and returns the original {@link StunnelBuilder}.
          * @return
          */
-        protected String makeServiceName() {
-            //TODO escaping?
-            return "[" + name + "]";
+        public StunnelBuilder apply() {
+            StunnelBuilder.this.serviceNames.add(name);
+            if(unixSocket != null)
+                StunnelBuilder.this.unixSockets.put(name, unixSocket);
+            if(acceptPort >= 0)
+                StunnelBuilder.this.acceptPorts.put(name, acceptPort);
+            if(ephemeralAccept)
+                StunnelBuilder.this.ephemeralAcceptServices.put(name, config);
+            if(probeReadiness)
+                StunnelBuilder.this.probedServices.add(name);
+
+            StunnelBuilder.this.services.add(config);
+
+            return StunnelBuilder.this;
         }
     }
     //</editor-fold>
@@ -0,0 +1,405 @@
+package de.fwinkel.android_stunnel;
+
+import android.content.Context;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * A set of {@link Stunnel} processes that together run the services of one configuration.<br/>
+ * Each process runs a subset of the services, so that a busy service does not compete with all
+ * other services for a single process and a crash only takes down the services of one process.<br/>
+ * Create instances via {@link Builder}.
+ */
+public class StunnelCluster implements Closeable {
+
+    /**
+     * The started processes. Processes without services are not started.
+     */
+    @NonNull
+    private final List<Stunnel> stunnels;
+    /**
+     * Service name -> process that runs the service.
+     */
+    @NonNull
+    private final Map<String, Stunnel> services;
+
+    protected StunnelCluster(@NonNull List<Stunnel> stunnels, @NonNull Map<String, Stunnel> services) {
+        this.stunnels = Collections.unmodifiableList(stunnels);
+        this.services = Collections.unmodifiableMap(services);
+    }
+
+    /**
+     * Returns all processes of this cluster.
+     * @return
+     */
+    @NonNull
+    public List<Stunnel> getStunnels() {
+        return stunnels;
+    }
+
+    /**
+     * Returns the process that runs the given service.
+     * @param serviceName
+     * @return
+     * @throws IllegalArgumentException When the service is not part of this cluster.
+     */
+    @NonNull
+    public Stunnel getStunnel(@NonNull String serviceName) {
+        Stunnel stunnel = services.get(serviceName);
+        if(stunnel == null)
+            throw new IllegalArgumentException("Unknown service: " + serviceName);
+
+        return stunnel;
+    }
+
+    /**
+     * Shortcut for {@link Stunnel#getServiceReadiness(String)} of the process that runs the given service.
+     * @param serviceName
+     * @return
+     * @throws IllegalArgumentException When the service is not part of this cluster.
+     */
+    @NonNull
+    public StunnelFuture<Stunnel> getServiceReadiness(@NonNull String serviceName) {
+        return getStunnel(serviceName).getServiceReadiness(serviceName);
+    }
+
+    /**
+     * Returns the names of all services of this cluster.
+     * @return
+     */
+    @NonNull
+    public List<String> getServiceNames() {
+        return new ArrayList<>(services.keySet());
+    }
+
+    /**
+     * Returns a snapshot that combines the {@link Stunnel#getMetrics() metrics} of all processes.
+     * The contained {@link ServiceMetrics} keep being updated.
+     * @return
+     */
+    @NonNull
+    public StunnelMetrics getMetrics() {
+        StunnelMetrics metrics = new StunnelMetrics();
+        for (Stunnel stunnel : stunnels) {
+            for (ServiceMetrics service : stunnel.getMetrics().getServices().values()) {
+                metrics.putService(service);
+            }
+        }
+
+        return metrics;
+    }
+
+    /**
+     * Returns true if all processes are running.
+     * @return
+     */
+    public boolean isRunning() {
+        for (Stunnel stunnel : stunnels) {
+            if(!stunnel.isRunning())
+                return false;
+        }
+
+        return !stunnels.isEmpty();
+    }
+
+    /**
+     * Adds a listener to all processes, see {@link Stunnel#addExitListener(Stunnel.ExitListener)}.
+     * @param listener
+     */
+    public void addExitListener(@NonNull Stunnel.ExitListener listener) {
+        for (Stunnel stunnel : stunnels) {
+            stunnel.addExitListener(listener);
+        }
+    }
+
+    /**
+     * Closes all processes.
+     * @throws IOException The first exception thrown by {@link Stunnel#close()}, after all processes have been closed.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (Stunnel stunnel : stunnels) {
+            try {
+                stunnel.close();
+            } catch (IOException e) {
+                if(failure == null)
+                    failure = e;
+            }
+        }
+
+        if(failure != null)
+            throw failure;
+    }
+
+    /**
+     * Distributes services across several {@link StunnelBuilder}s, one per process.<br/>
+     * Each service is added to the process with the lowest total weight of services so far
+     * (ties go to the process with the lowest index), i.e. services with equal weights are distributed round-robin.
+     * Services of the same group always run in the same process. Only {@link StunnelBuilder.ServiceBuilder#apply() applied}
+     * services count, so apply each service before adding the next one.<br/>
+     * Global options such as {@link StunnelBuilder#logListener(StunnelLogListener)} are set per process
+     * via {@link #getBuilder(int)}.
+     */
+    public static class Builder {
+
+        @NonNull
+        private final List<StunnelBuilder> builders = new ArrayList<>();
+        /**
+         * Service name -> index of the process that runs the service. Includes services that have not been
+         * applied (yet), see {@link #isApplied(String)}.
+         */
+        @NonNull
+        private final Map<String, Integer> services = new LinkedHashMap<>();
+        /**
+         * Service name -> weight of the service.
+         */
+        @NonNull
+        private final Map<String, Integer> serviceWeights = new HashMap<>();
+        /**
+         * Group name -> index of the process that runs the group's services.
+         */
+        @NonNull
+        private final Map<String, Integer> groups = new HashMap<>();
+
+        /**
+         * @param context
+         * @param processCount Number of processes the services are distributed across.
+         *                     Usually no more than the number of CPU cores.
+         */
+        public Builder(@NonNull Context context, int processCount) {
+            this(new AndroidStunnelEnvironment(context), processCount);
+        }
+
+        /**
+         * @param environment
+         * @param processCount Number of processes the services are distributed across.
+         *                     Usually no more than the number of CPU cores.
+         * @see StunnelBuilder#StunnelBuilder(StunnelEnvironment)
+         */
+        public Builder(@NonNull StunnelEnvironment environment, int processCount) {
+            if(processCount <= 0)
+                throw new IllegalArgumentException("processCount must be greater than 0: " + processCount);
+
+            for (int i = 0; i < processCount; i++) {
+                builders.add(new StunnelBuilder(environment));
+            }
+        }
+
+        /**
+         * Returns the number of processes.
+         * @return
+         */
+        public int getProcessCount() {
+            return builders.size();
+        }
+
+        /**
+         * Returns the builder of the process with the given index, e.g. to set global options.
+         * @param index
+         * @return
+         */
+        @NonNull
+        public StunnelBuilder getBuilder(int index) {
+            return builders.get(index);
+        }
+
+        /**
+         * Adds a service with weight 1.
+         * @param name Must be unique within the cluster.
+         * @return The service that has to be {@link StunnelBuilder.ServiceBuilder#apply() applied} as usual.
+         * @see #addService(String, int)
+         */
+        @NonNull
+        public StunnelBuilder.ServiceBuilder addService(@NonNull String name) {
+            return addService(name, 1);
+        }
+
+        /**
+         * Adds a service to the process with the lowest total weight.
+         * @param name Must be unique within the cluster.
+         * @param weight Expected load of the service relative to the other services, e.g. its expected number of connections.
+         * @return The service that has to be {@link StunnelBuilder.ServiceBuilder#apply() applied} as usual.
+         */
+        @NonNull
+        public StunnelBuilder.ServiceBuilder addService(@NonNull String name, int weight) {
+            if(weight <= 0)
+                throw new IllegalArgumentException("weight must be greater than 0: " + weight);
+
+            return addService(name, weight, lightestProcess());
+        }
+
+        /**
+         * Adds a service with weight 1 to the process of the given group. The first service of a group
+         * determines the group's process the same way {@link #addService(String)} does.
+         * @param name Must be unique within the cluster.
+         * @param group
+         * @return The service that has to be {@link StunnelBuilder.ServiceBuilder#apply() applied} as usual.
+         */
+        @NonNull
+        public StunnelBuilder.ServiceBuilder addService(@NonNull String name, @NonNull String group) {
+            Integer index = groups.get(group);
+            if(index == null) {
+                index = lightestProcess();
+                groups.put(group, index);
+            }
+
+            return addService(name, 1, index);
+        }
+
+        /**
+         * Adds a service to the process with the given index. The service only counts towards the process' weight
+         * once it has been applied.
+         * @param name Must be unique within the cluster.
+         * @param weight
+         * @param index
+         * @return
+         */
+        @NonNull
+        protected StunnelBuilder.ServiceBuilder addService(@NonNull String name, int weight, int index) {
+            if(isApplied(name))
+                throw new IllegalArgumentException("Duplicate service name: " + name);
+
+            //replaces a service of the same name that has never been applied
+            services.remove(name);
+            services.put(name, index);
+            serviceWeights.put(name, weight);
+
+            return builders.get(index).addService(name);
+        }
+
+        /**
+         * Returns whether the given service has been added and {@link StunnelBuilder.ServiceBuilder#apply() applied}.
+         * @param name
+         * @return
+         */
+        private boolean isApplied(@NonNull String name) {
+            Integer index = services.get(name);
+            return index != null && builders.get(index).serviceNames.contains(name);
+        }
+
+        /**
+         * Returns the total weight of the applied services of each process.
+         * @return
+         */
+        @NonNull
+        private long[] getWeights() {
+            long[] weights = new long[builders.size()];
+            for (Map.Entry<String, Integer> service : services.entrySet()) {
+                if(isApplied(service.getKey()))
+                    weights[service.getValue()] += serviceWeights.get(service.getKey());
+            }
+
+            return weights;
+        }
+
+        /**
+         * Returns the index of the process with the lowest total weight.
+         * @return
+         */
+        private int lightestProcess() {
+            long[] weights = getWeights();
+            int lightest = 0;
+            for (int i = 1; i < weights.length; i++) {
+                if(weights[i] < weights[lightest])
+                    lightest = i;
+            }
+
+            return lightest;
+        }
+
+        /**
+         * Starts all processes that have at least one service in parallel.
+         * @param timeout Maximum time to wait for each process' configuration to be applied.
+         *                0 or less to wait indefinitely.
+         * @param unit
+         * @return
+         * @throws IOException When any process could not be started. All other processes are closed in that case.
+         */
+        @NonNull
+        public StunnelCluster start(long timeout, @NonNull TimeUnit unit) throws IOException {
+            List<StunnelFuture<Stunnel>> futures = new ArrayList<>();
+            for (int i = 0; i < builders.size(); i++) {
+                if(!builders.get(i).serviceNames.isEmpty())
+                    futures.add(builders.get(i).startAsync(timeout, unit));
+                else
+                    futures.add(null);
+            }
+
+            List<Stunnel> stunnels = new ArrayList<>();
+            Stunnel[] byIndex = new Stunnel[builders.size()];
+            IOException failure = null;
+            for (int i = 0; i < futures.size(); i++) {
+                StunnelFuture<Stunnel> future = futures.get(i);
+                if(future == null)
+                    continue;
+
+                if(failure != null) {
+                    //don't wait for the remaining processes, but close them once they are started
+                    future.addCallback(new StunnelFuture.Callback<Stunnel>() {
+                        @Override
+                        public void onSuccess(@Nullable Stunnel result) {
+                            Util.close(result);
+                        }
+
+                        @Override
+                        public void onFailure(@NonNull Throwable error) {
+                        }
+                    });
+                    continue;
+                }
+
+                try {
+                    byIndex[i] = future.get();
+                    stunnels.add(byIndex[i]);
+                } catch (ExecutionException e) {
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                } catch (CancellationException e) {
+                    failure = new IOException("Starting the cluster has been cancelled");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = new InterruptedIOException("Interrupted while starting the cluster");
+                }
+            }
+
+            if(failure != null) {
+                for (Stunnel stunnel : stunnels) {
+                    Util.close(stunnel);
+                }
+                throw failure;
+            }
+
+            Map<String, Stunnel> services = new LinkedHashMap<>();
+            for (Map.Entry<String, Integer> service : this.services.entrySet()) {
+                if(isApplied(service.getKey()))
+                    services.put(service.getKey(), byIndex[service.getValue()]);
+            }
+
+            return new StunnelCluster(stunnels, services);
+        }
+
+        /**
+         * Same as {@link #start(long, TimeUnit)} without timeout.
+         * @return
+         * @throws IOException
+         */
+        @NonNull
+        public StunnelCluster start() throws IOException {
+            return start(0, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package de.fwinkel.android_stunnel;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * A complete Stunnel configuration: the global options followed by one section per service.<br/>
+ * Serialized directly into a {@link Writer} via {@link #writeTo(Writer)}; two configurations can be compared
+ * with {@link #diff(StunnelConfig)}.
+ * @see StunnelBuilder#getConfig()
+ */
+public class StunnelConfig {
+
+    @NonNull
+    private final StunnelConfigSection global;
+    @NonNull
+    private final List<StunnelConfigSection> services;
+
+    /**
+     * @param global
+     * @param services Used as is, not copied.
+     */
+    public StunnelConfig(@NonNull StunnelConfigSection global, @NonNull List<StunnelConfigSection> services) {
+        this.global = global;
+        this.services = services;
+    }
+
+    @NonNull
+    public StunnelConfigSection getGlobal() {
+        return global;
+    }
+
+    /**
+     * Returns all service sections in config file order.
+     * @return
+     */
+    @NonNull
+    public List<StunnelConfigSection> getServices() {
+        return Collections.unmodifiableList(services);
+    }
+
+    /**
+     * Returns the section of the given service or null.
+     * @param name
+     * @return
+     */
+    @Nullable
+    public StunnelConfigSection getService(@NonNull String name) {
+        for (StunnelConfigSection service : services) {
+            if(name.equals(service.getName()))
+                return service;
+        }
+
+        return null;
+    }
+
+    /**
+     * Writes the config file content.
+     * @param writer
+     * @throws IOException
+     */
+    public void writeTo(@NonNull Writer writer) throws IOException {
+        global.writeTo(writer);
+        for (StunnelConfigSection service : services) {
+            service.writeTo(writer);
+        }
+    }
+
+    /**
+     * Returns a copy that is not affected by later changes to this config.
+     * @return
+     */
+    @NonNull
+    public StunnelConfig copy() {
+        List<StunnelConfigSection> services = new ArrayList<>(this.services.size());
+        for (StunnelConfigSection service : this.services) {
+            services.add(service.copy());
+        }
+
+        return new StunnelConfig(global.copy(), services);
+    }
+
+    /**
+     * Compares this config with a newer one.
+     * @param newer
+     * @return
+     */
+    @NonNull
+    public StunnelConfigDiff diff(@NonNull StunnelConfig newer) {
+        Map<String, StunnelConfigSection> oldServices = new HashMap<>();
+        for (StunnelConfigSection service : services) {
+            oldServices.put(service.getName(), service);
+        }
+
+        List<String> added = new ArrayList<>();
+        List<String> changed = new ArrayList<>();
+        for (StunnelConfigSection service : newer.services) {
+            StunnelConfigSection old = oldServices.remove(service.getName());
+            if(old == null)
+                added.add(service.getName());
+            else if(!old.equals(service))
+                changed.add(service.getName());
+        }
+        List<String> removed = new ArrayList<>();
+        for (StunnelConfigSection service : services) {
+            if(oldServices.containsKey(service.getName()))
+                removed.add(service.getName());
+        }
+
+        return new StunnelConfigDiff(!global.equals(newer.global), added, removed, changed);
+    }
+
+    @Override
+    public String toString() {
+        StringWriter writer = new StringWriter();
+        try {
+            writeTo(writer);
+        } catch (IOException e) {
+            //StringWriter does not throw
+        }
+
+        return writer.toString();
+    }
+}
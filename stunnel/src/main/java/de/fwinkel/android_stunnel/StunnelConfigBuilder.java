@@ -1,30 +1,36 @@
 package de.fwinkel.android_stunnel;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 /**
- * Manages a list of config lines (mostly key-value, see {@link StunnelOption}).<br/>
+ * Manages one section of a Stunnel config (mostly key-value, see {@link StunnelOption}).<br/>
  * @param <T> Must be the implementing class or one of its ancestors.
  */
 abstract class StunnelConfigBuilder<T extends StunnelConfigBuilder> {
 
-    protected final List<String> config = new ArrayList<>();
+    protected final StunnelConfigSection config;
+
+    /**
+     * @param sectionName Service name or null for the global section.
+     */
+    protected StunnelConfigBuilder(@Nullable String sectionName) {
+        this.config = new StunnelConfigSection(sectionName);
+    }
 
     /**
-     * Adds a raw config string such as generated by {@link StunnelOption#toConfigString()} to {@link #config}.
-     * @param configOption
+     * Appends a raw config string such as generated by {@link StunnelOption#toConfigString()} to {@link #config}.
+     * @param configOption "name = value"
      * @return
      */
     protected T addConfig(@NonNull String configOption) {
-        config.add(configOption);
+        config.add(StunnelOption.parse(configOption));
         return (T) this;
     }
 
     /**
-     * Adds a raw key/value config setting. Usually you should prefer the various high-level setters.
+     * Sets a raw key/value config setting. Usually you should prefer the various high-level setters.<br/>
+     * Replaces or appends like {@link #setOption(StunnelOption)}.
      * @param name
      * @param value
      * @return
@@ -34,11 +40,14 @@ abstract class StunnelConfigBuilder<T extends StunnelConfigBuilder> {
     }
 
     /**
-     * Adds a raw key/value config setting. Usually you should prefer the various high-level setters.
+     * Sets a raw key/value config setting. Usually you should prefer the various high-level setters.<br/>
+     * Replaces the current value unless Stunnel accepts the option several times in a section (e.g. connect,
+     * checkHost, checkIP), in which case the value is appended; see {@link StunnelConfigSection#set(StunnelOption)}.
      * @param option
      * @return
      */
     public T setOption(@NonNull StunnelOption option) {
-        return addConfig(option.toConfigString());
+        config.set(option);
+        return (T) this;
     }
 }
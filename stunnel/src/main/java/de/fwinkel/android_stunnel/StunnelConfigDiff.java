@@ -0,0 +1,82 @@
+package de.fwinkel.android_stunnel;
+
+import java.util.Collections;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Difference between two {@link StunnelConfig}s, see {@link StunnelConfig#diff(StunnelConfig)}.
+ * Services are identified by their name.
+ */
+public class StunnelConfigDiff {
+
+    private final boolean globalChanged;
+    @NonNull
+    private final List<String> addedServices;
+    @NonNull
+    private final List<String> removedServices;
+    @NonNull
+    private final List<String> changedServices;
+
+    StunnelConfigDiff(boolean globalChanged, @NonNull List<String> addedServices,
+                      @NonNull List<String> removedServices, @NonNull List<String> changedServices) {
+        this.globalChanged = globalChanged;
+        this.addedServices = Collections.unmodifiableList(addedServices);
+        this.removedServices = Collections.unmodifiableList(removedServices);
+        this.changedServices = Collections.unmodifiableList(changedServices);
+    }
+
+    /**
+     * Returns true if the global options differ.
+     * @return
+     */
+    public boolean isGlobalChanged() {
+        return globalChanged;
+    }
+
+    /**
+     * Returns the names of services that only exist in the newer config.
+     * @return
+     */
+    @NonNull
+    public List<String> getAddedServices() {
+        return addedServices;
+    }
+
+    /**
+     * Returns the names of services that only exist in the older config.
+     * @return
+     */
+    @NonNull
+    public List<String> getRemovedServices() {
+        return removedServices;
+    }
+
+    /**
+     * Returns the names of services whose options differ.
+     * @return
+     */
+    @NonNull
+    public List<String> getChangedServices() {
+        return changedServices;
+    }
+
+    /**
+     * Returns true if both configs are equal.
+     * @return
+     */
+    public boolean isEmpty() {
+        return !globalChanged && addedServices.isEmpty() && removedServices.isEmpty() && changedServices.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "StunnelConfigDiff{" +
+                "globalChanged=" + globalChanged +
+                ", added=" + addedServices +
+                ", removed=" + removedServices +
+                ", changed=" + changedServices +
+                '}';
+    }
+}
@@ -0,0 +1,214 @@
+package de.fwinkel.android_stunnel;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * One section of a {@link StunnelConfig}: either the global options or the options of one service.<br/>
+ * Options keep the order they have been added in. Most options have a single value: setting them again
+ * replaces the previous value in place. Options that Stunnel accepts several times (e.g. connect) are appended,
+ * see {@link #isRepeatable(String)}.
+ */
+public class StunnelConfigSection {
+
+    /**
+     * Options that may occur several times in a section, as listed in Stunnel's manual.
+     */
+    protected static final List<String> REPEATABLE_OPTIONS = Arrays.asList("checkEmail", "checkHost", "checkIP",
+            "connect", "engineCtrl", "OCSPflag", "options", "protocolHeader", "redirect", "socket");
+
+    @Nullable
+    private final String name;
+    @NonNull
+    private final List<StunnelOption<?>> options = new ArrayList<>();
+
+    /**
+     * @param name Service name or null for the global section.
+     */
+    public StunnelConfigSection(@Nullable String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the service name or null for the global section.
+     * @return
+     */
+    @Nullable
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Sets the given option: replaces the current value of single-valued options and appends
+     * {@link #isRepeatable(String) repeatable} options.
+     * @param option
+     */
+    public void set(@NonNull StunnelOption<?> option) {
+        if(!isRepeatable(option.getName())) {
+            for (int i = 0; i < options.size(); i++) {
+                if(options.get(i).getName().equalsIgnoreCase(option.getName())) {
+                    options.set(i, option);
+                    return;
+                }
+            }
+        }
+
+        options.add(option);
+    }
+
+    /**
+     * Appends the given option regardless of whether it is repeatable.
+     * @param option
+     */
+    public void add(@NonNull StunnelOption<?> option) {
+        options.add(option);
+    }
+
+    /**
+     * Removes all values of the given option.
+     * @param name
+     * @return True if the option has been set.
+     */
+    public boolean remove(@NonNull String name) {
+        boolean removed = false;
+        for (int i = options.size() - 1; i >= 0; i--) {
+            if(options.get(i).getName().equalsIgnoreCase(name)) {
+                options.remove(i);
+                removed = true;
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Removes the values of the given option that equal the given value.
+     * @param name
+     * @param value Compared to {@link StunnelOption#getValueString()}.
+     * @return True if a value has been removed.
+     */
+    public boolean remove(@NonNull String name, @NonNull String value) {
+        boolean removed = false;
+        for (int i = options.size() - 1; i >= 0; i--) {
+            StunnelOption<?> option = options.get(i);
+            if(option.getName().equalsIgnoreCase(name) && option.getValueString().equals(value)) {
+                options.remove(i);
+                removed = true;
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Returns the last value of the given option or null if it is not set.
+     * @param name
+     * @return
+     */
+    @Nullable
+    public StunnelOption<?> getOption(@NonNull String name) {
+        for (int i = options.size() - 1; i >= 0; i--) {
+            if(options.get(i).getName().equalsIgnoreCase(name))
+                return options.get(i);
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns all values of the given option in config file order.
+     * @param name
+     * @return
+     */
+    @NonNull
+    public List<StunnelOption<?>> getOptions(@NonNull String name) {
+        List<StunnelOption<?>> values = new ArrayList<>();
+        for (StunnelOption<?> option : options) {
+            if(option.getName().equalsIgnoreCase(name))
+                values.add(option);
+        }
+
+        return values;
+    }
+
+    /**
+     * Returns all options in config file order.
+     * @return
+     */
+    @NonNull
+    public List<StunnelOption<?>> getOptions() {
+        return Collections.unmodifiableList(options);
+    }
+
+    /**
+     * Writes the section header (services only) and all options.
+     * @param writer
+     * @throws IOException
+     */
+    public void writeTo(@NonNull Writer writer) throws IOException {
+        if(name != null) {
+            writer.write('[');
+            writer.write(name);
+            writer.write("]\n");
+        }
+        for (StunnelOption<?> option : options) {
+            option.writeTo(writer);
+        }
+    }
+
+    /**
+     * Returns a copy that is not affected by later changes to this section.
+     * @return
+     */
+    @NonNull
+    public StunnelConfigSection copy() {
+        StunnelConfigSection copy = new StunnelConfigSection(name);
+        copy.options.addAll(options);
+        return copy;
+    }
+
+    /**
+     * Returns true if Stunnel accepts the given option several times per section.
+     * @param name
+     * @return
+     */
+    public static boolean isRepeatable(@NonNull String name) {
+        for (String repeatable : REPEATABLE_OPTIONS) {
+            if(repeatable.equalsIgnoreCase(name))
+                return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(!(o instanceof StunnelConfigSection))
+            return false;
+
+        StunnelConfigSection other = (StunnelConfigSection) o;
+        return (name == null ? other.name == null : name.equals(other.name)) && options.equals(other.options);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (name != null ? name.hashCode() : 0) + options.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "StunnelConfigSection{" +
+                "name='" + name + '\'' +
+                ", options=" + options +
+                '}';
+    }
+}
@@ -0,0 +1,19 @@
+package de.fwinkel.android_stunnel;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Writes a Stunnel config that is passed to the Stunnel process through a pipe
+ * instead of a config file, see {@link StunnelBuilder#pipeConfig(boolean)}.
+ */
+public interface StunnelConfigSource {
+    /**
+     * Writes the complete config. The writer is closed by the caller.
+     * @param writer
+     * @throws IOException
+     */
+    void writeTo(@NonNull Writer writer) throws IOException;
+}
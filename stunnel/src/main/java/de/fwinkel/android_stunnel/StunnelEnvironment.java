@@ -0,0 +1,26 @@
+package de.fwinkel.android_stunnel;
+
+import java.io.File;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Provides the Stunnel binary and the directory {@link StunnelBuilder} stores its files in
+ * (config files, Unix sockets).
+ * @see AndroidStunnelEnvironment
+ */
+public interface StunnelEnvironment {
+    /**
+     * Returns the path of the Stunnel executable.
+     * @return
+     */
+    @NonNull
+    File getBinaryPath();
+
+    /**
+     * Returns a private directory of the app. {@link StunnelBuilder} creates its own subdirectories in it.
+     * @return
+     */
+    @NonNull
+    File getFilesDirectory();
+}
@@ -0,0 +1,230 @@
+package de.fwinkel.android_stunnel;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Content-addressed store for secondary config files (e.g. PSK secrets) that are referenced by Stunnel configs.<br/>
+ * Each file is named after the SHA-256 hash of its content, so identical files of different services and
+ * {@link Stunnel} processes are written only once and shared. Files are only readable by our own user.<br/>
+ * Files are reference counted: a {@link Reference} is held by every {@link Stunnel} (or {@link StunnelSupervisor})
+ * whose configuration refers to the file, and the file is deleted once the last reference has been released.
+ * Reference counts are kept in memory, so the store's directory is cleared when it is used for the first time
+ * after the app has been started (see {@link StunnelBuilder#getFileStore()}).
+ */
+class StunnelFileStore {
+
+    protected static final String HASH_ALGORITHM = "SHA-256";
+
+    /**
+     * Directory -> store of all stores used by this process, so that each directory has exactly one
+     * set of reference counts.
+     */
+    private static final Map<File, StunnelFileStore> stores = new HashMap<>();
+
+    /**
+     * Content of a file in the store, see {@link #newEntry(byte[])}.
+     * The entry does not hold a reference: the file is only written once the entry is {@link #acquire(Entry) acquired}.
+     */
+    static class Entry {
+        @NonNull
+        final File file;
+        @NonNull
+        final byte[] content;
+
+        Entry(@NonNull File file, @NonNull byte[] content) {
+            this.file = file;
+            this.content = content;
+        }
+
+        /**
+         * Returns the path the file has once it is written.
+         * @return
+         */
+        @NonNull
+        File getFile() {
+            return file;
+        }
+    }
+
+    /**
+     * A reference to a file in the store that keeps the file from being deleted until it is closed.
+     * Closing a reference more than once has no effect.
+     */
+    class Reference implements Closeable {
+        @NonNull
+        final File file;
+        private boolean released;
+
+        Reference(@NonNull File file) {
+            this.file = file;
+        }
+
+        @Override
+        public void close() {
+            synchronized (StunnelFileStore.this) {
+                if(released)
+                    return;
+                released = true;
+                release(file);
+            }
+        }
+    }
+
+    @NonNull
+    private final File directory;
+    /**
+     * File -> number of {@link Reference}s that have not been closed yet. Guarded by this.
+     */
+    private final Map<File, Integer> referenceCounts = new HashMap<>();
+
+    protected StunnelFileStore(@NonNull File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the store that keeps its files in the given directory.
+     * @param directory
+     * @return
+     */
+    @NonNull
+    static StunnelFileStore forDirectory(@NonNull File directory) {
+        synchronized (stores) {
+            StunnelFileStore store = stores.get(directory);
+            if(store == null) {
+                store = new StunnelFileStore(directory);
+                stores.put(directory, store);
+            }
+
+            return store;
+        }
+    }
+
+    /**
+     * Returns an entry for the given content, without writing it yet.
+     * @param content Must not be modified afterwards.
+     * @return
+     */
+    @NonNull
+    Entry newEntry(@NonNull byte[] content) {
+        return new Entry(new File(directory, hash(content)), content);
+    }
+
+    /**
+     * Acquires a reference to the given entry's file, writing the file if it does not exist yet.
+     * @param entry
+     * @return
+     * @throws IOException When the file could not be written.
+     */
+    @NonNull
+    synchronized Reference acquire(@NonNull Entry entry) throws IOException {
+        Integer count = referenceCounts.get(entry.file);
+        if(count == null)
+            count = 0;
+        //the name is the content's hash: an existing file of the same length has the same content
+        if(!entry.file.isFile() || entry.file.length() != entry.content.length)
+            write(entry);
+
+        referenceCounts.put(entry.file, count + 1);
+        return new Reference(entry.file);
+    }
+
+    /**
+     * Releases one reference to the given file and deletes the file if that was the last one.
+     * @param file
+     */
+    private synchronized void release(@NonNull File file) {
+        Integer count = referenceCounts.get(file);
+        if(count == null)
+            return;
+
+        if(count > 1)
+            referenceCounts.put(file, count - 1);
+        else {
+            referenceCounts.remove(file);
+            file.delete();
+        }
+    }
+
+    /**
+     * Writes the given entry's file. The content is written into a temporary file first, so that the file
+     * never exists with partial content.
+     * @param entry
+     * @throws IOException
+     */
+    protected void write(@NonNull Entry entry) throws IOException {
+        if(!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Can't create directory " + directory);
+        restrictToOwner(directory);
+
+        File tempFile = new File(directory, entry.file.getName() + "." + UUID.randomUUID() + ".tmp");
+        OutputStream out = null;
+        try {
+            //restrict before writing any content: Stunnel expects e.g. PSK secrets not to be world-readable
+            if(!tempFile.createNewFile())
+                throw new IOException("Can't create file " + tempFile);
+            restrictToOwner(tempFile);
+
+            out = new FileOutputStream(tempFile);
+            out.write(entry.content);
+            out.flush();
+            out.close();
+
+            if(!tempFile.renameTo(entry.file))
+                throw new IOException("Can't create file " + entry.file);
+        }
+        finally {
+            Util.close(out);
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Makes the given file or directory accessible by our own user only.
+     * @param file
+     */
+    protected static void restrictToOwner(@NonNull File file) {
+        file.setReadable(false, false);
+        file.setWritable(false, false);
+        file.setExecutable(false, false);
+        file.setReadable(true, true);
+        file.setWritable(true, true);
+        if(file.isDirectory())
+            file.setExecutable(true, true);
+    }
+
+    /**
+     * Returns the hex encoded SHA-256 hash of the given content.
+     * @param content
+     * @return
+     */
+    @NonNull
+    protected static String hash(@NonNull byte[] content) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            //every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+
+        byte[] hash = digest.digest(content);
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+
+        return hex.toString();
+    }
+}
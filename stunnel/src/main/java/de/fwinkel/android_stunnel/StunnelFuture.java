@@ -0,0 +1,123 @@
+package de.fwinkel.android_stunnel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * {@link java.util.concurrent.Future} of an asynchronous Stunnel operation such as
+ * {@link Stunnel#startAsync(long, java.util.concurrent.TimeUnit, java.util.concurrent.Executor)}
+ * that additionally supports completion callbacks.
+ * @param <T>
+ */
+public class StunnelFuture<T> extends FutureTask<T> {
+
+    /**
+     * Callback that is notified once a {@link StunnelFuture} completes.<br/>
+     * Called on the thread that completed the future, or immediately on the calling thread
+     * if the future had already been completed when the callback was added.
+     * @param <T>
+     */
+    public interface Callback<T> {
+        void onSuccess(@Nullable T result);
+
+        /**
+         * @param error The exception the operation failed with, or a {@link CancellationException}
+         *              if the future was cancelled.
+         */
+        void onFailure(@NonNull Throwable error);
+    }
+
+    @NonNull
+    private final List<Callback<? super T>> callbacks = new ArrayList<>();
+    private boolean callbacksDispatched;
+
+    public StunnelFuture(@NonNull Callable<T> callable) {
+        super(callable);
+    }
+
+    /**
+     * Creates a future that is not run but completed via {@link #complete(Object)} or {@link #fail(Throwable)}.
+     */
+    StunnelFuture() {
+        super(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                throw new IllegalStateException("Future is completed explicitly");
+            }
+        });
+    }
+
+    /**
+     * Completes this future with the given result unless it is done already.
+     * @param result
+     */
+    void complete(@Nullable T result) {
+        set(result);
+    }
+
+    /**
+     * Fails this future with the given error unless it is done already.
+     * @param error
+     */
+    void fail(@NonNull Throwable error) {
+        setException(error);
+    }
+
+    /**
+     * Adds a callback that is notified when this future completes.
+     * @param callback
+     * @return
+     */
+    public StunnelFuture<T> addCallback(@NonNull Callback<? super T> callback) {
+        synchronized (callbacks) {
+            if(!callbacksDispatched) {
+                callbacks.add(callback);
+                return this;
+            }
+        }
+
+        dispatch(callback);
+        return this;
+    }
+
+    @Override
+    protected void done() {
+        List<Callback<? super T>> toDispatch;
+        synchronized (callbacks) {
+            callbacksDispatched = true;
+            toDispatch = new ArrayList<>(callbacks);
+            callbacks.clear();
+        }
+
+        for (Callback<? super T> callback : toDispatch) {
+            dispatch(callback);
+        }
+    }
+
+    private void dispatch(@NonNull Callback<? super T> callback) {
+        T result;
+        try {
+            result = get();
+        } catch (ExecutionException e) {
+            callback.onFailure(e.getCause() != null ? e.getCause() : e);
+            return;
+        } catch (CancellationException e) {
+            callback.onFailure(e);
+            return;
+        } catch (InterruptedException e) {
+            //can't happen: the future is done
+            Thread.currentThread().interrupt();
+            callback.onFailure(e);
+            return;
+        }
+
+        callback.onSuccess(result);
+    }
+}
@@ -0,0 +1,99 @@
+package de.fwinkel.android_stunnel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Fixed-size ring buffer holding the most recent log lines of a {@link Stunnel} process.<br/>
+ * The backing array is allocated once; adding a line copies its characters into the slot of the oldest
+ * entry once the buffer is full, so memory stays bounded however long Stunnel runs and lines are only
+ * turned into {@link String}s when they are read.
+ */
+public class StunnelLogBuffer {
+
+    @NonNull
+    private final StringBuilder[] lines;
+    /**
+     * Index of the slot the next line will be written to.
+     */
+    private int head;
+    /**
+     * Number of valid lines in {@link #lines}, at most {@link #getCapacity()}.
+     */
+    private int size;
+
+    public StunnelLogBuffer(int capacity) {
+        if(capacity <= 0)
+            throw new IllegalArgumentException("capacity must be greater than 0: " + capacity);
+
+        this.lines = new StringBuilder[capacity];
+    }
+
+    /**
+     * Adds a line, replacing the oldest line if the buffer is full.
+     * @param line
+     */
+    public synchronized void add(@NonNull CharSequence line) {
+        StringBuilder slot = lines[head];
+        if(slot == null) {
+            slot = new StringBuilder(line.length());
+            lines[head] = slot;
+        }
+        slot.setLength(0);
+        slot.append(line);
+
+        head = (head + 1) % lines.length;
+        if(size < lines.length)
+            size++;
+    }
+
+    /**
+     * Returns a snapshot of all buffered lines, oldest first.
+     * @return
+     */
+    @NonNull
+    public List<String> getLines() {
+        return getLastLines(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns a snapshot of the most recent lines, oldest first.
+     * @param count Maximum number of lines to return.
+     * @return
+     */
+    @NonNull
+    public synchronized List<String> getLastLines(int count) {
+        int n = Math.min(Math.max(count, 0), size);
+        List<String> snapshot = new ArrayList<>(n);
+
+        int start = head - n;
+        if(start < 0)
+            start += lines.length;
+        for (int i = 0; i < n; i++) {
+            snapshot.add(lines[(start + i) % lines.length].toString());
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Removes all lines from the buffer.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = null;
+        }
+        head = 0;
+        size = 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return lines.length;
+    }
+}
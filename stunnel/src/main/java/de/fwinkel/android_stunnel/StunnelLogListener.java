@@ -0,0 +1,12 @@
+package de.fwinkel.android_stunnel;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Receives every line Stunnel writes to its log output.<br/>
+ * Called on the {@link Stunnel}'s log pump thread: implementations should return quickly
+ * and must not block, otherwise Stunnel's output is not drained while the call is in progress.
+ */
+public interface StunnelLogListener {
+    void onLogLine(@NonNull Stunnel stunnel, @NonNull String line);
+}
@@ -0,0 +1,286 @@
+package de.fwinkel.android_stunnel;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Streaming parser that updates {@link StunnelMetrics} from Stunnel's log lines.<br/>
+ * Stunnel prefixes each line with its log level and the id of the connection the line belongs to,
+ * e.g.:<br/>
+ * <pre>2019.11.16 15:30:19 LOG5[3]: Service [web] accepted connection from 127.0.0.1:41234</pre>
+ * Only the first line of a connection names its service, so the parser remembers which
+ * service each open connection id belongs to.<br/>
+ * Stunnel's own timestamps only have a resolution of seconds, so latencies are measured between the times
+ * the lines have been read instead.<br/>
+ * Not thread-safe: lines must be passed in by a single thread (the log pump).
+ */
+class StunnelLogParser {
+
+    /**
+     * Receives events that are not metrics, such as the result of binding a service's accept socket.
+     */
+    interface EventListener {
+        /**
+         * @param serviceName
+         * @param bound True if the accept socket has been bound, false if binding failed.
+         */
+        void onServiceBindResult(@NonNull String serviceName, boolean bound);
+    }
+
+    protected static final String PREFIX_SERVICE = "Service [";
+    protected static final String SUFFIX_ACCEPTED = "] accepted connection";
+    protected static final String PREFIX_CLOSED = "Connection closed: ";
+    protected static final String PREFIX_RESET = "Connection reset: ";
+    protected static final String PREFIX_REJECTED = "Connection rejected";
+    protected static final String SUFFIX_SENT_TO_TLS = " byte(s) sent to TLS, ";
+    protected static final String PREFIX_TLS_CONNECTED = "TLS connected: ";
+    protected static final String PREFIX_TLS_ACCEPTED = "TLS accepted: ";
+    protected static final String SESSION_REUSED = "previous session reused";
+    protected static final String PREFIX_CONNECTED = "s_connect: connected ";
+    protected static final String PREFIX_CONNECT_FAILED = "s_connect: connect ";
+    protected static final String PREFIX_CONNECT_POLL = "s_connect: s_poll_wait ";
+    protected static final String CONNECT_POLL_WAITING = "waiting ";
+    protected static final String PREFIX_BINDING = "Binding service [";
+    protected static final String PREFIX_ERROR_BINDING = "Error binding service [";
+    protected static final String SUFFIX_BOUND = " bound to ";
+    protected static final String BIND_SUCCESS = ": Success";
+
+    @NonNull
+    protected final StunnelMetrics metrics;
+    @Nullable
+    protected final EventListener eventListener;
+
+    /**
+     * State of an open connection.
+     */
+    protected static class Connection {
+        @NonNull
+        final ServiceMetrics service;
+        final long acceptedAt;
+        /**
+         * Time of the last completed step (accepted, connected or handshake).
+         */
+        long lastStepAt;
+
+        Connection(@NonNull ServiceMetrics service, long acceptedAt) {
+            this.service = service;
+            this.acceptedAt = acceptedAt;
+            this.lastStepAt = acceptedAt;
+        }
+    }
+
+    /**
+     * Connection id -> state of all currently open connections.
+     */
+    private final Map<String, Connection> connections = new HashMap<>();
+
+    StunnelLogParser(@NonNull StunnelMetrics metrics, @Nullable EventListener eventListener) {
+        this.metrics = metrics;
+        this.eventListener = eventListener;
+    }
+
+    /**
+     * Parses one log line. Lines that are not understood are ignored.
+     * @param line
+     * @param now {@link System#nanoTime()} at which the line has been read.
+     */
+    void parse(@NonNull CharSequence line, long now) {
+        int levelStart = Util.indexOf(line, "LOG", 0);
+        if(levelStart < 0)
+            return;
+        int idStart = Util.indexOf(line, '[', levelStart);
+        if(idStart < 0)
+            return;
+        int idEnd = Util.indexOf(line, "]: ", idStart);
+        if(idEnd < 0)
+            return;
+
+        int messageStart = idEnd + 3;
+
+        if(Util.startsWith(line, PREFIX_SERVICE, messageStart)) {
+            int nameEnd = Util.indexOf(line, SUFFIX_ACCEPTED, messageStart);
+            if(nameEnd > 0) {
+                String name = line.subSequence(messageStart + PREFIX_SERVICE.length(), nameEnd).toString();
+                onAccepted(line.subSequence(idStart + 1, idEnd).toString(), name, now);
+            }
+            else if(Util.indexOf(line, SUFFIX_BOUND, messageStart) > 0) {
+                //"Service [NAME] (FD=N) bound to ADDRESS"
+                onBindResult(line, messageStart + PREFIX_SERVICE.length(), true);
+            }
+        }
+        else if(Util.startsWith(line, PREFIX_BINDING, messageStart)) {
+            //"Binding service [NAME] to ADDRESS: RESULT" or "Binding service [NAME] failed"
+            onBindResult(line, messageStart + PREFIX_BINDING.length(), Util.endsWith(line, BIND_SUCCESS));
+        }
+        else if(Util.startsWith(line, PREFIX_ERROR_BINDING, messageStart)) {
+            onBindResult(line, messageStart + PREFIX_ERROR_BINDING.length(), false);
+        }
+        else if(Util.startsWith(line, PREFIX_CLOSED, messageStart)) {
+            onFinished(now, line, idStart, idEnd, messageStart + PREFIX_CLOSED.length(), false);
+        }
+        else if(Util.startsWith(line, PREFIX_RESET, messageStart)) {
+            onFinished(now, line, idStart, idEnd, messageStart + PREFIX_RESET.length(), true);
+        }
+        else if(Util.startsWith(line, PREFIX_REJECTED, messageStart)) {
+            onFinished(now, line, idStart, idEnd, -1, true);
+        }
+        else if(Util.startsWith(line, PREFIX_TLS_CONNECTED, messageStart)) {
+            onHandshake(now, line, idStart, idEnd, messageStart + PREFIX_TLS_CONNECTED.length());
+        }
+        else if(Util.startsWith(line, PREFIX_TLS_ACCEPTED, messageStart)) {
+            onHandshake(now, line, idStart, idEnd, messageStart + PREFIX_TLS_ACCEPTED.length());
+        }
+        else if(Util.startsWith(line, PREFIX_CONNECTED, messageStart)) {
+            onConnected(now, line, idStart, idEnd, messageStart + PREFIX_CONNECTED.length());
+        }
+        else if(Util.startsWith(line, PREFIX_CONNECT_FAILED, messageStart)) {
+            onConnectFailed(line, idStart, idEnd, messageStart + PREFIX_CONNECT_FAILED.length());
+        }
+        else if(Util.startsWith(line, PREFIX_CONNECT_POLL, messageStart)) {
+            onConnectFailed(line, idStart, idEnd, messageStart + PREFIX_CONNECT_POLL.length());
+        }
+    }
+
+    /**
+     * Handles a line that reports the result of binding a service's accept socket.
+     * @param line
+     * @param nameStart Index of the service name, which ends with ']'
+     * @param bound
+     */
+    protected void onBindResult(@NonNull CharSequence line, int nameStart, boolean bound) {
+        int nameEnd = Util.indexOf(line, ']', nameStart);
+        if(nameEnd < 0 || eventListener == null)
+            return;
+
+        eventListener.onServiceBindResult(line.subSequence(nameStart, nameEnd).toString(), bound);
+    }
+
+    protected void onAccepted(@NonNull String connectionId, @NonNull String serviceName, long now) {
+        ServiceMetrics service = metrics.getOrAddService(serviceName);
+        Connection previous = connections.put(connectionId, new Connection(service, now));
+        if(previous != null) {
+            //we missed the end of the previous connection with this id
+            previous.service.active.decrementAndGet();
+        }
+
+        service.accepted.incrementAndGet();
+        service.active.incrementAndGet();
+    }
+
+    /**
+     * Handles the end of a connection.
+     * @param now
+     * @param line
+     * @param idStart Index of the '[' that starts the connection id
+     * @param idEnd Index of the ']' that ends the connection id
+     * @param bytesStart Index of the "N byte(s) sent to TLS, M byte(s) sent to socket" part
+     *                   or negative if the line does not contain byte counts.
+     * @param failed
+     */
+    protected void onFinished(long now, @NonNull CharSequence line, int idStart, int idEnd, int bytesStart, boolean failed) {
+        Connection connection = connections.remove(line.subSequence(idStart + 1, idEnd).toString());
+        if(connection == null)
+            return;
+
+        ServiceMetrics service = connection.service;
+        service.active.decrementAndGet();
+        service.connectionDuration.record(now - connection.acceptedAt);
+        if(failed)
+            service.failed.incrementAndGet();
+
+        if(bytesStart >= 0) {
+            int separator = Util.indexOf(line, SUFFIX_SENT_TO_TLS, bytesStart);
+            if(separator > 0) {
+                service.bytesSentToTls.addAndGet(parseLong(line, bytesStart));
+                service.bytesSentToSocket.addAndGet(parseLong(line, separator + SUFFIX_SENT_TO_TLS.length()));
+            }
+        }
+    }
+
+    /**
+     * Handles a completed TLS handshake.
+     * @param now
+     * @param line
+     * @param idStart
+     * @param idEnd
+     * @param resultStart Index of "new session negotiated" or "previous session reused"
+     */
+    protected void onHandshake(long now, @NonNull CharSequence line, int idStart, int idEnd, int resultStart) {
+        Connection connection = connections.get(line.subSequence(idStart + 1, idEnd).toString());
+        if(connection == null)
+            return;
+
+        ServiceMetrics service = connection.service;
+        service.handshakeLatency.record(now - connection.lastStepAt);
+        connection.lastStepAt = now;
+
+        if(Util.startsWith(line, SESSION_REUSED, resultStart))
+            service.resumedHandshakes.incrementAndGet();
+        else
+            service.fullHandshakes.incrementAndGet();
+    }
+
+    /**
+     * Handles a successful connect to a remote address ("s_connect: connected ADDRESS").
+     * @param now
+     * @param line
+     * @param idStart
+     * @param idEnd
+     * @param addressStart
+     */
+    protected void onConnected(long now, @NonNull CharSequence line, int idStart, int idEnd, int addressStart) {
+        Connection connection = connections.get(line.subSequence(idStart + 1, idEnd).toString());
+        if(connection == null)
+            return;
+
+        ServiceMetrics service = connection.service;
+        service.connectLatency.record(now - connection.lastStepAt);
+        connection.lastStepAt = now;
+        service.getOrAddTarget(line.subSequence(addressStart, line.length()).toString()).onSuccess();
+    }
+
+    /**
+     * Handles a failed connect to a remote address ("s_connect: connect ADDRESS: REASON"
+     * or "s_connect: s_poll_wait ADDRESS: REASON").
+     * @param line
+     * @param idStart
+     * @param idEnd
+     * @param addressStart
+     */
+    protected void onConnectFailed(@NonNull CharSequence line, int idStart, int idEnd, int addressStart) {
+        int addressEnd = Util.indexOf(line, ": ", addressStart);
+        if(addressEnd < 0)
+            return;
+        int reasonStart = addressEnd + 2;
+        if(Util.startsWith(line, CONNECT_POLL_WAITING, reasonStart))
+            //not a failure: "s_poll_wait ADDRESS: waiting N seconds"
+            return;
+
+        Connection connection = connections.get(line.subSequence(idStart + 1, idEnd).toString());
+        if(connection == null)
+            return;
+
+        connection.service.getOrAddTarget(line.subSequence(addressStart, addressEnd).toString()).onFailure(line.subSequence(reasonStart, line.length()).toString());
+    }
+
+    /**
+     * Parses the decimal number starting at the given index without creating a substring.
+     * @param line
+     * @param start
+     * @return The parsed number or 0 if there is no number at the given index.
+     */
+    protected static long parseLong(@NonNull CharSequence line, int start) {
+        long value = 0;
+        for (int i = start; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if(c < '0' || c > '9')
+                break;
+            value = value * 10 + (c - '0');
+        }
+
+        return value;
+    }
+}
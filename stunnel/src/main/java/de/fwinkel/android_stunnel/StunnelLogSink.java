@@ -0,0 +1,20 @@
+package de.fwinkel.android_stunnel;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Receives the log lines of a {@link Stunnel} without converting each line into a {@link String},
+ * see {@link StunnelBuilder#logSink(StunnelLogSink)}.<br/>
+ * Called on the {@link Stunnel}'s log pump thread: implementations should return quickly
+ * and must not block, otherwise Stunnel's output is not drained while the call is in progress.
+ * @see AndroidLogSink
+ */
+public interface StunnelLogSink {
+    /**
+     * @param stunnel
+     * @param level
+     * @param line Only valid during this call: its content is overwritten by the next line.
+     *             Use {@link CharSequence#toString()} to keep it.
+     */
+    void onLogLine(@NonNull Stunnel stunnel, @NonNull LogLevel level, @NonNull CharSequence line);
+}
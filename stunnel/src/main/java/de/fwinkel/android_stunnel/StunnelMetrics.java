@@ -0,0 +1,83 @@
+package de.fwinkel.android_stunnel;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Per-service metrics of a {@link Stunnel} process, keyed by service name.
+ * @see Stunnel#getMetrics()
+ */
+public class StunnelMetrics {
+
+    private final ConcurrentMap<String, ServiceMetrics> services = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the metrics of the service with the given name or null if that service
+     * is not known (yet).
+     * @param name Name as given to {@link StunnelBuilder#addService(String)}
+     * @return
+     */
+    @Nullable
+    public ServiceMetrics getService(@NonNull String name) {
+        return services.get(name);
+    }
+
+    /**
+     * Returns a snapshot of all known services' metrics.
+     * @return
+     */
+    @NonNull
+    public Map<String, ServiceMetrics> getServices() {
+        return Collections.unmodifiableMap(new HashMap<>(services));
+    }
+
+    /**
+     * Returns the number of currently open connections of all services.
+     * @return
+     */
+    public long getActiveConnections() {
+        long active = 0;
+        for (ServiceMetrics service : services.values()) {
+            active += service.getActiveConnections();
+        }
+
+        return active;
+    }
+
+    /**
+     * Returns the metrics of the given service, creating them if necessary.
+     * @param name
+     * @return
+     */
+    @NonNull
+    ServiceMetrics getOrAddService(@NonNull String name) {
+        ServiceMetrics metrics = services.get(name);
+        if(metrics == null) {
+            ServiceMetrics newMetrics = new ServiceMetrics(name);
+            metrics = services.putIfAbsent(name, newMetrics);
+            if(metrics == null)
+                metrics = newMetrics;
+        }
+
+        return metrics;
+    }
+
+    /**
+     * Adds the given service's metrics unless there already are metrics for a service with the same name.
+     * @param service
+     */
+    void putService(@NonNull ServiceMetrics service) {
+        services.putIfAbsent(service.getName(), service);
+    }
+
+    @Override
+    public String toString() {
+        return "StunnelMetrics" + services.values();
+    }
+}
@@ -1,6 +1,10 @@
 package de.fwinkel.android_stunnel;
 
+import java.io.IOException;
+import java.io.Writer;
+
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 /**
  * Represents a key-value-pair that is used to specify options in a Stunnel config file.
@@ -14,23 +18,101 @@ public class StunnelOption<T> {
     @NonNull protected final String name;
     @NonNull protected final T value;
 
+    /**
+     * {@link #value} as written into the config file, rendered once on first use.
+     */
+    @Nullable private String valueString;
+
     public StunnelOption(@NonNull String name, @NonNull T value) {
         this.name = name;
         this.value = value;
     }
 
+    @NonNull
+    public String getName() {
+        return name;
+    }
+
+    @NonNull
+    public T getValue() {
+        return value;
+    }
+
+    /**
+     * Returns the value as it is written into the config file.
+     * @return
+     */
+    @NonNull
+    public String getValueString() {
+        if(valueString == null) {
+            if(value instanceof StunnelValue)
+                valueString = ((StunnelValue) value).toStunnelValue();
+            else
+                valueString = value.toString();
+        }
+
+        return valueString;
+    }
+
     /**
      * Formats the option as a {@link String} suitable for a Stunnel config file ("key = value")
      * @return
      */
     public String toConfigString() {
-        String str;
-        if(value instanceof StunnelValue)
-            str = ((StunnelValue) value).toStunnelValue();
-        else
-            str = value.toString();
-
         //TODO escaping?
-        return name + " = " + str;
+        return name + " = " + getValueString();
+    }
+
+    /**
+     * Parses a line of a Stunnel config file ("key = value").
+     * @param configOption
+     * @return
+     * @throws IllegalArgumentException When the line is not an option.
+     */
+    @NonNull
+    public static StunnelOption<String> parse(@NonNull String configOption) {
+        int separator = configOption.indexOf('=');
+        if(separator < 0)
+            throw new IllegalArgumentException("Not a config option: " + configOption);
+
+        return new StunnelOption<>(configOption.substring(0, separator).trim(), configOption.substring(separator + 1).trim());
+    }
+
+    /**
+     * Writes {@link #toConfigString()} followed by a line break.
+     * @param writer
+     * @throws IOException
+     */
+    public void writeTo(@NonNull Writer writer) throws IOException {
+        writer.write(name);
+        writer.write(" = ");
+        writer.write(getValueString());
+        writer.write('\n');
+    }
+
+    /**
+     * Options are equal if they have the same name and are written with the same value.
+     * @param o
+     * @return
+     */
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(!(o instanceof StunnelOption))
+            return false;
+
+        StunnelOption<?> other = (StunnelOption<?>) o;
+        return name.equals(other.name) && getValueString().equals(other.getValueString());
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * name.hashCode() + getValueString().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return toConfigString();
     }
 }
@@ -0,0 +1,167 @@
+package de.fwinkel.android_stunnel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Records the Stunnel processes we start in a directory (one file per pid), so that processes which survived
+ * our own process (e.g. because the app has been killed) can be found and killed after the app restarts.<br/>
+ * Each file holds the pid of the process that started Stunnel and the binary path. A recorded process is an
+ * orphan if it still runs that binary but its parent is no longer the process that started it. Processes of
+ * other, still running processes of the same app are left alone.
+ */
+class StunnelProcessRegistry {
+
+    protected static final int SIGNAL_KILL = 9;
+
+    @NonNull
+    private final File directory;
+
+    StunnelProcessRegistry(@NonNull File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Records a newly started Stunnel process.
+     * @param pid
+     * @param binaryPath
+     * @throws IOException
+     */
+    void register(int pid, @NonNull File binaryPath) throws IOException {
+        directory.mkdirs();
+
+        Writer writer = null;
+        try {
+            writer = new FileWriter(new File(directory, String.valueOf(pid)));
+            writer.write(getOwnPid() + "\n" + binaryPath.getAbsolutePath() + "\n");
+            writer.flush();
+        }
+        finally {
+            Util.close(writer);
+        }
+    }
+
+    /**
+     * Removes a process that has exited.
+     * @param pid
+     */
+    void unregister(int pid) {
+        new File(directory, String.valueOf(pid)).delete();
+    }
+
+    /**
+     * Kills all recorded processes that are orphans and removes the records of all processes that have exited.
+     * @return Number of killed processes.
+     */
+    int reapOrphans() {
+        File[] files = directory.listFiles();
+        if(files == null)
+            return 0;
+
+        int reaped = 0;
+        for (File file : files) {
+            int pid;
+            try {
+                pid = Integer.parseInt(file.getName());
+            } catch (NumberFormatException e) {
+                file.delete();
+                continue;
+            }
+
+            BufferedReader reader = null;
+            int owner;
+            String binaryPath;
+            try {
+                reader = new BufferedReader(new FileReader(file));
+                owner = Integer.parseInt(reader.readLine());
+                binaryPath = reader.readLine();
+            } catch (IOException | NumberFormatException e) {
+                //incomplete record
+                owner = -1;
+                binaryPath = null;
+            }
+            finally {
+                Util.close(reader);
+            }
+
+            if(binaryPath != null && binaryPath.equals(getCommand(pid))) {
+                if(getParentPid(pid) == owner)
+                    //its owner is still running
+                    continue;
+
+                Util.sendSignal(pid, SIGNAL_KILL);
+                reaped++;
+            }
+            file.delete();
+        }
+
+        return reaped;
+    }
+
+    /**
+     * Returns the first element of the given process' command line or null if the process does not exist.
+     * @param pid
+     * @return
+     */
+    @Nullable
+    protected static String getCommand(int pid) {
+        InputStream in = null;
+        try {
+            in = new FileInputStream("/proc/" + pid + "/cmdline");
+            StringBuilder command = new StringBuilder();
+            int c;
+            while((c = in.read()) > 0) {
+                command.append((char) c);
+            }
+
+            return command.toString();
+        } catch (IOException e) {
+            return null;
+        }
+        finally {
+            Util.close(in);
+        }
+    }
+
+    /**
+     * Returns the pid of the given process' parent or -1 if the process does not exist.
+     * @param pid
+     * @return
+     */
+    protected static int getParentPid(int pid) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader("/proc/" + pid + "/stat"));
+            String stat = reader.readLine();
+            //"pid (comm) state ppid ...", comm may contain spaces and parentheses
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            return Integer.parseInt(fields[1]);
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+        finally {
+            Util.close(reader);
+        }
+    }
+
+    /**
+     * Returns the pid of our own process.
+     * @return
+     */
+    protected static int getOwnPid() {
+        try {
+            return Integer.parseInt(new File("/proc/self").getCanonicalFile().getName());
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+    }
+}
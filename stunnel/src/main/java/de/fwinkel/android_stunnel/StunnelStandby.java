@@ -0,0 +1,301 @@
+package de.fwinkel.android_stunnel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Keeps a second, fully started {@link Stunnel} ready next to the active one and promotes it when the active
+ * process exits, so that recovering from a crash does not have to write a config, spawn a process, initialize
+ * OpenSSL and bind sockets first. A new standby is started in the background after each promotion.<br/>
+ * Each process is created from a fresh {@link StunnelBuilder} of the given {@link Factory}. How clients reach
+ * the promoted process depends on how the factory configures the services' accept endpoints:
+ * <ul>
+ *     <li>Shared port: both processes listen on the same port with
+ *     {@code socket(SocketSide.ACCEPT, SocketOption.SO_REUSEPORT, true)}. The kernel distributes new
+ *     connections between both processes while they are running and hands all of them to the survivor
+ *     once one exits, so clients never see a different endpoint. The standby does serve connections in this
+ *     mode. Not supported by {@link StunnelBackend#SSL_ENGINE}.</li>
+ *     <li>Alternate endpoint: each process accepts on its own port (e.g.
+ *     {@link StunnelBuilder.ServiceBuilder#acceptLocalEphemeral()}). Clients look up the current endpoint via
+ *     {@link #getActive()} and {@link Stunnel#getAcceptPort(String)}, or switch in
+ *     {@link PromotionListener#onPromoted(Stunnel, Stunnel)}.</li>
+ * </ul>
+ */
+public class StunnelStandby implements Closeable {
+
+    /**
+     * Time to wait before starting a new standby after the previous one could not be started or exited,
+     * so that a configuration that does not start is not retried in a busy loop.
+     */
+    protected static final long RESTART_DELAY_MILLIS = 1000;
+
+    /**
+     * Creates the builders of the active and all standby processes.
+     */
+    public interface Factory {
+        /**
+         * Returns a new builder with the complete configuration. Called once for each process
+         * that is started, on a background thread for all but the first process.
+         * @return
+         * @throws IOException
+         */
+        @NonNull
+        StunnelBuilder newBuilder() throws IOException;
+    }
+
+    /**
+     * Notified when the standby process has replaced the active one.
+     */
+    public interface PromotionListener {
+        /**
+         * @param active The promoted process.
+         * @param failed The process that exited.
+         */
+        void onPromoted(@NonNull Stunnel active, @NonNull Stunnel failed);
+    }
+
+    @NonNull
+    private final Factory factory;
+    private final long timeout;
+    @NonNull
+    private final TimeUnit unit;
+    @NonNull
+    private final List<PromotionListener> promotionListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Guards {@link #active}, {@link #standby}, {@link #starting}, {@link #closed} and {@link #failedActive}.
+     */
+    private final Object lock = new Object();
+    @Nullable
+    private Stunnel active;
+    @Nullable
+    private Stunnel standby;
+    /**
+     * Whether a standby is currently being started.
+     */
+    private boolean starting;
+    private boolean closed;
+    /**
+     * Active process that exited while there was no standby to promote.
+     */
+    @Nullable
+    private Stunnel failedActive;
+
+    protected StunnelStandby(@NonNull Factory factory, long timeout, @NonNull TimeUnit unit) {
+        this.factory = factory;
+        this.timeout = timeout;
+        this.unit = unit;
+    }
+
+    /**
+     * Starts the active process and, in the background, its standby.
+     * @param factory
+     * @param timeout Maximum time to wait for each process' configuration to be applied.
+     *                0 or less to wait indefinitely.
+     * @param unit
+     * @return
+     * @throws IOException When the active process could not be started.
+     */
+    @NonNull
+    public static StunnelStandby start(@NonNull Factory factory, long timeout, @NonNull TimeUnit unit) throws IOException {
+        StunnelStandby standby = new StunnelStandby(factory, timeout, unit);
+
+        Stunnel active = factory.newBuilder().start(timeout, unit);
+        synchronized (standby.lock) {
+            standby.active = active;
+        }
+        active.addExitListener(standby.exitListener);
+        if(!active.isRunning()) {
+            //exited before the listener has been added
+            standby.close();
+            throw new StunnelStartException("Stunnel exited right after it has been started",
+                    active.getExitCode(), active.getLogBuffer().getLastLines(Stunnel.START_FAILURE_LOG_LINES));
+        }
+
+        standby.startStandby(0);
+        return standby;
+    }
+
+    /**
+     * Returns the process that currently serves the services.
+     * @return Null if the active process exited without a standby to replace it;
+     * a new process is started in that case.
+     */
+    @Nullable
+    public Stunnel getActive() {
+        synchronized (lock) {
+            return active;
+        }
+    }
+
+    /**
+     * Returns the standby process.
+     * @return Null if the standby is still starting.
+     */
+    @Nullable
+    public Stunnel getStandby() {
+        synchronized (lock) {
+            return standby;
+        }
+    }
+
+    /**
+     * Returns true if a standby is ready to take over.
+     * @return
+     */
+    public boolean isStandbyReady() {
+        return getStandby() != null;
+    }
+
+    public void addPromotionListener(@NonNull PromotionListener listener) {
+        promotionListeners.add(listener);
+    }
+
+    public void removePromotionListener(@NonNull PromotionListener listener) {
+        promotionListeners.remove(listener);
+    }
+
+    /**
+     * Closes the active and the standby process. A standby that is still starting is closed once started.
+     * @throws IOException The first exception thrown by {@link Stunnel#close()}.
+     */
+    @Override
+    public void close() throws IOException {
+        Stunnel active;
+        Stunnel standby;
+        synchronized (lock) {
+            closed = true;
+            active = this.active;
+            standby = this.standby;
+            this.active = null;
+            this.standby = null;
+        }
+
+        try {
+            if(active != null)
+                active.close();
+        }
+        finally {
+            if(standby != null)
+                standby.close();
+        }
+    }
+
+    @NonNull
+    private final Stunnel.ExitListener exitListener = new Stunnel.ExitListener() {
+        @Override
+        public void onExited(@NonNull Stunnel stunnel, @Nullable Integer exitCode) {
+            Stunnel promoted = null;
+            boolean restartStandby = false;
+            boolean restartActive = false;
+            synchronized (lock) {
+                if(closed)
+                    return;
+
+                if(stunnel == active) {
+                    promoted = standby;
+                    active = standby;
+                    standby = null;
+                    restartActive = promoted == null;
+                    restartStandby = !starting;
+                    if(restartActive)
+                        failedActive = stunnel;
+                }
+                else if(stunnel == standby) {
+                    standby = null;
+                    restartStandby = !starting;
+                }
+            }
+            Util.close(stunnel);
+
+            if(promoted != null) {
+                for (PromotionListener listener : promotionListeners) {
+                    listener.onPromoted(promoted, stunnel);
+                }
+            }
+            if(restartStandby)
+                //a pending start becomes the active process if there is none, see onStandbyStarted
+                startStandby(restartActive ? 0 : RESTART_DELAY_MILLIS);
+        }
+    };
+
+    /**
+     * Starts a new standby process in the background.
+     * @param delayMillis Time to wait before starting.
+     */
+    private void startStandby(final long delayMillis) {
+        synchronized (lock) {
+            if(closed || starting)
+                return;
+            starting = true;
+        }
+
+        Stunnel.execute(new StunnelFuture<>(new Callable<Stunnel>() {
+            @Override
+            public Stunnel call() throws Exception {
+                if(delayMillis > 0)
+                    Thread.sleep(delayMillis);
+
+                return factory.newBuilder().start(timeout, unit);
+            }
+        }), null).addCallback(new StunnelFuture.Callback<Stunnel>() {
+            @Override
+            public void onSuccess(@Nullable Stunnel result) {
+                onStandbyStarted(result);
+            }
+
+            @Override
+            public void onFailure(@NonNull Throwable error) {
+                synchronized (lock) {
+                    starting = false;
+                }
+                startStandby(RESTART_DELAY_MILLIS);
+            }
+        });
+    }
+
+    private void onStandbyStarted(@NonNull Stunnel stunnel) {
+        Stunnel failed = null;
+        boolean promoted = false;
+        synchronized (lock) {
+            starting = false;
+            if(closed) {
+                Util.close(stunnel);
+                return;
+            }
+
+            if(active == null) {
+                active = stunnel;
+                failed = failedActive;
+                failedActive = null;
+                promoted = true;
+            }
+            else
+                standby = stunnel;
+        }
+
+        stunnel.addExitListener(exitListener);
+        if(!stunnel.isRunning()) {
+            //exited before the listener has been added
+            exitListener.onExited(stunnel, stunnel.getExitCode());
+            return;
+        }
+
+        if(promoted) {
+            if(failed != null) {
+                for (PromotionListener listener : promotionListeners) {
+                    listener.onPromoted(stunnel, failed);
+                }
+            }
+            //no standby has been ready when the active process exited: start the next one right away
+            startStandby(0);
+        }
+    }
+}
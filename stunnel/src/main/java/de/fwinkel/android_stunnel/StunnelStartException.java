@@ -0,0 +1,62 @@
+package de.fwinkel.android_stunnel;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Thrown when a Stunnel process does not finish applying its configuration, either because
+ * the process exited early or because it did not become ready in time.
+ */
+public class StunnelStartException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    @Nullable
+    private final Integer exitCode;
+    @NonNull
+    private final List<String> logLines;
+
+    /**
+     * @param message
+     * @param exitCode The process' exit code or null if it did not exit (e.g. on timeout).
+     * @param logLines The last lines Stunnel logged before the failure.
+     */
+    public StunnelStartException(@NonNull String message, @Nullable Integer exitCode, @NonNull List<String> logLines) {
+        super(makeMessage(message, exitCode, logLines));
+        this.exitCode = exitCode;
+        this.logLines = Collections.unmodifiableList(logLines);
+    }
+
+    /**
+     * Returns the Stunnel process' exit code or null if the process did not exit by itself.
+     * @return
+     */
+    @Nullable
+    public Integer getExitCode() {
+        return exitCode;
+    }
+
+    /**
+     * Returns the last lines Stunnel logged before the failure, oldest first.
+     * @return
+     */
+    @NonNull
+    public List<String> getLogLines() {
+        return logLines;
+    }
+
+    private static String makeMessage(@NonNull String message, @Nullable Integer exitCode, @NonNull List<String> logLines) {
+        StringBuilder str = new StringBuilder(message);
+        if(exitCode != null)
+            str.append(" (exit code ").append(exitCode).append(')');
+        for (String line : logLines) {
+            str.append('\n').append(line);
+        }
+
+        return str.toString();
+    }
+}
@@ -0,0 +1,502 @@
+package de.fwinkel.android_stunnel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Keeps a {@link Stunnel} process running: when the process exits unexpectedly (e.g. because it was
+ * killed by the low memory killer or crashed) a new process is started with the same configuration.<br/>
+ * Restarts are delayed by an exponential backoff with jitter, so that a configuration that keeps
+ * failing does not result in a busy restart loop. The backoff is reset once a process ran for
+ * {@link #stableUptime(long, TimeUnit)}.<br/>
+ * Create instances via {@link StunnelBuilder#supervise()}.
+ */
+public abstract class StunnelSupervisor implements Closeable {
+
+    /**
+     * Receives lifecycle events of a {@link StunnelSupervisor}. Called on background threads.
+     */
+    public interface Listener {
+        /**
+         * Called when the supervised process exited unexpectedly.
+         * @param stunnel The process that exited.
+         * @param reason Human readable reason including the exit code and the last log lines.
+         */
+        void onCrashed(@NonNull Stunnel stunnel, @NonNull String reason);
+
+        /**
+         * Called when a replacement process has been started successfully.
+         * @param stunnel The new process.
+         */
+        void onRestarted(@NonNull Stunnel stunnel);
+    }
+
+    /**
+     * Number of log lines included in {@link #getLastFailureReason()}.
+     */
+    protected static final int FAILURE_LOG_LINES = 10;
+
+    private long initialBackoffMillis = 100;
+    private long maxBackoffMillis = 30000;
+    private double backoffMultiplier = 2;
+    private double jitter = 0.2;
+    private long stableUptimeMillis = 60000;
+    private long startTimeoutMillis = 30000;
+
+    @Nullable
+    private volatile Listener listener;
+
+    @NonNull
+    private final Random random = new Random();
+    @NonNull
+    private final ScheduledExecutorService scheduler;
+
+    @Nullable
+    private Stunnel stunnel;
+    /**
+     * {@link System#nanoTime()} at which {@link #stunnel} has been started.
+     */
+    private long stunnelStartTime;
+    @Nullable
+    private ScheduledFuture<?> pendingRestart;
+
+    private boolean started;
+    private boolean closed;
+    /**
+     * Number of failed processes since the last process that ran stable. Determines the next backoff.
+     */
+    private int consecutiveFailures;
+
+    private volatile int restartCount;
+    private volatile int failureCount;
+    @Nullable
+    private volatile String lastFailureReason;
+    private volatile long lastFailureTime;
+
+    protected StunnelSupervisor() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "Stunnel supervisor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Returns a new, not yet started {@link Stunnel} that uses the supervised configuration.
+     * @return
+     * @throws IOException
+     */
+    @NonNull
+    protected abstract Stunnel newStunnel() throws IOException;
+
+    /**
+     * Called once when the supervisor is {@link #close() closed}, after the current process
+     * has been closed.
+     */
+    protected void onClosed() {
+    }
+
+    //<editor-fold desc="Settings">
+
+    /**
+     * Sets the delay before the first restart after a crash.<br/>
+     * default: 100ms
+     * @param backoff
+     * @param unit
+     * @return
+     */
+    public StunnelSupervisor initialBackoff(long backoff, @NonNull TimeUnit unit) {
+        if(backoff < 0)
+            throw new IllegalArgumentException("backoff must not be negative: " + backoff);
+
+        this.initialBackoffMillis = unit.toMillis(backoff);
+        return this;
+    }
+
+    /**
+     * Sets the maximum delay between two restarts.<br/>
+     * default: 30s
+     * @param backoff
+     * @param unit
+     * @return
+     */
+    public StunnelSupervisor maxBackoff(long backoff, @NonNull TimeUnit unit) {
+        if(backoff < 0)
+            throw new IllegalArgumentException("backoff must not be negative: " + backoff);
+
+        this.maxBackoffMillis = unit.toMillis(backoff);
+        return this;
+    }
+
+    /**
+     * Sets the factor the delay is multiplied with for each consecutive failure.<br/>
+     * default: 2
+     * @param multiplier
+     * @return
+     */
+    public StunnelSupervisor backoffMultiplier(double multiplier) {
+        if(multiplier < 1)
+            throw new IllegalArgumentException("multiplier must be at least 1: " + multiplier);
+
+        this.backoffMultiplier = multiplier;
+        return this;
+    }
+
+    /**
+     * Sets the random variation that is applied to each delay, as a fraction of the delay:
+     * with 0.2 the actual delay is between 80% and 120% of the computed delay.<br/>
+     * default: 0.2
+     * @param jitter Between 0 and 1.
+     * @return
+     */
+    public StunnelSupervisor jitter(double jitter) {
+        if(jitter < 0 || jitter > 1)
+            throw new IllegalArgumentException("jitter must be between 0 and 1: " + jitter);
+
+        this.jitter = jitter;
+        return this;
+    }
+
+    /**
+     * Sets the time a process needs to run before its exit is no longer counted as a consecutive
+     * failure, i.e. the next restart happens after {@link #initialBackoff(long, TimeUnit)} again.<br/>
+     * default: 60s
+     * @param uptime
+     * @param unit
+     * @return
+     */
+    public StunnelSupervisor stableUptime(long uptime, @NonNull TimeUnit unit) {
+        this.stableUptimeMillis = unit.toMillis(uptime);
+        return this;
+    }
+
+    /**
+     * Sets the timeout for each restart, see {@link Stunnel#start(long, TimeUnit)}.<br/>
+     * default: 30s
+     * @param timeout
+     * @param unit
+     * @return
+     */
+    public StunnelSupervisor startTimeout(long timeout, @NonNull TimeUnit unit) {
+        this.startTimeoutMillis = unit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * Sets a listener that is notified about crashes and restarts.
+     * @param listener
+     * @return
+     */
+    public StunnelSupervisor listener(@Nullable Listener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    //</editor-fold>
+
+    //<editor-fold desc="Lifecycle">
+
+    /**
+     * Starts the first process and supervises it from then on.
+     * Does not return until the configuration has been applied.
+     * @param timeout Maximum time to wait for the configuration to be applied. 0 or less to wait indefinitely.
+     * @param unit
+     * @return The started process.
+     * @throws IOException When the first process can't be started. There are no restarts in this case
+     * and the supervisor is closed.
+     */
+    @NonNull
+    public Stunnel start(long timeout, @NonNull TimeUnit unit) throws IOException {
+        synchronized (this) {
+            if(closed)
+                throw new IllegalStateException("StunnelSupervisor has been closed");
+            if(started)
+                throw new IllegalStateException("StunnelSupervisor has already been started");
+            started = true;
+        }
+
+        Stunnel stunnel = null;
+        try {
+            stunnel = newSupervisedStunnel();
+            stunnel.start(timeout, unit);
+        } catch (IOException | RuntimeException e) {
+            Util.close(stunnel);
+            //nothing to supervise: release the configuration, same as a failed StunnelBuilder#start
+            Util.close(this);
+            throw e;
+        }
+
+        synchronized (this) {
+            if(closed) {
+                Util.close(stunnel);
+                throw new IOException("StunnelSupervisor has been closed while starting");
+            }
+
+            onStunnelStarted(stunnel);
+        }
+        checkExitedWhileStarting(stunnel);
+
+        return stunnel;
+    }
+
+    /**
+     * Same as {@link #start(long, TimeUnit)} without timeout.
+     * @return
+     * @throws IOException
+     */
+    @NonNull
+    public Stunnel start() throws IOException {
+        return start(0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops supervising and closes the current process.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        Stunnel stunnel;
+        synchronized (this) {
+            if(closed)
+                return;
+            closed = true;
+
+            stunnel = this.stunnel;
+            this.stunnel = null;
+            if(pendingRestart != null)
+                pendingRestart.cancel(false);
+        }
+
+        scheduler.shutdownNow();
+        try {
+            if(stunnel != null)
+                stunnel.close();
+        }
+        finally {
+            onClosed();
+        }
+    }
+
+    //</editor-fold>
+
+    //<editor-fold desc="State">
+
+    /**
+     * Returns the currently running process or null while a restart is pending.
+     * @return
+     */
+    @Nullable
+    public synchronized Stunnel getStunnel() {
+        return stunnel;
+    }
+
+    /**
+     * Returns the number of successful restarts.
+     * @return
+     */
+    public int getRestartCount() {
+        return restartCount;
+    }
+
+    /**
+     * Returns the number of unexpected process exits and failed restart attempts.
+     * @return
+     */
+    public int getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * Returns a human readable description of the last failure including the exit code and the last
+     * log lines, or null if there was no failure yet.
+     * @return
+     */
+    @Nullable
+    public String getLastFailureReason() {
+        return lastFailureReason;
+    }
+
+    /**
+     * Returns the {@link System#currentTimeMillis()} of the last failure or 0 if there was no failure yet.
+     * @return
+     */
+    public long getLastFailureTime() {
+        return lastFailureTime;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    //</editor-fold>
+
+    //<editor-fold desc="Restart">
+
+    /**
+     * Returns a process from {@link #newStunnel()} that notifies us when it exits.
+     * @return
+     * @throws IOException
+     */
+    @NonNull
+    private Stunnel newSupervisedStunnel() throws IOException {
+        final Stunnel stunnel = newStunnel();
+        stunnel.addExitListener(new Stunnel.ExitListener() {
+            @Override
+            public void onExited(@NonNull Stunnel exited, @Nullable Integer exitCode) {
+                onStunnelExited(exited, exitCode);
+            }
+        });
+
+        return stunnel;
+    }
+
+    /**
+     * Must be called while synchronized.
+     * @param stunnel
+     */
+    private void onStunnelStarted(@NonNull Stunnel stunnel) {
+        this.stunnel = stunnel;
+        this.stunnelStartTime = System.nanoTime();
+        this.pendingRestart = null;
+    }
+
+    private void onStunnelExited(@NonNull Stunnel stunnel, @Nullable Integer exitCode) {
+        String reason = makeFailureReason("Stunnel exited", exitCode, stunnel.getLogBuffer().getLastLines(FAILURE_LOG_LINES));
+
+        synchronized (this) {
+            if(closed || stunnel != this.stunnel)
+                //closed on purpose or failed during a restart attempt, which is handled by the restart task
+                return;
+            this.stunnel = null;
+
+            long uptimeMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stunnelStartTime);
+            if(uptimeMillis >= stableUptimeMillis)
+                consecutiveFailures = 0;
+
+            onFailure(reason);
+            scheduleRestart();
+        }
+
+        Listener listener = this.listener;
+        if(listener != null)
+            listener.onCrashed(stunnel, reason);
+    }
+
+    /**
+     * Handles a process that exited after it had been started but before {@link #onStunnelStarted(Stunnel)}:
+     * its exit listener ignored the exit because it was not the current process yet.
+     * @param stunnel
+     */
+    private void checkExitedWhileStarting(@NonNull Stunnel stunnel) {
+        if(!stunnel.isRunning())
+            onStunnelExited(stunnel, stunnel.getExitCode());
+    }
+
+    /**
+     * Must be called while synchronized.
+     * @param reason
+     */
+    private void onFailure(@NonNull String reason) {
+        failureCount++;
+        lastFailureReason = reason;
+        lastFailureTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Must be called while synchronized.
+     */
+    private void scheduleRestart() {
+        pendingRestart = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                restart();
+            }
+        }, nextBackoffMillis(), TimeUnit.MILLISECONDS);
+        consecutiveFailures++;
+    }
+
+    /**
+     * Computes the delay before the next restart based on {@link #consecutiveFailures}.
+     * Must be called while synchronized.
+     * @return
+     */
+    private long nextBackoffMillis() {
+        double backoff = initialBackoffMillis * Math.pow(backoffMultiplier, consecutiveFailures);
+        backoff = Math.min(backoff, maxBackoffMillis);
+        //apply jitter: backoff * [1 - jitter, 1 + jitter]
+        backoff *= 1 - jitter + random.nextDouble() * 2 * jitter;
+
+        return Math.max(0, Math.round(backoff));
+    }
+
+    private void restart() {
+        synchronized (this) {
+            if(closed)
+                return;
+        }
+
+        Stunnel stunnel = null;
+        try {
+            stunnel = newSupervisedStunnel();
+            stunnel.start(startTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (IOException | RuntimeException e) {
+            //e.g. a SecurityException from starting the process: must not end the scheduled task unnoticed
+            Util.close(stunnel);
+
+            synchronized (this) {
+                if(closed)
+                    return;
+
+                //StunnelStartExceptions already include the last log lines
+                onFailure("Restarting Stunnel failed: " + (e instanceof IOException ? e.getMessage() : e.toString()));
+                scheduleRestart();
+            }
+            return;
+        }
+
+        synchronized (this) {
+            if(closed) {
+                Util.close(stunnel);
+                return;
+            }
+
+            onStunnelStarted(stunnel);
+            restartCount++;
+        }
+        checkExitedWhileStarting(stunnel);
+
+        Listener listener = this.listener;
+        if(listener != null)
+            listener.onRestarted(stunnel);
+    }
+
+    @NonNull
+    private static String makeFailureReason(@NonNull String message, @Nullable Integer exitCode, @Nullable List<String> logLines) {
+        StringBuilder str = new StringBuilder(message);
+        if(exitCode != null)
+            str.append(" (exit code ").append(exitCode).append(')');
+        if(logLines != null) {
+            for (String line : logLines) {
+                str.append('\n').append(line);
+            }
+        }
+
+        return str.toString();
+    }
+
+    //</editor-fold>
+}
@@ -0,0 +1,125 @@
+package de.fwinkel.android_stunnel;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Connect statistics of a single remote address of a service, see {@link ServiceMetrics#getTargets()}.<br/>
+ * Failed connects are always logged by Stunnel, but successful connects ("s_connect: connected") only at log level
+ * info and above. At the default level (notice) successes are not counted and a target that failed once stays
+ * {@link #isHealthy() unhealthy}; use {@link StunnelBuilder#logLevel(LogLevel) logLevel(LogLevel.INFO)}
+ * when health is used to pick targets.<br/>
+ * Updated by the {@link Stunnel}'s log pump and safe to read from any thread.
+ */
+public class TargetHealth {
+
+    @NonNull
+    protected final String address;
+
+    final AtomicLong successes = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+    final AtomicInteger consecutiveFailures = new AtomicInteger();
+    @Nullable
+    volatile String lastFailureReason;
+    volatile long lastFailureTime;
+    volatile long lastSuccessTime;
+
+    TargetHealth(@NonNull String address) {
+        this.address = address;
+    }
+
+    /**
+     * Returns the resolved address as logged by Stunnel, e.g. "93.184.216.34:443".
+     * Targets given by hostname show up with each address the hostname resolves to.
+     * @return
+     */
+    @NonNull
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * Returns the number of successful connects. Only counted when the log level is info or higher.
+     * @return
+     */
+    public long getSuccesses() {
+        return successes.get();
+    }
+
+    /**
+     * Returns the number of failed connects (refused, unreachable, TIMEOUTconnect exceeded, ...).
+     * @return
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Returns the number of failed connects since the last successful connect.
+     * @return
+     */
+    public int getConsecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+
+    /**
+     * Returns true if the last connect to this target succeeded (or there was no connect yet).<br/>
+     * Requires log level info or higher to recover after a failure, see {@link TargetHealth}.
+     * @return
+     */
+    public boolean isHealthy() {
+        return consecutiveFailures.get() == 0;
+    }
+
+    /**
+     * Returns the error of the last failed connect as logged by Stunnel, e.g. "Connection refused (111)".
+     * @return
+     */
+    @Nullable
+    public String getLastFailureReason() {
+        return lastFailureReason;
+    }
+
+    /**
+     * Returns the {@link System#currentTimeMillis()} of the last failed connect or 0.
+     * @return
+     */
+    public long getLastFailureTime() {
+        return lastFailureTime;
+    }
+
+    /**
+     * Returns the {@link System#currentTimeMillis()} of the last successful connect or 0.
+     * @return
+     */
+    public long getLastSuccessTime() {
+        return lastSuccessTime;
+    }
+
+    void onSuccess() {
+        successes.incrementAndGet();
+        consecutiveFailures.set(0);
+        lastSuccessTime = System.currentTimeMillis();
+    }
+
+    void onFailure(@NonNull String reason) {
+        failures.incrementAndGet();
+        consecutiveFailures.incrementAndGet();
+        lastFailureReason = reason;
+        lastFailureTime = System.currentTimeMillis();
+    }
+
+    @Override
+    public String toString() {
+        return "TargetHealth{" +
+                "address='" + address + '\'' +
+                ", successes=" + successes.get() +
+                ", failures=" + failures.get() +
+                ", consecutiveFailures=" + consecutiveFailures.get() +
+                ", lastFailureReason='" + lastFailureReason + '\'' +
+                '}';
+    }
+}
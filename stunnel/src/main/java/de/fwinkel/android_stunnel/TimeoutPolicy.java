@@ -0,0 +1,199 @@
+package de.fwinkel.android_stunnel;
+
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Connection timeouts of a Stunnel service, see {@link StunnelBuilder.ServiceBuilder#timeouts(TimeoutPolicy)}.<br/>
+ * Stunnel's defaults are tuned for servers on stable networks and keep dead connections (and the resources
+ * they hold) around for a long time; on mobile networks shorter timeouts usually make more sense, see {@link #MOBILE}.<br/>
+ * Stunnel only supports whole seconds: timeouts are rounded up to the next full second.
+ * Timeouts that are not set keep Stunnel's defaults.
+ */
+public class TimeoutPolicy {
+
+    /**
+     * Value of timeouts that are not set.
+     */
+    public static final long UNSET = -1;
+
+    /**
+     * Timeouts for devices on mobile networks: fail fast when the remote server can't be reached and
+     * release idle or half-closed connections after a few minutes/seconds.
+     * <ul>
+     *     <li>connect: 5s</li>
+     *     <li>busy: 30s</li>
+     *     <li>idle: 5min</li>
+     *     <li>close: 5s</li>
+     * </ul>
+     * Note that the idle timeout closes long-lived connections that don't transfer any data for 5 minutes.
+     */
+    public static final TimeoutPolicy MOBILE = new Builder()
+            .connect(5, TimeUnit.SECONDS)
+            .busy(30, TimeUnit.SECONDS)
+            .idle(5, TimeUnit.MINUTES)
+            .close(5, TimeUnit.SECONDS)
+            .build();
+
+    protected final long connectSeconds;
+    protected final long busySeconds;
+    protected final long idleSeconds;
+    protected final long closeSeconds;
+
+    protected TimeoutPolicy(@NonNull Builder builder) {
+        this.connectSeconds = builder.connectSeconds;
+        this.busySeconds = builder.busySeconds;
+        this.idleSeconds = builder.idleSeconds;
+        this.closeSeconds = builder.closeSeconds;
+    }
+
+    /**
+     * Returns the TIMEOUTconnect in seconds or {@link #UNSET}.
+     * @return
+     */
+    public long getConnectSeconds() {
+        return connectSeconds;
+    }
+
+    /**
+     * Returns the TIMEOUTbusy in seconds or {@link #UNSET}.
+     * @return
+     */
+    public long getBusySeconds() {
+        return busySeconds;
+    }
+
+    /**
+     * Returns the TIMEOUTidle in seconds or {@link #UNSET}.
+     * @return
+     */
+    public long getIdleSeconds() {
+        return idleSeconds;
+    }
+
+    /**
+     * Returns the TIMEOUTclose in seconds or {@link #UNSET}.
+     * @return
+     */
+    public long getCloseSeconds() {
+        return closeSeconds;
+    }
+
+    @Override
+    public String toString() {
+        return "TimeoutPolicy{" +
+                "connect=" + connectSeconds +
+                ", busy=" + busySeconds +
+                ", idle=" + idleSeconds +
+                ", close=" + closeSeconds +
+                '}';
+    }
+
+    /**
+     * Builder for {@link TimeoutPolicy}.
+     */
+    public static class Builder {
+        private long connectSeconds = UNSET;
+        private long busySeconds = UNSET;
+        private long idleSeconds = UNSET;
+        private long closeSeconds = UNSET;
+
+        /**
+         * <pre>{@code
+         *
+
+        time to wait to connect a remote host
+
+        default: 10 seconds
+
+         * }</pre>
+         * @param timeout At least one second.
+         * @param unit
+         * @return
+         */
+        public Builder connect(long timeout, @NonNull TimeUnit unit) {
+            this.connectSeconds = toSeconds("connect", timeout, unit, false);
+            return this;
+        }
+
+        /**
+         * <pre>{@code
+         *
+
+        time to wait for expected data
+
+        default: 300 seconds
+
+         * }</pre>
+         * @param timeout At least one second.
+         * @param unit
+         * @return
+         */
+        public Builder busy(long timeout, @NonNull TimeUnit unit) {
+            this.busySeconds = toSeconds("busy", timeout, unit, false);
+            return this;
+        }
+
+        /**
+         * <pre>{@code
+         *
+
+        time to keep an idle connection
+
+        default: 43200 seconds
+
+         * }</pre>
+         * @param timeout At least one second.
+         * @param unit
+         * @return
+         */
+        public Builder idle(long timeout, @NonNull TimeUnit unit) {
+            this.idleSeconds = toSeconds("idle", timeout, unit, false);
+            return this;
+        }
+
+        /**
+         * <pre>{@code
+         *
+
+        time to wait for close_notify
+
+        default: 60 seconds
+
+         * }</pre>
+         * @param timeout 0 to not wait for close_notify at all.
+         * @param unit
+         * @return
+         */
+        public Builder close(long timeout, @NonNull TimeUnit unit) {
+            this.closeSeconds = toSeconds("close", timeout, unit, true);
+            return this;
+        }
+
+        @NonNull
+        public TimeoutPolicy build() {
+            return new TimeoutPolicy(this);
+        }
+
+        /**
+         * Converts the given timeout into seconds, rounding up.
+         * @param name For error messages
+         * @param timeout
+         * @param unit
+         * @param allowZero
+         * @return
+         * @throws IllegalArgumentException When the timeout is negative or zero and zero is not allowed.
+         */
+        private static long toSeconds(@NonNull String name, long timeout, @NonNull TimeUnit unit, boolean allowZero) {
+            if(timeout < 0 || (timeout == 0 && !allowZero))
+                throw new IllegalArgumentException(name + " timeout must be " + (allowZero ? "0 or more" : "positive") + ": " + timeout);
+
+            long seconds = unit.toSeconds(timeout);
+            if(unit.convert(seconds, TimeUnit.SECONDS) < timeout)
+                seconds++;
+
+            return seconds;
+        }
+    }
+}
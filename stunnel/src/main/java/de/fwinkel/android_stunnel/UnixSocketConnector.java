@@ -0,0 +1,56 @@
+package de.fwinkel.android_stunnel;
+
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+
+import java.io.File;
+import java.io.IOException;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Opens connections to a service that accepts connections on a Unix domain socket,
+ * see {@link StunnelBuilder.ServiceBuilder#acceptUnix()} and {@link Stunnel#getUnixSocketConnector(String)}.<br/>
+ * Unix sockets skip the loopback TCP stack and can't be reached by other apps.
+ */
+public class UnixSocketConnector {
+
+    @NonNull
+    protected final File socketFile;
+
+    public UnixSocketConnector(@NonNull File socketFile) {
+        this.socketFile = socketFile;
+    }
+
+    /**
+     * Returns the path of the Unix socket.
+     * @return
+     */
+    @NonNull
+    public File getSocketFile() {
+        return socketFile;
+    }
+
+    /**
+     * Opens a new connection to the service.
+     * @return A connected socket. The caller is responsible for closing it.
+     * @throws IOException
+     */
+    @NonNull
+    public LocalSocket connect() throws IOException {
+        LocalSocket socket = new LocalSocket();
+        try {
+            socket.connect(new LocalSocketAddress(socketFile.getAbsolutePath(), LocalSocketAddress.Namespace.FILESYSTEM));
+        } catch (IOException e) {
+            //LocalSocket only implements Closeable since API 17
+            try {
+                socket.close();
+            } catch (IOException closeException) {
+                //ignore
+            }
+            throw e;
+        }
+
+        return socket;
+    }
+}
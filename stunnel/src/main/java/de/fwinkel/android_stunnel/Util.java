@@ -2,6 +2,8 @@ package de.fwinkel.android_stunnel;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 
 class Util {
 
@@ -17,4 +19,105 @@ class Util {
             //ignore
         }
     }
+
+    /**
+     * Returns the operating system's process id of the given process.<br/>
+     * {@link Process} does not expose the pid before Java 9 (which Android does not implement),
+     * so we read the "pid" field of the implementation class, which exists on Android and OpenJDK.
+     * @param process
+     * @return The pid or -1 if it could not be determined.
+     */
+    public static int getPid(Process process) {
+        try {
+            //Java 9+
+            Method method = Process.class.getMethod("pid");
+            return ((Number) method.invoke(process)).intValue();
+        } catch (Exception e) {
+            //fall through
+        }
+
+        for (Class<?> cls = process.getClass(); cls != null; cls = cls.getSuperclass()) {
+            try {
+                Field field = cls.getDeclaredField("pid");
+                field.setAccessible(true);
+                return field.getInt(process);
+            } catch (Exception e) {
+                //try the super class
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Sends the given signal to the process with the given pid. The process must run with
+     * the same user id as we do, which is the case for our Stunnel processes.
+     * @param pid
+     * @param signal
+     */
+    public static void sendSignal(int pid, int signal) {
+        android.os.Process.sendSignal(pid, signal);
+    }
+
+    /**
+     * Same as {@link String#indexOf(String, int)} for any {@link CharSequence}, without converting it into a String.
+     * @param sequence
+     * @param str
+     * @param fromIndex
+     * @return
+     */
+    public static int indexOf(CharSequence sequence, String str, int fromIndex) {
+        int last = sequence.length() - str.length();
+        for (int i = Math.max(fromIndex, 0); i <= last; i++) {
+            if(startsWith(sequence, str, i))
+                return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Same as {@link String#indexOf(int, int)} for any {@link CharSequence}.
+     * @param sequence
+     * @param c
+     * @param fromIndex
+     * @return
+     */
+    public static int indexOf(CharSequence sequence, char c, int fromIndex) {
+        for (int i = Math.max(fromIndex, 0); i < sequence.length(); i++) {
+            if(sequence.charAt(i) == c)
+                return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Same as {@link String#startsWith(String, int)} for any {@link CharSequence}.
+     * @param sequence
+     * @param prefix
+     * @param offset
+     * @return
+     */
+    public static boolean startsWith(CharSequence sequence, String prefix, int offset) {
+        if(offset < 0 || offset + prefix.length() > sequence.length())
+            return false;
+
+        for (int i = 0; i < prefix.length(); i++) {
+            if(sequence.charAt(offset + i) != prefix.charAt(i))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Same as {@link String#endsWith(String)} for any {@link CharSequence}.
+     * @param sequence
+     * @param suffix
+     * @return
+     */
+    public static boolean endsWith(CharSequence sequence, String suffix) {
+        return startsWith(sequence, suffix, sequence.length() - suffix.length());
+    }
 }
@@ -0,0 +1,111 @@
+package de.fwinkel.android_stunnel;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    private static void recordMillis(LatencyRecorder recorder, long... values) {
+        for (long value : values) {
+            recorder.record(TimeUnit.MILLISECONDS.toNanos(value));
+        }
+    }
+
+    /**
+     * Asserts that the reported value is at least the exact one and not more than 12.5% above it.
+     */
+    private static void assertWithinBucket(long exact, long reported) {
+        assertTrue("reported " + reported + " for " + exact, reported >= exact && reported <= exact + exact / 8);
+    }
+
+    @Test
+    public void empty() {
+        LatencyHistogram histogram = new LatencyRecorder().getHistogram();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getP50(TimeUnit.MICROSECONDS));
+        assertEquals(0, histogram.getMax(TimeUnit.MICROSECONDS));
+        assertEquals(0, histogram.getMean(TimeUnit.MICROSECONDS));
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyRecorder recorder = new LatencyRecorder();
+        for (int i = 1; i <= 100; i++) {
+            recordMillis(recorder, i);
+        }
+        LatencyHistogram histogram = recorder.getHistogram();
+
+        assertEquals(100, histogram.getCount());
+        assertWithinBucket(50_000, histogram.getP50(TimeUnit.MICROSECONDS));
+        assertWithinBucket(99_000, histogram.getP99(TimeUnit.MICROSECONDS));
+        assertWithinBucket(10_000, histogram.getPercentile(10, TimeUnit.MICROSECONDS));
+        assertEquals(100, histogram.getPercentile(100, TimeUnit.MILLISECONDS));
+        assertEquals(100, histogram.getMax(TimeUnit.MILLISECONDS));
+        assertEquals(50_500, histogram.getMean(TimeUnit.MICROSECONDS));
+    }
+
+    @Test
+    public void percentilesDoNotExceedMax() {
+        LatencyRecorder recorder = new LatencyRecorder();
+        recordMillis(recorder, 1001, 1001, 1001);
+
+        assertEquals(1001, recorder.getHistogram().getP99(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyRecorder recorder = new LatencyRecorder();
+        for (int micros = 0; micros < LatencyRecorder.SUB_BUCKETS; micros++) {
+            recorder.record(TimeUnit.MICROSECONDS.toNanos(micros));
+        }
+
+        assertEquals(3, recorder.getHistogram().getP50(TimeUnit.MICROSECONDS));
+    }
+
+    @Test
+    public void negativeAndHugeValuesAreClamped() {
+        LatencyRecorder recorder = new LatencyRecorder();
+        recorder.record(-5);
+        recorder.record(Long.MAX_VALUE);
+        LatencyHistogram histogram = recorder.getHistogram();
+
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50, TimeUnit.MICROSECONDS));
+        assertEquals(LatencyRecorder.MAX_MICROS, histogram.getMax(TimeUnit.MICROSECONDS));
+    }
+
+    @Test
+    public void bucketsCoverAllValues() {
+        for (int bucket = 1; bucket < LatencyRecorder.BUCKET_COUNT; bucket++) {
+            long lower = LatencyRecorder.getBucketUpperBound(bucket - 1) + 1;
+            long upper = LatencyRecorder.getBucketUpperBound(bucket);
+            assertEquals(bucket, LatencyRecorder.getBucket(lower));
+            assertEquals(bucket, LatencyRecorder.getBucket(upper));
+            assertTrue(upper - lower <= lower / 8);
+        }
+    }
+
+    @Test
+    public void since() {
+        LatencyRecorder recorder = new LatencyRecorder();
+        recordMillis(recorder, 500, 500);
+        LatencyHistogram before = recorder.getHistogram();
+        recordMillis(recorder, 10, 20, 30);
+
+        LatencyHistogram period = recorder.getHistogram().since(before);
+        assertEquals(3, period.getCount());
+        assertEquals(20, period.getMean(TimeUnit.MILLISECONDS));
+        assertWithinBucket(20_000, period.getP50(TimeUnit.MICROSECONDS));
+        assertWithinBucket(30_000, period.getMax(TimeUnit.MICROSECONDS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidPercentile() {
+        new LatencyRecorder().getHistogram().getPercentile(101, TimeUnit.MILLISECONDS);
+    }
+}
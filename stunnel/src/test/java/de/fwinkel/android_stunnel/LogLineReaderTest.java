@@ -0,0 +1,151 @@
+package de.fwinkel.android_stunnel;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LogLineReaderTest {
+
+    private static List<String> readAll(InputStream in) throws IOException {
+        LogLineReader reader = new LogLineReader(in);
+        LogLine line = new LogLine();
+        List<String> lines = new ArrayList<>();
+        while(reader.readLine(line)) {
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    private static InputStream stream(String content) throws IOException {
+        return new ByteArrayInputStream(content.getBytes("UTF-8"));
+    }
+
+    /**
+     * Returns at most the given number of bytes per read, like a pipe that is written to in small pieces.
+     */
+    private static InputStream trickle(String content, final int bytesPerRead) throws IOException {
+        return new ByteArrayInputStream(content.getBytes("UTF-8")) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, bytesPerRead));
+            }
+        };
+    }
+
+    @Test
+    public void splitsLines() throws IOException {
+        assertEquals(Arrays.asList("LOG5[ui]: Configuration successful", "", "LOG5[0]: Service [web] accepted connection"),
+                readAll(stream("LOG5[ui]: Configuration successful\n\nLOG5[0]: Service [web] accepted connection\n")));
+    }
+
+    @Test
+    public void stripsCarriageReturns() throws IOException {
+        assertEquals(Arrays.asList("first", "second"), readAll(stream("first\r\nsecond\r\n")));
+    }
+
+    @Test
+    public void returnsLastLineWithoutLineBreak() throws IOException {
+        assertEquals(Arrays.asList("first", "last"), readAll(stream("first\nlast")));
+        assertEquals(Collections.<String>emptyList(), readAll(stream("")));
+    }
+
+    @Test
+    public void decodesMultiByteCharactersAcrossReads() throws IOException {
+        //2, 3 and 4 byte UTF-8 sequences
+        List<String> expected = Arrays.asList("Service [w\u00e9b] \u2713", "Server \ud83d\ude00");
+        String content = expected.get(0) + "\n" + expected.get(1) + "\n";
+
+        assertEquals(expected, readAll(trickle(content, 1)));
+        assertEquals(expected, readAll(trickle(content, 3)));
+    }
+
+    @Test
+    public void readsLinesLongerThanTheBuffer() throws IOException {
+        char[] chars = new char[LogLineReader.BUFFER_SIZE * 3];
+        Arrays.fill(chars, 'x');
+        String longLine = new String(chars);
+
+        assertEquals(Arrays.asList(longLine, "next"), readAll(stream(longLine + "\nnext\n")));
+    }
+
+    @Test
+    public void splitsLinesLongerThanTheMaximum() throws IOException {
+        char[] chars = new char[LogLineReader.MAX_LINE_LENGTH + 10];
+        Arrays.fill(chars, 'x');
+
+        List<String> lines = readAll(stream(new String(chars) + "\n"));
+        assertEquals(2, lines.size());
+        assertEquals(LogLineReader.MAX_LINE_LENGTH, lines.get(0).length());
+        assertEquals(10, lines.get(1).length());
+    }
+
+    @Test
+    public void notWaitingWhileInputIsAvailable() throws IOException {
+        LogLineReader reader = new LogLineReader(stream("first\nsecond\n"));
+        LogLine line = new LogLine();
+
+        reader.readLine(line);
+        assertFalse(reader.isWaiting());
+    }
+
+    @Test
+    public void awaitWaitingTimesOutWhileLinesArePending() throws Exception {
+        LogLineReader reader = new LogLineReader(stream("first\nsecond\n"));
+        LogLine line = new LogLine();
+
+        reader.readLine(line);
+        assertFalse(reader.awaitWaiting(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void awaitWaitingReturnsOnceTheReaderBlocks() throws Exception {
+        PipedOutputStream out = new PipedOutputStream();
+        final LogLineReader reader = new LogLineReader(new PipedInputStream(out));
+        out.write("first\n".getBytes("UTF-8"));
+        out.flush();
+
+        Thread pump = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                LogLine line = new LogLine();
+                try {
+                    while(reader.readLine(line)) {
+                        //discard
+                    }
+                } catch (IOException e) {
+                    //pipe closed
+                }
+            }
+        });
+        pump.setDaemon(true);
+        pump.start();
+
+        assertTrue(reader.awaitWaiting(5, TimeUnit.SECONDS));
+        out.close();
+        pump.join(5000);
+    }
+
+    @Test
+    public void waitingAtEndOfInput() throws Exception {
+        LogLineReader reader = new LogLineReader(stream("first\n"));
+        LogLine line = new LogLine();
+
+        while(reader.readLine(line)) {
+            //discard
+        }
+        assertTrue(reader.awaitWaiting(0, TimeUnit.MILLISECONDS));
+    }
+}
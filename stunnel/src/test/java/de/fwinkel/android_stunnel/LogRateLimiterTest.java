@@ -0,0 +1,69 @@
+package de.fwinkel.android_stunnel;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LogRateLimiterTest {
+
+    private static final long START = TimeUnit.SECONDS.toNanos(100);
+
+    private static String closed(int id, int bytes) {
+        return "2023.10.26 12:00:00 LOG5[" + id + "]: Connection closed: " + bytes + " byte(s) sent to TLS, 0 byte(s) sent to socket";
+    }
+
+    @Test
+    public void limitsLinesPerCategory() {
+        LogRateLimiter limiter = new LogRateLimiter(2);
+
+        assertTrue(limiter.accept(closed(1, 10), LogLevel.NOTICE, START));
+        assertTrue(limiter.accept(closed(2, 200), LogLevel.NOTICE, START));
+        //same category: only the connection id and byte counts differ
+        assertFalse(limiter.accept(closed(3, 3000), LogLevel.NOTICE, START));
+        //other category
+        assertTrue(limiter.accept("2023.10.26 12:00:00 LOG5[4]: Service [web] accepted connection from 127.0.0.1:41234",
+                LogLevel.NOTICE, START));
+    }
+
+    @Test
+    public void neverLimitsWarningsAndErrors() {
+        LogRateLimiter limiter = new LogRateLimiter(1);
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.accept("2023.10.26 12:00:00 LOG3[" + i + "]: s_connect: connect 10.0.0.1:443: Connection refused (111)",
+                    LogLevel.ERROR, START));
+            assertTrue(limiter.accept("2023.10.26 12:00:00 LOG4[" + i + "]: Service [web] uses an insecure option",
+                    LogLevel.WARNING, START));
+        }
+        assertEquals(0, limiter.takeSuppressed());
+    }
+
+    @Test
+    public void reportsSuppressedLinesOncePerWindow() {
+        LogRateLimiter limiter = new LogRateLimiter(1);
+
+        limiter.accept(closed(1, 1), LogLevel.NOTICE, START);
+        limiter.accept(closed(2, 2), LogLevel.NOTICE, START);
+        limiter.accept(closed(3, 3), LogLevel.NOTICE, START + 1);
+        //only reported once the window has ended
+        assertEquals(0, limiter.takeSuppressed());
+
+        long nextWindow = START + LogRateLimiter.WINDOW_NANOS;
+        assertTrue(limiter.accept(closed(4, 4), LogLevel.NOTICE, nextWindow));
+        assertEquals(2, limiter.takeSuppressed());
+        assertEquals(0, limiter.takeSuppressed());
+    }
+
+    @Test
+    public void categoryIgnoresDigitsButNotLevel() {
+        assertEquals(LogRateLimiter.getCategory(closed(1, 10), LogLevel.NOTICE),
+                LogRateLimiter.getCategory(closed(22, 3456), LogLevel.NOTICE));
+        assertNotEquals(LogRateLimiter.getCategory(closed(1, 10), LogLevel.NOTICE),
+                LogRateLimiter.getCategory(closed(1, 10), LogLevel.INFO));
+    }
+}
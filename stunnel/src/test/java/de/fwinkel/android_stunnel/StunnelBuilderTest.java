@@ -0,0 +1,132 @@
+package de.fwinkel.android_stunnel;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StunnelBuilderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StunnelBuilder newBuilder() {
+        return new StunnelBuilder(new StunnelEnvironment() {
+            @NonNull
+            @Override
+            public File getBinaryPath() {
+                return new File("stunnel");
+            }
+
+            @NonNull
+            @Override
+            public File getFilesDirectory() {
+                return folder.getRoot();
+            }
+        });
+    }
+
+    @Test
+    public void sessionTicketsReplacesEarlierValue() {
+        StunnelBuilder builder = newBuilder();
+        builder.addService("web")
+                .client()
+                .connect("localhost", 443)
+                .setOption("options", "NO_SSLv3")
+                .sessionTickets(false)
+                .sessionTickets(true)
+                .apply();
+
+        List<StunnelOption<?>> options = builder.getConfig().getService("web").getOptions("options");
+        assertEquals(2, options.size());
+        assertEquals("NO_SSLv3", options.get(0).getValueString());
+        assertEquals("-NO_TICKET", options.get(1).getValueString());
+    }
+
+    @Test
+    public void sessionTicketsCanBeDisabledAgain() {
+        StunnelBuilder builder = newBuilder();
+        builder.addService("web")
+                .client()
+                .connect("localhost", 443)
+                .sessionTickets(true)
+                .sessionTickets(false)
+                .apply();
+
+        List<StunnelOption<?>> options = builder.getConfig().getService("web").getOptions("options");
+        assertEquals(1, options.size());
+        assertEquals("NO_TICKET", options.get(0).getValueString());
+    }
+
+    @Test
+    public void replacedStoredFileIsDropped() throws IOException {
+        StunnelBuilder builder = newBuilder();
+        builder.addService("web")
+                .connect("localhost", 443)
+                .pskSecrets(new PreSharedKey("old", "oldoldoldoldoldoldold"))
+                .pskSecrets(new PreSharedKey("new", "newnewnewnewnewnewnew"))
+                .apply();
+        builder.addService("mail")
+                .connect("localhost", 465)
+                .pskSecrets(new PreSharedKey("mail", "mailmailmailmailmail"))
+                .apply();
+
+        assertEquals(2, builder.storedFiles.size());
+        String path = builder.getConfig().getService("web").getOption("PSKsecrets").getValueString();
+        assertEquals(path, builder.storedFiles.get("[web]PSKsecrets").getFile().getAbsolutePath());
+    }
+
+    private static Stunnel failedStunnel(String... lines) {
+        Stunnel stunnel = new Stunnel(new File("stunnel"), new File("stunnel.conf"));
+        for (String line : lines) {
+            stunnel.onLogLine(line);
+        }
+        return stunnel;
+    }
+
+    private static StunnelStartException startFailure(String... lines) {
+        return new StunnelStartException("Stunnel exited", 1, Arrays.asList(lines));
+    }
+
+    @Test
+    public void successfulBindIsNoEphemeralBindFailure() throws IOException {
+        StunnelBuilder builder = newBuilder();
+        builder.addService("web")
+                .acceptLocalEphemeral()
+                .connect("localhost", 443)
+                .apply();
+
+        String[] lines = {
+                "2023.10.26 12:00:00 LOG7[ui]: Binding service [web] to 127.0.0.1:40000: Success",
+                "2023.10.26 12:00:00 LOG3[ui]: Error reading certificate file: /data/cert.pem",
+                "2023.10.26 12:00:00 LOG3[ui]: Service [web]: Failed to initialize TLS context",
+        };
+        assertFalse(builder.isEphemeralBindFailure(failedStunnel(lines), startFailure(lines)));
+    }
+
+    @Test
+    public void failedBindIsEphemeralBindFailure() throws IOException {
+        StunnelBuilder builder = newBuilder();
+        builder.addService("web")
+                .acceptLocalEphemeral()
+                .connect("localhost", 443)
+                .apply();
+
+        String[] lines = {
+                "2023.10.26 12:00:00 LOG3[ui]: Error binding service [web] to 127.0.0.1:40000",
+                "2023.10.26 12:00:00 LOG3[ui]: bind: Address already in use (98)",
+                "2023.10.26 12:00:00 LOG3[ui]: Binding service [web] failed",
+        };
+        assertTrue(builder.isEphemeralBindFailure(failedStunnel(lines), startFailure(lines)));
+    }
+}
@@ -0,0 +1,66 @@
+package de.fwinkel.android_stunnel;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import androidx.annotation.NonNull;
+
+import static org.junit.Assert.assertEquals;
+
+public class StunnelClusterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StunnelCluster.Builder newBuilder(int processCount) {
+        return new StunnelCluster.Builder(new StunnelEnvironment() {
+            @NonNull
+            @Override
+            public File getBinaryPath() {
+                return new File("stunnel");
+            }
+
+            @NonNull
+            @Override
+            public File getFilesDirectory() {
+                return folder.getRoot();
+            }
+        }, processCount);
+    }
+
+    @Test
+    public void distributesAppliedServicesRoundRobin() {
+        StunnelCluster.Builder builder = newBuilder(2);
+        builder.addService("a").connect("localhost", 1).apply();
+        builder.addService("b").connect("localhost", 2).apply();
+        builder.addService("c").connect("localhost", 3).apply();
+
+        assertEquals(Arrays.asList("a", "c"), builder.getBuilder(0).serviceNames);
+        assertEquals(Collections.singletonList("b"), builder.getBuilder(1).serviceNames);
+    }
+
+    @Test
+    public void unappliedServiceDoesNotCount() {
+        StunnelCluster.Builder builder = newBuilder(2);
+        builder.addService("unused", 10);
+        builder.addService("a").connect("localhost", 1).apply();
+        builder.addService("b").connect("localhost", 2).apply();
+        //the name can be used again
+        builder.addService("unused").connect("localhost", 3).apply();
+
+        assertEquals(Arrays.asList("a", "unused"), builder.getBuilder(0).serviceNames);
+        assertEquals(Collections.singletonList("b"), builder.getBuilder(1).serviceNames);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDuplicateAppliedService() {
+        StunnelCluster.Builder builder = newBuilder(2);
+        builder.addService("a").connect("localhost", 1).apply();
+        builder.addService("a");
+    }
+}
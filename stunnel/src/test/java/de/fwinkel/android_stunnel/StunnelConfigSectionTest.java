@@ -0,0 +1,183 @@
+package de.fwinkel.android_stunnel;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StunnelConfigSectionTest {
+
+    private static String write(StunnelConfig config) throws IOException {
+        StringWriter writer = new StringWriter();
+        config.writeTo(writer);
+        return writer.toString();
+    }
+
+    private static StunnelConfigSection service(String name, String... options) {
+        StunnelConfigSection section = new StunnelConfigSection(name);
+        for (String option : options) {
+            section.set(StunnelOption.parse(option));
+        }
+        return section;
+    }
+
+    @Test
+    public void setReplacesSingleValuedOptions() {
+        StunnelConfigSection section = new StunnelConfigSection("web");
+        section.set(new StunnelOption<>("accept", "8080"));
+        section.set(new StunnelOption<>("client", new StunnelBoolean(true)));
+        section.set(new StunnelOption<>("ACCEPT", "8081"));
+
+        assertEquals(2, section.getOptions().size());
+        assertEquals("8081", section.getOption("accept").getValueString());
+        //replaced in place: the config file order stays the same
+        assertEquals("ACCEPT", section.getOptions().get(0).getName());
+    }
+
+    @Test
+    public void setAppendsRepeatableOptions() {
+        StunnelConfigSection section = new StunnelConfigSection("web");
+        section.set(new StunnelOption<>("connect", "10.0.0.1:443"));
+        section.set(new StunnelOption<>("connect", "10.0.0.2:443"));
+        section.set(new StunnelOption<>("socket", "l:TCP_NODELAY=1"));
+        section.set(new StunnelOption<>("socket", "r:TCP_NODELAY=1"));
+
+        assertEquals(2, section.getOptions("connect").size());
+        assertEquals(2, section.getOptions("socket").size());
+        assertEquals("10.0.0.2:443", section.getOption("connect").getValueString());
+    }
+
+    @Test
+    public void setAppendsPeerChecks() {
+        StunnelConfigSection section = service("web", "checkIP = 10.0.0.1", "checkIP = 10.0.0.2",
+                "checkEmail = a@example.com", "checkEmail = b@example.com");
+
+        assertEquals(2, section.getOptions("checkIP").size());
+        assertEquals(2, section.getOptions("checkEmail").size());
+        assertTrue(StunnelConfigSection.isRepeatable("ocspflag"));
+    }
+
+    @Test
+    public void addAppendsAnyOption() {
+        StunnelConfigSection section = new StunnelConfigSection(null);
+        section.add(new StunnelOption<>("debug", "notice"));
+        section.add(new StunnelOption<>("debug", "info"));
+
+        assertEquals(2, section.getOptions("debug").size());
+        assertEquals("info", section.getOption("debug").getValueString());
+    }
+
+    @Test
+    public void removeRemovesAllValues() {
+        StunnelConfigSection section = service("web", "connect = a:1", "connect = b:2", "client = yes");
+
+        assertTrue(section.remove("connect"));
+        assertFalse(section.remove("connect"));
+        assertNull(section.getOption("connect"));
+        assertEquals(1, section.getOptions().size());
+    }
+
+    @Test
+    public void removeRemovesMatchingValues() {
+        StunnelConfigSection section = service("web", "options = NO_TICKET", "options = NO_SSLv3", "options = NO_TICKET");
+
+        assertTrue(section.remove("options", "NO_TICKET"));
+        assertFalse(section.remove("options", "NO_TICKET"));
+        assertEquals(1, section.getOptions("options").size());
+        assertEquals("NO_SSLv3", section.getOption("options").getValueString());
+    }
+
+    @Test
+    public void copyIsIndependent() {
+        StunnelConfigSection section = service("web", "accept = 8080");
+        StunnelConfigSection copy = section.copy();
+        section.set(new StunnelOption<>("accept", "9090"));
+
+        assertEquals("8080", copy.getOption("accept").getValueString());
+        assertFalse(section.equals(copy));
+    }
+
+    @Test
+    public void writesConfigFile() throws IOException {
+        StunnelConfigSection global = service(null, "foreground = yes", "debug = info");
+        StunnelConfigSection web = new StunnelConfigSection("web");
+        web.set(new StunnelOption<>("client", new StunnelBoolean(true)));
+        web.set(new StunnelOption<>("accept", "127.0.0.1:8080"));
+        web.set(new StunnelOption<>("connect", "example.com:443"));
+        web.set(new StunnelOption<>("sslVersionMin", SSLVersion.TLSv1_2));
+
+        assertEquals("foreground = yes\n" +
+                "debug = info\n" +
+                "[web]\n" +
+                "client = yes\n" +
+                "accept = 127.0.0.1:8080\n" +
+                "connect = example.com:443\n" +
+                "sslVersionMin = TLSv1.2\n",
+                write(new StunnelConfig(global, Collections.singletonList(web))));
+    }
+
+    @Test
+    public void parseOption() {
+        StunnelOption<String> option = StunnelOption.parse("  TIMEOUTidle =  600 ");
+
+        assertEquals("TIMEOUTidle", option.getName());
+        assertEquals("600", option.getValue());
+        assertEquals("TIMEOUTidle = 600", option.toConfigString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseRejectsLinesWithoutValue() {
+        StunnelOption.parse("[web]");
+    }
+
+    @Test
+    public void diff() {
+        StunnelConfig old = new StunnelConfig(service(null, "foreground = yes"), new ArrayList<>(Arrays.asList(
+                service("kept", "accept = 1"),
+                service("changed", "accept = 2"),
+                service("removed", "accept = 3"))));
+        StunnelConfig newer = new StunnelConfig(service(null, "foreground = yes"), new ArrayList<>(Arrays.asList(
+                service("kept", "accept = 1"),
+                service("changed", "accept = 2", "connect = example.com:443"),
+                service("added", "accept = 4"))));
+
+        StunnelConfigDiff diff = old.diff(newer);
+        assertFalse(diff.isGlobalChanged());
+        assertEquals(Collections.singletonList("added"), diff.getAddedServices());
+        assertEquals(Collections.singletonList("removed"), diff.getRemovedServices());
+        assertEquals(Collections.singletonList("changed"), diff.getChangedServices());
+        assertFalse(diff.isEmpty());
+    }
+
+    @Test
+    public void diffOfGlobalOptions() {
+        List<StunnelConfigSection> services = Collections.singletonList(service("web", "accept = 1"));
+        StunnelConfig old = new StunnelConfig(service(null, "foreground = yes"), services);
+        StunnelConfig newer = new StunnelConfig(service(null, "foreground = yes", "debug = info"), services);
+
+        StunnelConfigDiff diff = old.diff(newer);
+        assertTrue(diff.isGlobalChanged());
+        assertTrue(diff.getChangedServices().isEmpty());
+        assertTrue(old.diff(old.copy()).isEmpty());
+    }
+
+    @Test
+    public void optionsAreComparedByValueString() {
+        StunnelConfig old = new StunnelConfig(new StunnelConfigSection(null), Collections.singletonList(
+                service("web", "client = yes")));
+        StunnelConfigSection web = new StunnelConfigSection("web");
+        web.set(new StunnelOption<>("client", new StunnelBoolean(true)));
+        StunnelConfig newer = new StunnelConfig(new StunnelConfigSection(null), Collections.singletonList(web));
+
+        assertTrue(old.diff(newer).isEmpty());
+    }
+}
@@ -0,0 +1,206 @@
+package de.fwinkel.android_stunnel;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds log lines as written by Stunnel 5.71 through {@link StunnelLogParser}.
+ */
+public class StunnelLogParserTest {
+
+    private StunnelMetrics metrics;
+    private StunnelLogParser parser;
+    private final Map<String, Boolean> bindResults = new LinkedHashMap<>();
+    private long now;
+
+    @Before
+    public void setUp() {
+        metrics = new StunnelMetrics();
+        parser = new StunnelLogParser(metrics, new StunnelLogParser.EventListener() {
+            @Override
+            public void onServiceBindResult(@NonNull String serviceName, boolean bound) {
+                bindResults.put(serviceName, bound);
+            }
+        });
+        now = TimeUnit.SECONDS.toNanos(100);
+    }
+
+    private void parse(@NonNull String line) {
+        parser.parse(line, now);
+    }
+
+    private void parseAfter(long millis, @NonNull String line) {
+        now += TimeUnit.MILLISECONDS.toNanos(millis);
+        parser.parse(line, now);
+    }
+
+    @Test
+    public void noticeLinesCountConnectionsAndBytes() {
+        parse("2023.10.26 12:00:00 LOG5[0]: Service [web] accepted connection from 127.0.0.1:41234");
+        parse("2023.10.26 12:00:00 LOG5[1]: Service [web] accepted connection from 127.0.0.1:41236");
+        ServiceMetrics web = metrics.getService("web");
+        assertEquals(2, web.getAcceptedConnections());
+        assertEquals(2, web.getActiveConnections());
+
+        parseAfter(250, "2023.10.26 12:00:00 LOG5[0]: Connection closed: 517 byte(s) sent to TLS, 2048 byte(s) sent to socket");
+        parse("2023.10.26 12:00:00 LOG5[1]: Connection reset: 12 byte(s) sent to TLS, 0 byte(s) sent to socket");
+
+        assertEquals(0, web.getActiveConnections());
+        assertEquals(1, web.getFailedConnections());
+        assertEquals(529, web.getBytesSentToTls());
+        assertEquals(2048, web.getBytesSentToSocket());
+        assertEquals(2, web.getConnectionDuration().getCount());
+        assertEquals(250, web.getConnectionDuration().getMax(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void connectionIdsAreTrackedAcrossServices() {
+        parse("2023.10.26 12:00:00 LOG5[0]: Service [web] accepted connection from 127.0.0.1:41234");
+        parse("2023.10.26 12:00:00 LOG5[1]: Service [mail] accepted connection from 127.0.0.1:41236");
+        parse("2023.10.26 12:00:01 LOG5[1]: Connection closed: 10 byte(s) sent to TLS, 20 byte(s) sent to socket");
+
+        assertEquals(1, metrics.getService("web").getActiveConnections());
+        assertEquals(0, metrics.getService("mail").getActiveConnections());
+        assertEquals(10, metrics.getService("mail").getBytesSentToTls());
+        assertEquals(0, metrics.getService("web").getBytesSentToTls());
+    }
+
+    @Test
+    public void infoLinesRecordConnectsAndHandshakes() {
+        parse("2023.10.26 12:00:00 LOG5[0]: Service [web] accepted connection from 127.0.0.1:41234");
+        parseAfter(5, "2023.10.26 12:00:00 LOG6[0]: s_connect: connecting 93.184.216.34:443");
+        parseAfter(20, "2023.10.26 12:00:00 LOG6[0]: s_connect: connected 93.184.216.34:443");
+        parseAfter(40, "2023.10.26 12:00:00 LOG6[0]: TLS connected: new session negotiated");
+        parse("2023.10.26 12:00:00 LOG6[0]: TLSv1.3 ciphersuite: TLS_AES_256_GCM_SHA384 (256-bit encryption)");
+        parse("2023.10.26 12:00:01 LOG5[0]: Connection closed: 517 byte(s) sent to TLS, 2048 byte(s) sent to socket");
+
+        parse("2023.10.26 12:00:02 LOG5[1]: Service [web] accepted connection from 127.0.0.1:41236");
+        parse("2023.10.26 12:00:02 LOG6[1]: s_connect: connected 93.184.216.34:443");
+        parse("2023.10.26 12:00:02 LOG6[1]: TLS connected: previous session reused");
+
+        ServiceMetrics web = metrics.getService("web");
+        assertEquals(1, web.getFullHandshakes());
+        assertEquals(1, web.getResumedHandshakes());
+        assertEquals(0.5, web.getResumptionRate(), 0);
+
+        LatencyHistogram connect = web.getConnectLatency();
+        assertEquals(2, connect.getCount());
+        assertEquals(25, connect.getMax(TimeUnit.MILLISECONDS));
+        assertEquals(40, web.getHandshakeLatency().getMax(TimeUnit.MILLISECONDS));
+
+        TargetHealth target = web.getTarget("93.184.216.34:443");
+        assertEquals(2, target.getSuccesses());
+        assertTrue(target.isHealthy());
+    }
+
+    @Test
+    public void serverHandshakeIsMeasuredFromAccept() {
+        parse("2023.10.26 12:00:00 LOG5[0]: Service [server] accepted connection from 10.0.0.7:50000");
+        parseAfter(30, "2023.10.26 12:00:00 LOG6[0]: TLS accepted: new session negotiated");
+        parseAfter(2, "2023.10.26 12:00:00 LOG6[0]: s_connect: connected 127.0.0.1:8080");
+
+        ServiceMetrics server = metrics.getService("server");
+        assertEquals(1, server.getFullHandshakes());
+        assertEquals(30, server.getHandshakeLatency().getMax(TimeUnit.MILLISECONDS));
+        assertEquals(2, server.getConnectLatency().getMax(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void errorLinesMarkTargetsUnhealthy() {
+        parse("2023.10.26 12:00:00 LOG5[0]: Service [web] accepted connection from 127.0.0.1:41234");
+        parse("2023.10.26 12:00:00 LOG3[0]: s_connect: connect 10.0.0.1:443: Connection refused (111)");
+        parse("2023.10.26 12:00:10 LOG3[0]: s_connect: s_poll_wait 10.0.0.2:443: TIMEOUTconnect exceeded");
+        parse("2023.10.26 12:00:10 LOG3[0]: No more addresses to connect");
+        parse("2023.10.26 12:00:10 LOG5[0]: Connection reset: 0 byte(s) sent to TLS, 0 byte(s) sent to socket");
+
+        ServiceMetrics web = metrics.getService("web");
+        assertEquals(1, web.getFailedConnections());
+
+        TargetHealth refused = web.getTarget("10.0.0.1:443");
+        assertFalse(refused.isHealthy());
+        assertEquals(1, refused.getFailures());
+        assertEquals("Connection refused (111)", refused.getLastFailureReason());
+
+        TargetHealth timedOut = web.getTarget("10.0.0.2:443");
+        assertFalse(timedOut.isHealthy());
+        assertEquals("TIMEOUTconnect exceeded", timedOut.getLastFailureReason());
+    }
+
+    @Test
+    public void connectWaitIsNotAFailure() {
+        parse("2023.10.26 12:00:00 LOG5[0]: Service [web] accepted connection from 127.0.0.1:41234");
+        parse("2023.10.26 12:00:00 LOG6[0]: s_connect: s_poll_wait 10.0.0.1:443: waiting 10 seconds");
+
+        assertNull(metrics.getService("web").getTarget("10.0.0.1:443"));
+    }
+
+    @Test
+    public void infoTargetRecoversAfterFailure() {
+        parse("2023.10.26 12:00:00 LOG5[0]: Service [web] accepted connection from 127.0.0.1:41234");
+        parse("2023.10.26 12:00:00 LOG3[0]: s_connect: connect 10.0.0.1:443: Connection refused (111)");
+        parse("2023.10.26 12:00:00 LOG5[0]: Connection reset: 0 byte(s) sent to TLS, 0 byte(s) sent to socket");
+        parse("2023.10.26 12:00:05 LOG5[1]: Service [web] accepted connection from 127.0.0.1:41236");
+        parse("2023.10.26 12:00:05 LOG6[1]: s_connect: connected 10.0.0.1:443");
+
+        TargetHealth target = metrics.getService("web").getTarget("10.0.0.1:443");
+        assertTrue(target.isHealthy());
+        assertEquals(1, target.getFailures());
+        assertEquals(1, target.getSuccesses());
+    }
+
+    @Test
+    public void debugLinesAreIgnored() {
+        parse("2023.10.26 12:00:00 LOG7[0]: Service [web] started");
+        parse("2023.10.26 12:00:00 LOG7[0]: Setting local socket options (FD=3)");
+        parse("2023.10.26 12:00:00 LOG7[0]: TLS state (connect): SSLv3/TLS write client hello");
+        parse("2023.10.26 12:00:00 LOG7[0]: Deallocating application specific data for session connect address");
+
+        assertNull(metrics.getService("web"));
+    }
+
+    @Test
+    public void bindResults() {
+        parse("2023.10.26 12:00:00 LOG6[ui]: Service [web] (FD=9) bound to 127.0.0.1:8443");
+        parse("2023.10.26 12:00:00 LOG3[ui]: Error binding service [mail] to 127.0.0.1:25");
+        parse("2023.10.26 12:00:00 LOG3[ui]: bind: Address already in use (98)");
+        parse("2023.10.26 12:00:00 LOG3[ui]: Binding service [imap] failed");
+
+        assertEquals(Boolean.TRUE, bindResults.get("web"));
+        assertEquals(Boolean.FALSE, bindResults.get("mail"));
+        assertEquals(Boolean.FALSE, bindResults.get("imap"));
+        assertEquals(3, bindResults.size());
+    }
+
+    @Test
+    public void startupLinesAreIgnored() {
+        parse("2023.10.26 12:00:00 LOG5[ui]: stunnel 5.71 on aarch64-unknown-linux-android platform");
+        parse("2023.10.26 12:00:00 LOG5[ui]: Compiled/running with OpenSSL 3.1.4 24 Oct 2023");
+        parse("2023.10.26 12:00:00 LOG5[ui]: Reading configuration from descriptor 0");
+        parse("2023.10.26 12:00:00 LOG5[ui]: Configuration successful");
+        parse("Initializing inetd mode configuration");
+
+        assertTrue(metrics.getServices().isEmpty());
+        assertTrue(bindResults.isEmpty());
+    }
+
+    @Test
+    public void logLevelOfLines() {
+        assertEquals(LogLevel.ERROR, LogLevel.fromLine("2023.10.26 12:00:00 LOG3[0]: No more addresses to connect"));
+        assertEquals(LogLevel.WARNING, LogLevel.fromLine("2023.10.26 12:00:00 LOG4[ui]: Service [web] uses \"verifyChain\" without subject checks"));
+        assertEquals(LogLevel.NOTICE, LogLevel.fromLine("2023.10.26 12:00:00 LOG5[ui]: Configuration successful"));
+        assertEquals(LogLevel.INFO, LogLevel.fromLine("2023.10.26 12:00:00 LOG6[0]: s_connect: connected 93.184.216.34:443"));
+        assertEquals(LogLevel.DEBUG, LogLevel.fromLine("2023.10.26 12:00:00 LOG7[0]: Service [web] started"));
+        assertEquals(LogLevel.NOTICE, LogLevel.fromLine("Initializing inetd mode configuration"));
+    }
+}
@@ -0,0 +1,93 @@
+package de.fwinkel.android_stunnel;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TimeoutPolicyTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void unsetByDefault() {
+        TimeoutPolicy policy = new TimeoutPolicy.Builder().build();
+
+        assertEquals(TimeoutPolicy.UNSET, policy.getConnectSeconds());
+        assertEquals(TimeoutPolicy.UNSET, policy.getBusySeconds());
+        assertEquals(TimeoutPolicy.UNSET, policy.getIdleSeconds());
+        assertEquals(TimeoutPolicy.UNSET, policy.getCloseSeconds());
+    }
+
+    @Test
+    public void convertsToSecondsRoundingUp() {
+        TimeoutPolicy policy = new TimeoutPolicy.Builder()
+                .connect(1500, TimeUnit.MILLISECONDS)
+                .busy(2, TimeUnit.MINUTES)
+                .idle(1, TimeUnit.NANOSECONDS)
+                .close(0, TimeUnit.SECONDS)
+                .build();
+
+        assertEquals(2, policy.getConnectSeconds());
+        assertEquals(120, policy.getBusySeconds());
+        assertEquals(1, policy.getIdleSeconds());
+        assertEquals(0, policy.getCloseSeconds());
+    }
+
+    @Test
+    public void mobile() {
+        assertEquals(5, TimeoutPolicy.MOBILE.getConnectSeconds());
+        assertEquals(30, TimeoutPolicy.MOBILE.getBusySeconds());
+        assertEquals(300, TimeoutPolicy.MOBILE.getIdleSeconds());
+        assertEquals(5, TimeoutPolicy.MOBILE.getCloseSeconds());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroConnectTimeout() {
+        new TimeoutPolicy.Builder().connect(0, TimeUnit.SECONDS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeCloseTimeout() {
+        new TimeoutPolicy.Builder().close(-1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void writesOnlySetTimeouts() {
+        StunnelBuilder builder = new StunnelBuilder(new StunnelEnvironment() {
+            @NonNull
+            @Override
+            public File getBinaryPath() {
+                return new File("stunnel");
+            }
+
+            @NonNull
+            @Override
+            public File getFilesDirectory() {
+                return folder.getRoot();
+            }
+        });
+        builder.addService("web")
+                .client()
+                .connect("localhost", 443)
+                .timeouts(new TimeoutPolicy.Builder()
+                        .connect(3, TimeUnit.SECONDS)
+                        .idle(10, TimeUnit.MINUTES)
+                        .build())
+                .apply();
+
+        StunnelConfigSection service = builder.getConfig().getService("web");
+        assertEquals("3", service.getOption("TIMEOUTconnect").getValue());
+        assertEquals("600", service.getOption("TIMEOUTidle").getValue());
+        assertNull(service.getOption("TIMEOUTbusy"));
+        assertNull(service.getOption("TIMEOUTclose"));
+    }
+}